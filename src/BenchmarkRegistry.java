@@ -0,0 +1,188 @@
+import java.io.*;
+import java.util.*;
+
+/**
+* BenchmarkRegistry.java
+*
+* Named benchmark indices (National, Southeast, Midwest, ...) that markets
+* are scored against. Each benchmark series is centered once when it is
+* registered, so the covariance of a market series against every benchmark
+* can be accumulated together in a single pass over that series. Series
+* are paired with SeriesAlignment, as in MetricEngine, so a market is not
+* scored against a benchmark of a different length; when an alignment
+* covers only part of a benchmark, that window is centered for the call.
+*/
+public class BenchmarkRegistry {
+    private final ArrayList<String> names = new ArrayList<String>();
+    // Per benchmark, per family: series minus its mean (null if missing).
+    private final ArrayList<double[][]> centered = new ArrayList<double[][]>();
+    // Per benchmark, per family: population variance.
+    private final ArrayList<double[]> variances = new ArrayList<double[]>();
+
+    // Registers or replaces one benchmark family series.
+    public void register(String benchmark, int family, double[] series) {
+        int b = names.indexOf(benchmark);
+        if (b < 0) {
+            names.add(benchmark);
+            centered.add(new double[MetricEngine.familyCount()][]);
+            variances.add(new double[MetricEngine.familyCount()]);
+            b = names.size() - 1;
+        }
+        if (series == null || series.length == 0) {
+            return;
+        }
+
+        double mean = 0;
+        for (double v : series) {
+            mean += v;
+        }
+        mean /= series.length;
+
+        double[] c = new double[series.length];
+        double sumSq = 0;
+        for (int i = 0; i < series.length; i++) {
+            c[i] = series[i] - mean;
+            sumSq += c[i] * c[i];
+        }
+        centered.get(b)[family] = c;
+        variances.get(b)[family] = sumSq / series.length;
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public String getName(int benchmark) {
+        return names.get(benchmark);
+    }
+
+    public ArrayList<String> getNames() {
+        return new ArrayList<String>(names);
+    }
+
+    // Betas of one market series against every benchmark over their shared periods, reading the series once.
+    // Benchmarks that are missing, flat over the shared periods, or share none come back as NaN.
+    public double[] betas(int family, double[] series) {
+        int count = names.size();
+        double[] result = new double[count];
+        if (series == null || series.length == 0) {
+            Arrays.fill(result, Double.NaN);
+            return result;
+        }
+
+        // Pick the benchmarks this series can be scored against, each centered over the shared periods.
+        int n = series.length;
+        double[][] aligned = new double[count][];
+        double[] alignedVariances = new double[count];
+        // First series index each benchmark window covers.
+        int[] starts = new int[count];
+        int[] slots = new int[count];
+        int alignedCount = 0;
+        for (int b = 0; b < count; b++) {
+            double[] c = centered.get(b)[family];
+            result[b] = Double.NaN;
+            SeriesAlignment overlap = SeriesAlignment.latest(series, c);
+            int k = overlap.getLength();
+            if (k == 0) {
+                continue;
+            }
+            double variance = variances.get(b)[family];
+            if (k < c.length) {
+                c = centerWindow(c, overlap.getBenchmarkFrom(), k);
+                variance = 0;
+                for (double v : c) {
+                    variance += v * v;
+                }
+                variance /= k;
+            }
+            if (variance != 0) {
+                aligned[alignedCount] = c;
+                alignedVariances[alignedCount] = variance;
+                starts[alignedCount] = overlap.getMarketFrom();
+                slots[alignedCount++] = b;
+            }
+        }
+
+        // Benchmarks are centered over their windows, so sum(x * c) is already k * covariance.
+        double[] acc = new double[alignedCount];
+        for (int i = 0; i < n; i++) {
+            double x = series[i];
+            for (int k = 0; k < alignedCount; k++) {
+                int j = i - starts[k];
+                if (j >= 0) {
+                    acc[k] += x * aligned[k][j];
+                }
+            }
+        }
+
+        for (int k = 0; k < alignedCount; k++) {
+            result[slots[k]] = acc[k] / aligned[k].length / alignedVariances[k];
+        }
+        return result;
+    }
+
+    // Values [from, from + length) of a centered series, re-centered on their own mean.
+    private static double[] centerWindow(double[] c, int from, int length) {
+        double mean = 0;
+        for (int i = from; i < from + length; i++) {
+            mean += c[i];
+        }
+        mean /= length;
+        double[] window = new double[length];
+        for (int i = 0; i < length; i++) {
+            window[i] = c[from + i] - mean;
+        }
+        return window;
+    }
+
+    // Loads National.txt as "National" plus any "<Benchmark> <Family>: v1, v2, ..." lines from the extra file.
+    public static BenchmarkRegistry load(String nationalFile, String benchmarkFile) throws IOException {
+        BenchmarkRegistry registry = new BenchmarkRegistry();
+        loadFile(registry, nationalFile, "National");
+        if (benchmarkFile != null && new File(benchmarkFile).exists()) {
+            loadFile(registry, benchmarkFile, null);
+        }
+        return registry;
+    }
+
+    private static void loadFile(BenchmarkRegistry registry, String filename, String fixedName) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String label = line.substring(0, colon).trim();
+
+                // The label ends with the family; whatever precedes it names the benchmark.
+                for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                    if (!label.endsWith(MetricEngine.family(f))) {
+                        continue;
+                    }
+                    String name = fixedName != null ? fixedName
+                            : label.substring(0, label.length() - MetricEngine.family(f).length()).replaceFirst("^Ten Year ", "")
+                                    .trim();
+                    double[] series = parseSeries(line.substring(colon + 1));
+                    if (series == null) {
+                        System.out.println("Invalid benchmark values for " + label + " in " + filename);
+                    } else if (!name.isEmpty()) {
+                        registry.register(name, f, series);
+                    }
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static double[] parseSeries(String text) {
+        try {
+            return DecimalParser.parseList(text, true);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+* BootstrapEngine.java
+*
+* Percentile bootstrap confidence intervals for the SD, CV and beta of
+* every market family. Markets are split across a ForkJoinPool; each split
+* hands its right half a SplittableRandom split from its own, so the draws
+* depend only on the seed and the market count, never on scheduling. A
+* resample is never materialized: each draw adds straight into running
+* sums over a leaf-local centered buffer, and the per-resample estimates
+* land in primitive arrays reused for every market in the leaf. Betas pair
+* the market with National.txt over the periods SeriesAlignment finds
+* shared, as in MetricEngine, so series of a different length get none;
+* an overlap covering only part of the national series has its shared
+* pairs resampled on their own.
+*/
+public class BootstrapEngine {
+    // Statistics bootstrapped, in output order.
+    public static final int[] STATS = {MetricEngine.SD, MetricEngine.CV, MetricEngine.BETA};
+    private static final int LEAF_MARKETS = 16;
+
+    private final String[] names;
+    private final double[][][] series;
+    private final double[][] national;
+    private final double[] nationalVariance;
+    // Per market, indexed by MetricEngine metric index; NaN where not bootstrapped.
+    private final double[][] point;
+    private final double[][] lower;
+    private final double[][] upper;
+    private int resamples;
+    private double confidence;
+
+    // series is per market, per family; national is per family (entries may be null).
+    public BootstrapEngine(String[] names, double[][][] series, double[][] national) {
+        this.names = names;
+        this.series = series;
+        this.national = national;
+        this.nationalVariance = new double[MetricEngine.familyCount()];
+        for (int f = 0; f < nationalVariance.length; f++) {
+            double sd = national == null ? 0 : MetricEngine.stdDev(national[f]);
+            nationalVariance[f] = sd * sd;
+        }
+        this.point = new double[names.length][MetricEngine.metricCount()];
+        this.lower = new double[names.length][MetricEngine.metricCount()];
+        this.upper = new double[names.length][MetricEngine.metricCount()];
+    }
+
+    // Runs the given number of resamples per market family; confidence is a fraction, e.g. 0.95.
+    public void run(int resamples, double confidence, long seed) {
+        this.resamples = resamples;
+        this.confidence = confidence;
+        for (int m = 0; m < names.length; m++) {
+            Arrays.fill(point[m], Double.NaN);
+            Arrays.fill(lower[m], Double.NaN);
+            Arrays.fill(upper[m], Double.NaN);
+        }
+        ForkJoinPool.commonPool().invoke(new BootstrapTask(0, names.length, new SplittableRandom(seed)));
+    }
+
+    private class BootstrapTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final SplittableRandom random;
+
+        BootstrapTask(int from, int to, SplittableRandom random) {
+            this.from = from;
+            this.to = to;
+            this.random = random;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_MARKETS) {
+                runLeaf(from, to, random);
+                return;
+            }
+            // Split before forking so the tree of generators is fixed by the range alone.
+            int mid = (from + to) >>> 1;
+            SplittableRandom right = random.split();
+            invokeAll(new BootstrapTask(from, mid, random), new BootstrapTask(mid, to, right));
+        }
+    }
+
+    // Bootstraps a run of markets with one set of buffers.
+    private void runLeaf(int from, int to, SplittableRandom random) {
+        int longest = 0;
+        for (int m = from; m < to; m++) {
+            for (double[] values : series[m]) {
+                longest = Math.max(longest, values == null ? 0 : values.length);
+            }
+        }
+        double[] x = new double[longest];
+        double[] y = new double[longest];
+        double[] xShared = new double[longest];
+        double[] yShared = new double[longest];
+        double[] sdSamples = new double[resamples];
+        double[] cvSamples = new double[resamples];
+        double[] betaSamples = new double[resamples];
+
+        for (int m = from; m < to; m++) {
+            for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                double[] values = series[m][f];
+                if (values == null || values.length == 0) {
+                    continue;
+                }
+                int n = values.length;
+                double[] bench = national == null ? null : national[f];
+                SeriesAlignment overlap = SeriesAlignment.latest(values, bench);
+                int k = overlap.getLength();
+                double benchVariance = nationalVariance[f];
+                if (k > 0 && k < bench.length) {
+                    double sd = MetricEngine.stdDev(bench, overlap.getBenchmarkFrom(), k);
+                    benchVariance = sd * sd;
+                }
+                boolean aligned = k > 0 && benchVariance != 0;
+                // When the market covers the whole national series the beta pairs are the SD draws, period
+                // for period; otherwise the shared pairs, which start at the overlap, get their own.
+                boolean paired = aligned && k == n && n == bench.length;
+
+                // Center once so the running sums don't cancel.
+                double mean = MetricEngine.avg(values);
+                double benchMean = paired ? MetricEngine.avg(bench) : 0;
+                for (int i = 0; i < n; i++) {
+                    x[i] = values[i] - mean;
+                    y[i] = paired ? bench[i] - benchMean : 0;
+                }
+                estimate(x, y, n, mean, paired, benchVariance, point[m], f);
+                if (aligned && !paired) {
+                    int m0 = overlap.getMarketFrom();
+                    int b0 = overlap.getBenchmarkFrom();
+                    double sharedMean = MetricEngine.avg(values, m0, k);
+                    double sharedBenchMean = MetricEngine.avg(bench, b0, k);
+                    double sxy = 0;
+                    for (int i = 0; i < k; i++) {
+                        xShared[i] = values[m0 + i] - sharedMean;
+                        yShared[i] = bench[b0 + i] - sharedBenchMean;
+                        sxy += xShared[i] * yShared[i];
+                    }
+                    point[m][MetricEngine.index(MetricEngine.BETA, f)] = sxy / k / benchVariance;
+                }
+
+                for (int r = 0; r < resamples; r++) {
+                    double sx = 0;
+                    double sxx = 0;
+                    double sy = 0;
+                    double syy = 0;
+                    double sxy = 0;
+                    long bits = 0;
+                    for (int i = 0; i < n; i++) {
+                        // Two indices per 64-bit draw, scaled by multiply-shift; the bias is below n / 2^32.
+                        if ((i & 1) == 0) {
+                            bits = random.nextLong();
+                        } else {
+                            bits >>>= 32;
+                        }
+                        int j = (int) (((bits & 0xffffffffL) * n) >>> 32);
+                        double a = x[j];
+                        double b = y[j];
+                        sx += a;
+                        sxx += a * a;
+                        sy += b;
+                        syy += b * b;
+                        sxy += a * b;
+                    }
+                    double mx = sx / n;
+                    double sd = Math.sqrt(Math.max(0, sxx / n - mx * mx));
+                    sdSamples[r] = sd;
+                    cvSamples[r] = MetricEngine.cv(sd, mean + mx);
+                    if (paired) {
+                        double my = sy / n;
+                        double variance = syy / n - my * my;
+                        betaSamples[r] = variance <= 0 ? 0 : (sxy / n - mx * my) / variance;
+                    }
+                }
+
+                if (aligned && !paired) {
+                    resampleBetas(xShared, yShared, k, random, betaSamples);
+                }
+
+                interval(sdSamples, m, MetricEngine.index(MetricEngine.SD, f));
+                interval(cvSamples, m, MetricEngine.index(MetricEngine.CV, f));
+                if (aligned) {
+                    interval(betaSamples, m, MetricEngine.index(MetricEngine.BETA, f));
+                }
+            }
+        }
+    }
+
+    // Betas of resampled (x, y) pairs from the first n entries of two centered buffers.
+    private void resampleBetas(double[] x, double[] y, int n, SplittableRandom random, double[] betaSamples) {
+        for (int r = 0; r < resamples; r++) {
+            double sx = 0;
+            double sy = 0;
+            double syy = 0;
+            double sxy = 0;
+            long bits = 0;
+            for (int i = 0; i < n; i++) {
+                if ((i & 1) == 0) {
+                    bits = random.nextLong();
+                } else {
+                    bits >>>= 32;
+                }
+                int j = (int) (((bits & 0xffffffffL) * n) >>> 32);
+                double a = x[j];
+                double b = y[j];
+                sx += a;
+                sy += b;
+                syy += b * b;
+                sxy += a * b;
+            }
+            double mx = sx / n;
+            double my = sy / n;
+            double variance = syy / n - my * my;
+            betaSamples[r] = variance <= 0 ? 0 : (sxy / n - mx * my) / variance;
+        }
+    }
+
+    // Point estimates from the full centered series, with the same population formulas as MetricEngine.
+    private void estimate(double[] x, double[] y, int n, double mean, boolean aligned, double benchVariance,
+                          double[] out, int family) {
+        double sxx = 0;
+        double sxy = 0;
+        for (int i = 0; i < n; i++) {
+            sxx += x[i] * x[i];
+            sxy += x[i] * y[i];
+        }
+        double sd = Math.sqrt(sxx / n);
+        out[MetricEngine.index(MetricEngine.SD, family)] = sd;
+        out[MetricEngine.index(MetricEngine.CV, family)] = MetricEngine.cv(sd, mean);
+        out[MetricEngine.index(MetricEngine.BETA, family)] = aligned ? sxy / n / benchVariance : Double.NaN;
+    }
+
+    // Percentile interval; sorts the sample buffer in place.
+    private void interval(double[] samples, int market, int index) {
+        Arrays.sort(samples, 0, resamples);
+        double tail = (1 - confidence) / 2;
+        lower[market][index] = samples[(int) Math.floor(tail * (resamples - 1))];
+        upper[market][index] = samples[(int) Math.ceil((1 - tail) * (resamples - 1))];
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int market) {
+        return names[market];
+    }
+
+    public double getPoint(int market, int index) {
+        return point[market][index];
+    }
+
+    public double getLower(int market, int index) {
+        return lower[market][index];
+    }
+
+    public double getUpper(int market, int index) {
+        return upper[market][index];
+    }
+
+    // Neighbouring markets in one category whose intervals overlap, i.e. ranks the data can't separate.
+    // Returns {overlapping pairs, pairs}.
+    public int[] neighbourOverlaps(int index) {
+        ArrayList<Integer> order = new ArrayList<Integer>();
+        for (int m = 0; m < names.length; m++) {
+            if (!Double.isNaN(lower[m][index])) {
+                order.add(m);
+            }
+        }
+        order.sort((a, b) -> Double.compare(point[a][index], point[b][index]));
+        int overlaps = 0;
+        for (int i = 1; i < order.size(); i++) {
+            int a = order.get(i - 1);
+            int b = order.get(i);
+            if (upper[a][index] >= lower[b][index] && upper[b][index] >= lower[a][index]) {
+                overlaps++;
+            }
+        }
+        return new int[] {overlaps, Math.max(0, order.size() - 1)};
+    }
+
+    // One line per market: "<Market>: <Metric>: point [lower, upper] | ...".
+    public void write(String filename) throws IOException {
+        PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(filename)));
+        for (int m = 0; m < names.length; m++) {
+            StringBuilder sb = new StringBuilder(names[m]).append(": ");
+            boolean first = true;
+            for (int stat : STATS) {
+                for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                    int index = MetricEngine.index(stat, f);
+                    if (Double.isNaN(lower[m][index])) {
+                        continue;
+                    }
+                    sb.append(first ? "" : " | ").append(MetricEngine.metricLabel(index)).append(": ")
+                            .append(point[m][index]).append(" [").append(lower[m][index]).append(", ")
+                            .append(upper[m][index]).append("]");
+                    first = false;
+                }
+            }
+            pw.println(sb);
+        }
+        pw.close();
+    }
+}
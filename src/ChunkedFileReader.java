@@ -0,0 +1,201 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+* ChunkedFileReader.java
+*
+* Parallel line reading for large text files such as Markets.txt. The file
+* is cut into byte ranges whose edges are moved forward to the next line
+* start, so every line falls in exactly one range. Ranges are read with
+* positional channel reads and scanned concurrently, each into its own
+* result, and the results are merged in range order: the outcome is the
+* same as one front-to-back pass no matter how many threads ran. UTF-8
+* never uses the '\n' byte inside a multi-byte character, so cutting on
+* it is safe. Small files come out as a single range and stay on the
+* calling thread.
+*/
+public class ChunkedFileReader {
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+    private static final int READ_BUFFER_BYTES = 1 << 16;
+
+    // Receives one line: its bytes (without the newline or a trailing '\r') and its file offset.
+    private interface LineVisitor {
+        void line(byte[] bytes, int length, long offset);
+    }
+
+    // The same, tagged with the index of the range the line came from.
+    private interface ChunkVisitor {
+        void line(int chunk, byte[] bytes, int length, long offset);
+    }
+
+    // Every line of the file in order, like repeated BufferedReader.readLine; empty if the file is missing.
+    public static ArrayList<String> readLines(String filename) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        File file = new File(filename);
+        if (!file.exists()) {
+            return lines;
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long[] bounds = boundaries(channel);
+            List<ArrayList<String>> parts = new ArrayList<ArrayList<String>>();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                parts.add(new ArrayList<String>());
+            }
+            scanAll(channel, bounds, (chunk, bytes, length, offset) ->
+                    parts.get(chunk).add(new String(bytes, 0, length, StandardCharsets.UTF_8)));
+
+            // Merge in range order.
+            int total = 0;
+            for (ArrayList<String> part : parts) {
+                total += part.size();
+            }
+            lines.ensureCapacity(total);
+            for (ArrayList<String> part : parts) {
+                lines.addAll(part);
+            }
+        } finally {
+            channel.close();
+        }
+        return lines;
+    }
+
+    // Byte offset of the first line for each name, the name being the trimmed text before the first ':'.
+    public static HashMap<String, Long> indexLineNames(String filename) throws IOException {
+        HashMap<String, Long> index = new HashMap<String, Long>();
+        File file = new File(filename);
+        if (!file.exists()) {
+            return index;
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long[] bounds = boundaries(channel);
+            List<LinkedHashMap<String, Long>> parts = new ArrayList<LinkedHashMap<String, Long>>();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                parts.add(new LinkedHashMap<String, Long>());
+            }
+            scanAll(channel, bounds, (chunk, bytes, length, offset) -> {
+                for (int i = 0; i < length; i++) {
+                    if (bytes[i] == ':') {
+                        parts.get(chunk).putIfAbsent(new String(bytes, 0, i, StandardCharsets.UTF_8).trim(), offset);
+                        return;
+                    }
+                }
+            });
+
+            // Earlier ranges win, so the first line per name wins as in a linear scan.
+            for (LinkedHashMap<String, Long> part : parts) {
+                for (Map.Entry<String, Long> entry : part.entrySet()) {
+                    index.putIfAbsent(entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            channel.close();
+        }
+        return index;
+    }
+
+    // Range edges: bounds[i] to bounds[i + 1] is range i, each starting at a line start.
+    private static long[] boundaries(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int workers = Runtime.getRuntime().availableProcessors();
+        int chunks = (int) Math.max(1, Math.min(workers * 4L, size / MIN_CHUNK_BYTES));
+        long[] bounds = new long[chunks + 1];
+        bounds[chunks] = size;
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        for (int i = 1; i < chunks; i++) {
+            long position = Math.max(bounds[i - 1], size * i / chunks);
+            bounds[i] = nextLineStart(channel, position, size, probe);
+        }
+        return bounds;
+    }
+
+    // First offset at or after position that begins a line.
+    private static long nextLineStart(FileChannel channel, long position, long size, ByteBuffer probe)
+            throws IOException {
+        if (position == 0) {
+            return 0;
+        }
+        // Start one byte back so a range edge that already sits on a line start stays put.
+        long at = position - 1;
+        while (at < size) {
+            probe.clear();
+            int read = channel.read(probe, at);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return at + i + 1;
+                }
+            }
+            at += read;
+        }
+        return size;
+    }
+
+    // Scans every range in parallel; each visitor call only touches its own range's result.
+    private static void scanAll(FileChannel channel, long[] bounds, ChunkVisitor visitor) throws IOException {
+        int chunks = bounds.length - 1;
+        IOException[] failure = new IOException[1];
+        IntStream range = IntStream.range(0, chunks);
+        (chunks > 1 ? range.parallel() : range).forEach(c -> {
+            try {
+                scanRange(channel, bounds[c], bounds[c + 1], (bytes, length, offset) ->
+                        visitor.line(c, bytes, length, offset));
+            } catch (IOException e) {
+                synchronized (failure) {
+                    failure[0] = e;
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    // Splits one byte range into lines with positional reads, so ranges share the channel safely.
+    private static void scanRange(FileChannel channel, long from, long to, LineVisitor visitor) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_BUFFER_BYTES, Math.max(1, to - from)));
+        byte[] line = new byte[256];
+        int length = 0;
+        long lineStart = from;
+        long position = from;
+        while (position < to) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), to - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            byte[] bytes = buffer.array();
+            for (int i = 0; i < read; i++) {
+                byte b = bytes[i];
+                if (b == '\n') {
+                    visitor.line(line, stripReturn(line, length), lineStart);
+                    length = 0;
+                    lineStart = position + i + 1;
+                } else {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length * 2);
+                    }
+                    line[length++] = b;
+                }
+            }
+            position += read;
+        }
+        // A last line without a newline.
+        if (length > 0) {
+            visitor.line(line, stripReturn(line, length), lineStart);
+        }
+    }
+
+    private static int stripReturn(byte[] line, int length) {
+        return length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+    }
+}
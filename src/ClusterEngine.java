@@ -0,0 +1,352 @@
+import java.io.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+* ClusterEngine.java
+*
+* K-means clustering of markets by volatility regime over their metric
+* vectors, with every metric scaled to z-scores first. Seeding is k-means++
+* from a fixed seed. The assignment step runs in parallel, and the centroid
+* sums are reduced in fixed block order, so a seed always reproduces the
+* same clusters whatever the thread count. With a batch size set, centroids
+* are fitted on sampled mini-batches and every market is assigned at the end.
+* A missing (NaN) metric is placed at that metric's mean.
+*/
+public class ClusterEngine {
+    private static final int BLOCK_ROWS = 4096;
+    private static final int MAX_ITERATIONS = 100;
+
+    private final String[] names;
+    private final double[][] vectors;
+    private final int dims;
+    private final double[] mean;
+    private final double[] scale;
+
+    private int[] assignment;
+    private double[][] centers;
+    private double inertia;
+    private int iterations;
+
+    public ClusterEngine(String[] names, double[][] vectors) {
+        this.names = names;
+        this.vectors = vectors;
+        this.dims = vectors.length == 0 ? 0 : vectors[0].length;
+        this.mean = new double[dims];
+        this.scale = new double[dims];
+
+        // Z-score scale per metric over the markets that have it; flat metrics get weight 0.
+        int[] present = new int[dims];
+        for (double[] v : vectors) {
+            for (int j = 0; j < dims; j++) {
+                if (!Double.isNaN(v[j])) {
+                    mean[j] += v[j];
+                    present[j]++;
+                }
+            }
+        }
+        for (int j = 0; j < dims; j++) {
+            mean[j] /= Math.max(1, present[j]);
+        }
+        double[] m2 = new double[dims];
+        for (double[] v : vectors) {
+            for (int j = 0; j < dims; j++) {
+                if (!Double.isNaN(v[j])) {
+                    m2[j] += (v[j] - mean[j]) * (v[j] - mean[j]);
+                }
+            }
+        }
+        for (int j = 0; j < dims; j++) {
+            double sd = Math.sqrt(m2[j] / Math.max(1, present[j]));
+            scale[j] = sd > 1e-12 ? 1 / sd : 0;
+        }
+    }
+
+    // Runs k-means; batchSize <= 0 (or >= the universe) means full-batch Lloyd iterations.
+    public void run(int k, long seed, int batchSize) {
+        int n = vectors.length;
+        k = Math.min(k, n);
+        double[][] points = new double[n][dims];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < dims; j++) {
+                double v = vectors[i][j];
+                points[i][j] = Double.isNaN(v) ? 0 : (v - mean[j]) * scale[j];
+            }
+        }
+
+        Random random = new Random(seed);
+        double[][] c = seed(points, k, random);
+        int[] assigned = new int[n];
+        Arrays.fill(assigned, -1);
+        iterations = 0;
+
+        if (batchSize > 0 && batchSize < n) {
+            // Mini-batch: per-centroid learning rate 1 / points seen so far.
+            long[] seen = new long[k];
+            int[] batch = new int[batchSize];
+            int[] batchAssigned = new int[batchSize];
+            for (int it = 0; it < MAX_ITERATIONS; it++) {
+                for (int b = 0; b < batchSize; b++) {
+                    batch[b] = random.nextInt(n);
+                }
+                final double[][] centersNow = c;
+                IntStream.range(0, batchSize).parallel()
+                        .forEach(b -> batchAssigned[b] = nearest(points[batch[b]], centersNow));
+                double shift = 0;
+                for (int b = 0; b < batchSize; b++) {
+                    int cluster = batchAssigned[b];
+                    double rate = 1.0 / ++seen[cluster];
+                    double[] point = points[batch[b]];
+                    for (int j = 0; j < dims; j++) {
+                        double step = rate * (point[j] - c[cluster][j]);
+                        c[cluster][j] += step;
+                        shift += step * step;
+                    }
+                }
+                iterations++;
+                if (shift < 1e-10) {
+                    break;
+                }
+            }
+            assign(points, c, assigned);
+        } else {
+            for (int it = 0; it < MAX_ITERATIONS; it++) {
+                iterations++;
+                if (!assign(points, c, assigned) && it > 0) {
+                    break;
+                }
+                c = recenter(points, assigned, c);
+            }
+        }
+
+        // Inertia in z-score units, then centroids back in metric units.
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += distance(points[i], c[assigned[i]]);
+        }
+        inertia = total;
+        assignment = assigned;
+        centers = new double[k][dims];
+        for (int cluster = 0; cluster < k; cluster++) {
+            for (int j = 0; j < dims; j++) {
+                centers[cluster][j] = scale[j] == 0 ? mean[j] : c[cluster][j] / scale[j] + mean[j];
+            }
+        }
+    }
+
+    // k-means++: each next seed is drawn with probability proportional to its squared distance.
+    private double[][] seed(double[][] points, int k, Random random) {
+        int n = points.length;
+        double[][] c = new double[k][];
+        double[] best = new double[n];
+        c[0] = points[random.nextInt(n)].clone();
+        for (int i = 0; i < n; i++) {
+            best[i] = distance(points[i], c[0]);
+        }
+        for (int cluster = 1; cluster < k; cluster++) {
+            double total = 0;
+            for (double d : best) {
+                total += d;
+            }
+            int pick = random.nextInt(n);
+            if (total > 0) {
+                double target = random.nextDouble() * total;
+                for (int i = 0; i < n; i++) {
+                    target -= best[i];
+                    if (target <= 0) {
+                        pick = i;
+                        break;
+                    }
+                }
+            }
+            c[cluster] = points[pick].clone();
+            final double[] center = c[cluster];
+            IntStream.range(0, n).parallel().forEach(i -> best[i] = Math.min(best[i], distance(points[i], center)));
+        }
+        return c;
+    }
+
+    // Assigns every point to its nearest centroid in parallel; returns whether anything moved.
+    private boolean assign(double[][] points, double[][] c, int[] assigned) {
+        int blocks = (points.length + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        boolean[] changed = new boolean[blocks];
+        IntStream.range(0, blocks).parallel().forEach(b -> {
+            int end = Math.min(points.length, (b + 1) * BLOCK_ROWS);
+            for (int i = b * BLOCK_ROWS; i < end; i++) {
+                int cluster = nearest(points[i], c);
+                if (cluster != assigned[i]) {
+                    assigned[i] = cluster;
+                    changed[b] = true;
+                }
+            }
+        });
+        for (boolean blockChanged : changed) {
+            if (blockChanged) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Block partial sums in parallel, reduced in block order so results don't depend on scheduling.
+    private double[][] recenter(double[][] points, int[] assigned, double[][] previous) {
+        int k = previous.length;
+        int blocks = (points.length + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        double[][][] sums = new double[blocks][k][dims];
+        long[][] counts = new long[blocks][k];
+        IntStream.range(0, blocks).parallel().forEach(b -> {
+            int end = Math.min(points.length, (b + 1) * BLOCK_ROWS);
+            for (int i = b * BLOCK_ROWS; i < end; i++) {
+                int cluster = assigned[i];
+                counts[b][cluster]++;
+                for (int j = 0; j < dims; j++) {
+                    sums[b][cluster][j] += points[i][j];
+                }
+            }
+        });
+
+        double[][] c = new double[k][dims];
+        for (int cluster = 0; cluster < k; cluster++) {
+            long count = 0;
+            for (int b = 0; b < blocks; b++) {
+                count += counts[b][cluster];
+                for (int j = 0; j < dims; j++) {
+                    c[cluster][j] += sums[b][cluster][j];
+                }
+            }
+            // An emptied cluster keeps its previous centroid.
+            for (int j = 0; j < dims; j++) {
+                c[cluster][j] = count == 0 ? previous[cluster][j] : c[cluster][j] / count;
+            }
+        }
+        return c;
+    }
+
+    private static int nearest(double[] point, double[][] c) {
+        int best = 0;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int cluster = 0; cluster < c.length; cluster++) {
+            double d = distance(point, c[cluster]);
+            if (d < bestDistance) {
+                bestDistance = d;
+                best = cluster;
+            }
+        }
+        return best;
+    }
+
+    private static double distance(double[] a, double[] b) {
+        double d = 0;
+        for (int j = 0; j < a.length; j++) {
+            double diff = a[j] - b[j];
+            d += diff * diff;
+        }
+        return d;
+    }
+
+    // Cluster number (1-based) per market, in input order.
+    public int getCluster(int market) {
+        return assignment[market] + 1;
+    }
+
+    public int clusterCount() {
+        return centers.length;
+    }
+
+    public double[] getCenter(int cluster) {
+        return centers[cluster - 1].clone();
+    }
+
+    public double getInertia() {
+        return inertia;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    // Markets per cluster, indexed by cluster number - 1.
+    public int[] clusterSizes() {
+        int[] sizes = new int[centers.length];
+        for (int a : assignment) {
+            sizes[a]++;
+        }
+        return sizes;
+    }
+
+    // Population standard deviation of each metric within one cluster, over the markets that have it.
+    public double[] clusterSpread(int cluster) {
+        double[] center = centers[cluster - 1];
+        double[] m2 = new double[dims];
+        int[] count = new int[dims];
+        for (int i = 0; i < vectors.length; i++) {
+            if (assignment[i] != cluster - 1) {
+                continue;
+            }
+            for (int j = 0; j < dims; j++) {
+                if (!Double.isNaN(vectors[i][j])) {
+                    m2[j] += (vectors[i][j] - center[j]) * (vectors[i][j] - center[j]);
+                    count[j]++;
+                }
+            }
+        }
+        for (int j = 0; j < dims; j++) {
+            m2[j] = count[j] == 0 ? 0 : Math.sqrt(m2[j] / count[j]);
+        }
+        return m2;
+    }
+
+    // Writes the assignments line and one summary line per cluster.
+    public void write(String filename) throws IOException {
+        PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(filename)));
+        pw.print("Cluster Assignments: ");
+        for (int i = 0; i < names.length; i++) {
+            pw.print((i > 0 ? "," : "") + names[i] + " - " + getCluster(i));
+        }
+        pw.println();
+
+        int[] sizes = clusterSizes();
+        for (int cluster = 1; cluster <= centers.length; cluster++) {
+            double[] spread = clusterSpread(cluster);
+            pw.print("Cluster " + cluster + " Summary: Markets: " + sizes[cluster - 1]);
+            for (int j = 0; j < dims; j++) {
+                pw.print(" | " + MetricEngine.metricLabel(j) + ": mean " + centers[cluster - 1][j]
+                        + ", sd " + spread[j]);
+            }
+            pw.println();
+        }
+        pw.close();
+    }
+
+    // Reads the market to cluster map back from a written file; empty if there is none.
+    public static HashMap<String, Integer> readAssignments(String filename) throws IOException {
+        HashMap<String, Integer> clusters = new HashMap<String, Integer>();
+        if (!new File(filename).exists()) {
+            return clusters;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("Cluster Assignments: ")) {
+                    continue;
+                }
+                for (String entry : line.substring("Cluster Assignments: ".length()).split(",")) {
+                    int split = entry.lastIndexOf(" - ");
+                    if (split < 0) {
+                        continue;
+                    }
+                    try {
+                        clusters.put(entry.substring(0, split).trim(),
+                                Integer.parseInt(entry.substring(split + 3).trim()));
+                    } catch (NumberFormatException e) {
+                        // Skip a damaged entry rather than the whole file.
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return clusters;
+    }
+}
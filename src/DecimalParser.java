@@ -0,0 +1,122 @@
+import java.util.Arrays;
+
+/**
+* DecimalParser.java
+*
+* Parses plain decimals such as "-1.442" or "12.013" straight out of a
+* CharSequence, without substrings or trimming copies. The digits are
+* gathered into a long, and when that long is below 2^53 and there are
+* at most 22 fraction digits the value is one division of two exactly
+* representable doubles, which IEEE arithmetic rounds correctly, so the
+* result is bit-for-bit what Double.parseDouble returns. Anything else
+* (more significant digits, exponents, NaN and so on) falls back to
+* Double.parseDouble on just that token, so accepted input, results and
+* NumberFormatExceptions are the same as before.
+*/
+public class DecimalParser {
+    private static final long EXACT_LIMIT = 1L << 53;
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    // Parses text[from, to) like Double.parseDouble(text.subSequence(from, to).toString()).
+    public static double parse(CharSequence text, int from, int to) {
+        // Double.parseDouble ignores surrounding whitespace and control characters.
+        while (from < to && text.charAt(from) <= ' ') {
+            from++;
+        }
+        while (to > from && text.charAt(to - 1) <= ' ') {
+            to--;
+        }
+
+        int i = from;
+        boolean negative = false;
+        if (i < to && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean point = false;
+        boolean exact = true;
+        for (; i < to; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (point) {
+                    fractionDigits++;
+                }
+                if (mantissa >= EXACT_LIMIT / 10) {
+                    exact = false;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                exact = false;
+                break;
+            }
+        }
+        if (!exact || digits == 0 || mantissa >= EXACT_LIMIT || fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(text.subSequence(from, to).toString());
+        }
+        double value = fractionDigits == 0 ? (double) mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    public static double parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    // Parses the comma-separated numbers in text[from, to). Blank tokens are dropped when skipBlanks is set;
+    // otherwise they throw, except for empty ones at the very end, which String.split would have dropped.
+    public static double[] parseList(CharSequence text, int from, int to, boolean skipBlanks) {
+        double[] values = new double[8];
+        int count = 0;
+        int end = to;
+        if (!skipBlanks) {
+            // Trailing empty tokens, as String.split drops them.
+            while (end > from && text.charAt(end - 1) == ',') {
+                end--;
+            }
+        }
+        int start = from;
+        while (start <= end) {
+            int comma = start;
+            while (comma < end && text.charAt(comma) != ',') {
+                comma++;
+            }
+            if (isBlank(text, start, comma)) {
+                if (!skipBlanks && (comma < end || count > 0 || start > from)) {
+                    throw new NumberFormatException("empty String");
+                }
+            } else {
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                values[count++] = parse(text, start, comma);
+            }
+            start = comma + 1;
+        }
+        return count == values.length ? values : Arrays.copyOf(values, count);
+    }
+
+    public static double[] parseList(CharSequence text, boolean skipBlanks) {
+        return parseList(text, 0, text.length(), skipBlanks);
+    }
+
+    private static boolean isBlank(CharSequence text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (text.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.*;
+
+/**
+* DecimalParserCheck.java
+*
+* Standalone check that DecimalParser agrees with Double.parseDouble, run
+* as "java DecimalParserCheck". Every case is parsed both ways, on its own
+* and embedded in a longer line, and must give the same bits or the same
+* NumberFormatException. The cases cover plain decimals, exponents, 15 or
+* more significant digits, subnormals, signed zeros, special values and
+* malformed text, plus a seeded sweep of random values printed at several
+* precisions. Lists are checked against String.split and parseDouble.
+* Each mismatch is printed, and the exit status is 1 if there were any.
+*/
+public class DecimalParserCheck {
+    private static final String[] CASES = {
+        // Plain decimals, signs and surrounding whitespace.
+        "0", "1", "-1.442", "12.013", "+3.5", ".5", "5.", "-.25", "  7.25 ", "\t-0.001\n", "100", "0.1", "0.2",
+        // Exponents.
+        "1e10", "1E-5", "-2.5e+3", "6.02214076e23", "1e22", "1e23", "1.7976931348623157e308", "1e400", "1e-400",
+        "-1e400", "0e0", "0.5E1",
+        // 15 or more significant digits, around and past the 2^53 exact limit.
+        "123456789012345", "1234567890123456", "12345678901234567", "9007199254740991", "9007199254740992",
+        "9007199254740993", "0.1234567890123456789", "3.141592653589793238", "0.30000000000000004",
+        "1234567890.12345678901234", "-99999999999999999999.5", "0.0000000000000000000001",
+        "0.00000000000000000000001", "1.00000000000000000000000000001",
+        // Subnormals and the edge of the normal range.
+        "4.9e-324", "4.9E-324", "2.4703282292062327e-324", "2.4703282292062328e-324", "1e-310", "-1e-310",
+        "2.2250738585072014E-308", "2.225073858507201E-308", "2.2250738585072011e-308",
+        // Signed zeros.
+        "0.0", "-0", "-0.0", "-0.000", "+0", "-0e5", "-.0",
+        // Special values and suffixes parseDouble accepts.
+        "NaN", "-NaN", "Infinity", "-Infinity", "+Infinity", "1d", "2.5f", "0x1p3", "0x1.8p1",
+        // Malformed text.
+        "", " ", "-", "+", ".", "-.", "1.2.3", "abc", "1,5", "--1", "+-1", "1e", "e5", "1e+", "1 2", "1..2",
+        "1.2e3.4", "infinity", "nan", "\u0661", "\uff11"
+    };
+    private static final String[] LISTS = {
+        "1,2,3", "1, 2.5 ,-3e2", "5.494, 5.470, 5.019, 4.422", "1,,2", ",1", "1,2,,", ",,", "1", " -0.0 ,0.0",
+        "1,x,2", "1, ,2", "9007199254740993,4.9e-324"
+    };
+    private static final int RANDOM_VALUES = 20000;
+
+    private static int checked;
+    private static int mismatches;
+
+    public static void main(String[] args) {
+        for (String text : CASES) {
+            check(text);
+        }
+
+        // Seeded sweep: printed doubles, and short decimals like the stored series, at several scales.
+        Random random = new Random(45);
+        for (int i = 0; i < RANDOM_VALUES; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            check(Double.toString(value));
+            double decimal = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(12) - 3);
+            check(Double.toString(decimal));
+            check(String.format(Locale.ROOT, "%." + random.nextInt(18) + "f", decimal));
+        }
+
+        for (String text : LISTS) {
+            checkList(text, false);
+            checkList(text, true);
+        }
+
+        System.out.println("Checked " + checked + " values; " + mismatches + " mismatches.");
+        if (mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Parses one string on its own and inside a longer line, against Double.parseDouble.
+    private static void check(String text) {
+        String expected = reference(text);
+        compare(text, expected, actual(text, 0, text.length(), text));
+        String line = "Ten Year Rent Growth: [" + text + "]|";
+        int from = line.indexOf('[') + 1;
+        compare(text + " (in line)", expected, actual(line, from, from + text.length(), text));
+    }
+
+    private static String reference(String text) {
+        try {
+            return bits(Double.parseDouble(text));
+        } catch (NumberFormatException e) {
+            return "NumberFormatException";
+        }
+    }
+
+    private static String actual(String line, int from, int to, String text) {
+        try {
+            return bits(DecimalParser.parse(line, from, to));
+        } catch (NumberFormatException e) {
+            return "NumberFormatException";
+        } catch (RuntimeException e) {
+            return e.getClass().getSimpleName() + " on \"" + text + "\"";
+        }
+    }
+
+    // Parses one list both ways; the reference splits on commas like the old code did.
+    private static void checkList(String text, boolean skipBlanks) {
+        String expected;
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (String token : text.split(",")) {
+                if (!(skipBlanks && token.trim().isEmpty())) {
+                    sb.append(bits(Double.parseDouble(token))).append(' ');
+                }
+            }
+            expected = sb.toString();
+        } catch (NumberFormatException e) {
+            expected = "NumberFormatException";
+        }
+
+        String actual;
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (double value : DecimalParser.parseList(text, skipBlanks)) {
+                sb.append(bits(value)).append(' ');
+            }
+            actual = sb.toString();
+        } catch (NumberFormatException e) {
+            actual = "NumberFormatException";
+        } catch (RuntimeException e) {
+            actual = e.getClass().getSimpleName();
+        }
+        compare("list \"" + text + "\"" + (skipBlanks ? " skipping blanks" : ""), expected, actual);
+    }
+
+    private static void compare(String label, String expected, String actual) {
+        checked++;
+        if (!expected.equals(actual)) {
+            mismatches++;
+            System.out.println("Mismatch for " + label + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    // Exact form of a parsed value: raw bits, so -0.0 and 0.0 differ, with the value for reading.
+    private static String bits(double value) {
+        return Long.toHexString(Double.doubleToRawLongBits(value)) + " (" + value + ")";
+    }
+}
@@ -0,0 +1,430 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+* IngestPipeline.java
+*
+* Bulk market import in three stages: one reader thread cuts the input
+* into numbered batches of lines, a pool of workers parses each batch,
+* computes every metric and formats the Markets.txt lines, and a single
+* writer appends the batches in input order. The writer appends to a
+* staged copy of the markets file that replaces it only once the whole
+* input has gone through, so a failed run leaves Markets.txt as it was
+* and never out of step with Rankings.txt. The stages are joined by
+* bounded queues, and a permit per batch in flight makes the reader wait
+* while the writer is behind, so memory stays at a fixed number of batches
+* however long the input is. Each stage counts its items, the time spent
+* working and the time spent waiting on a neighbour.
+*
+* Input lines use the Scenarios.txt layout:
+* "<Market>: <Family>: v1, v2, ... | <Family>: ...", one series per family.
+*/
+public class IngestPipeline {
+    private static final int BATCH_LINES = 256;
+    private static final long POLL_MILLIS = 50;
+    private static final int MAX_KEPT_ERRORS = 100;
+
+    // Counters for one stage.
+    public static class StageMetrics {
+        private final String name;
+        private long items;
+        private long busyNanos;
+        private long waitNanos;
+        private long elapsedNanos;
+
+        StageMetrics(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(long items, long busyNanos, long waitNanos) {
+            this.items += items;
+            this.busyNanos += busyNanos;
+            this.waitNanos += waitNanos;
+        }
+
+        synchronized void finish(long elapsedNanos) {
+            this.elapsedNanos = Math.max(this.elapsedNanos, elapsedNanos);
+        }
+
+        public synchronized String report() {
+            double seconds = Math.max(elapsedNanos, 1) / 1e9;
+            return name + ": " + items + " lines, " + Math.round(busyNanos / 1e6) + " ms working, "
+                    + Math.round(waitNanos / 1e6) + " ms waiting, " + Math.round(items / seconds) + " lines/s";
+        }
+    }
+
+    // A run of input lines and, once processed, their output.
+    private static class Batch {
+        final long sequence;
+        final long firstLine;
+        final ArrayList<String> lines;
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<Long> nameLines = new ArrayList<Long>();
+        final ArrayList<double[]> metrics = new ArrayList<double[]>();
+        final ArrayList<String> formatted = new ArrayList<String>();
+        final ArrayList<String> errors = new ArrayList<String>();
+        final ArrayList<Long> errorLines = new ArrayList<Long>();
+
+        Batch(long sequence, long firstLine, ArrayList<String> lines) {
+            this.sequence = sequence;
+            this.firstLine = firstLine;
+            this.lines = lines;
+        }
+
+        void error(long lineNumber, String message) {
+            errorLines.add(lineNumber);
+            errors.add(message);
+        }
+    }
+
+    // Marks the end of the input on the work queue and one finished worker on the output queue.
+    private static final Batch END = new Batch(-1, -1, new ArrayList<String>());
+
+    private final double[][] national;
+    private final Set<String> existing;
+    private final int workers;
+    private final StageMetrics readMetrics = new StageMetrics("Read");
+    private final StageMetrics computeMetrics = new StageMetrics("Parse and compute");
+    private final StageMetrics writeMetrics = new StageMetrics("Write");
+    private volatile boolean aborted;
+    private long added;
+    private long skipped;
+    private final ArrayList<String> errors = new ArrayList<String>();
+
+    // national is per family; markets already named in existing are skipped.
+    public IngestPipeline(double[][] national, Set<String> existing, int workers) {
+        this.national = national;
+        this.existing = existing;
+        this.workers = Math.max(1, workers);
+    }
+
+    // Streams input into the markets file; accepted gets each written market's name and metrics, in input order.
+    // The file changes only if the run succeeds; on an exception it is untouched and accepted's markets are void.
+    public void run(String inputFilename, String marketsFilename, BiConsumer<String, double[]> accepted)
+            throws IOException {
+        File target = new File(marketsFilename);
+        File staged = new File(marketsFilename + ".ingest");
+        if (target.exists()) {
+            Files.copy(target.toPath(), staged.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.deleteIfExists(staged.toPath());
+        }
+        boolean committed = false;
+        try {
+            runStages(inputFilename, staged.getPath(), accepted);
+            Files.move(staged.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+        } finally {
+            if (!committed) {
+                Files.deleteIfExists(staged.toPath());
+            }
+        }
+    }
+
+    private void runStages(String inputFilename, String marketsFilename, BiConsumer<String, double[]> accepted)
+            throws IOException {
+        BlockingQueue<Batch> work = new ArrayBlockingQueue<Batch>(workers * 2);
+        BlockingQueue<Batch> done = new ArrayBlockingQueue<Batch>(workers * 2);
+        Semaphore inFlight = new Semaphore(workers * 4 + 2);
+        IOException[] readFailure = new IOException[1];
+        long start = System.nanoTime();
+
+        BufferedReader reader = new BufferedReader(new FileReader(inputFilename), 1 << 16);
+        Thread readerThread = new Thread(() -> {
+            try {
+                readStage(reader, work, inFlight, start);
+            } catch (IOException e) {
+                readFailure[0] = e;
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing left to read.
+                }
+                // Always release the workers.
+                for (int w = 0; w < workers; w++) {
+                    offer(work, END);
+                }
+            }
+        }, "ingest-read");
+
+        ArrayList<Thread> pool = new ArrayList<Thread>();
+        for (int w = 0; w < workers; w++) {
+            pool.add(new Thread(() -> {
+                try {
+                    computeStage(work, done, start);
+                } finally {
+                    offer(done, END);
+                }
+            }, "ingest-compute-" + w));
+        }
+
+        readerThread.start();
+        for (Thread thread : pool) {
+            thread.start();
+        }
+        try {
+            writeStage(done, inFlight, marketsFilename, accepted, start);
+        } finally {
+            // A failed write has set aborted, so the other stages stop instead of staying blocked.
+            join(readerThread);
+            for (Thread thread : pool) {
+                join(thread);
+            }
+        }
+        if (readFailure[0] != null) {
+            throw readFailure[0];
+        }
+    }
+
+    private void readStage(BufferedReader reader, BlockingQueue<Batch> work, Semaphore inFlight, long start)
+            throws IOException {
+        long sequence = 0;
+        long lineNumber = 1;
+        while (!aborted) {
+            long t0 = System.nanoTime();
+            ArrayList<String> lines = new ArrayList<String>(BATCH_LINES);
+            String line;
+            while (lines.size() < BATCH_LINES && (line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            long t1 = System.nanoTime();
+            if (lines.isEmpty()) {
+                readMetrics.add(0, t1 - t0, 0);
+                break;
+            }
+            // Wait for a free slot, then hand the batch on.
+            if (!acquire(inFlight) || !offer(work, new Batch(sequence++, lineNumber, lines))) {
+                break;
+            }
+            readMetrics.add(lines.size(), t1 - t0, System.nanoTime() - t1);
+            lineNumber += lines.size();
+        }
+        readMetrics.finish(System.nanoTime() - start);
+    }
+
+    private void computeStage(BlockingQueue<Batch> work, BlockingQueue<Batch> done, long start) {
+        while (true) {
+            long t0 = System.nanoTime();
+            Batch batch = take(work);
+            long t1 = System.nanoTime();
+            if (batch == null || batch == END) {
+                computeMetrics.add(0, 0, t1 - t0);
+                break;
+            }
+            for (int i = 0; i < batch.lines.size(); i++) {
+                try {
+                    process(batch, batch.lines.get(i), batch.firstLine + i);
+                } catch (RuntimeException e) {
+                    // Keep the batch moving so its slot is freed; the line is reported as skipped.
+                    batch.error(batch.firstLine + i, "Line " + (batch.firstLine + i) + ": " + e);
+                }
+            }
+            long t2 = System.nanoTime();
+            if (!offer(done, batch)) {
+                break;
+            }
+            computeMetrics.add(batch.lines.size(), t2 - t1, (t1 - t0) + (System.nanoTime() - t2));
+        }
+        computeMetrics.finish(System.nanoTime() - start);
+    }
+
+    // Parses one input line, computes its metrics and formats its Markets.txt line.
+    private void process(Batch batch, String line, long lineNumber) {
+        if (line.trim().isEmpty()) {
+            return;
+        }
+        int colon = line.indexOf(':');
+        String name = colon < 0 ? "" : line.substring(0, colon).trim();
+        if (name.isEmpty()) {
+            batch.error(lineNumber, "Line " + lineNumber + ": missing market name.");
+            return;
+        }
+        double[][] series = new double[MetricEngine.familyCount()][];
+        for (String part : line.substring(colon + 1).split("\\|")) {
+            int split = part.indexOf(':');
+            int family = split < 0 ? -1 : MetricEngine.familyIndex(part.substring(0, split).trim());
+            if (family < 0) {
+                batch.error(lineNumber, "Line " + lineNumber + " (" + name + "): unknown or missing family.");
+                return;
+            }
+            series[family] = parseSeries(part, split + 1);
+            if (series[family] == null) {
+                batch.error(lineNumber, "Line " + lineNumber + " (" + name + "): invalid " + MetricEngine.family(family)
+                        + " series.");
+                return;
+            }
+        }
+        // National-relative stats need each series to match the length of National.txt.
+        int[] overlaps = MetricEngine.overlaps(series, national);
+        for (int f = 0; f < series.length; f++) {
+            if (series[f] == null || overlaps[f] == 0) {
+                batch.error(lineNumber, "Line " + lineNumber + " (" + name + "): " + MetricEngine.family(f)
+                        + " series is missing or its length differs from National.txt.");
+                return;
+            }
+        }
+        double[] metrics = MetricEngine.compute(series, national);
+        batch.names.add(name);
+        batch.nameLines.add(lineNumber);
+        batch.metrics.add(metrics);
+        batch.formatted.add(MetricEngine.formatLine(name, metrics, series, overlaps));
+    }
+
+    // Comma-separated numbers from an offset on; null on a blank or malformed token, as for typed-in series.
+    private static double[] parseSeries(String text, int from) {
+        try {
+            return DecimalParser.parseList(text, from, text.length(), false);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Appends batches strictly in sequence order; early arrivals wait in a map bounded by the in-flight permits.
+    private void writeStage(BlockingQueue<Batch> done, Semaphore inFlight, String marketsFilename,
+            BiConsumer<String, double[]> accepted, long start) throws IOException {
+        HashMap<Long, Batch> pending = new HashMap<Long, Batch>();
+        HashSet<String> seen = new HashSet<String>(existing);
+        long next = 0;
+        int finished = 0;
+        BufferedWriter out = new BufferedWriter(new FileWriter(marketsFilename, true), 1 << 16);
+        try {
+            while (finished < workers) {
+                long t0 = System.nanoTime();
+                Batch batch = take(done);
+                long t1 = System.nanoTime();
+                if (batch == null) {
+                    break;
+                }
+                long lines = 0;
+                if (batch == END) {
+                    finished++;
+                } else {
+                    pending.put(batch.sequence, batch);
+                    for (Batch ready = pending.remove(next); ready != null; ready = pending.remove(next)) {
+                        lines += write(ready, out, seen, accepted);
+                        inFlight.release();
+                        next++;
+                    }
+                }
+                writeMetrics.add(lines, System.nanoTime() - t1, t1 - t0);
+            }
+        } catch (IOException | RuntimeException e) {
+            aborted = true;
+            throw e;
+        } finally {
+            out.close();
+            writeMetrics.finish(System.nanoTime() - start);
+        }
+    }
+
+    // Writes one batch; skipped lines are reported in input order alongside the accepted ones.
+    private long write(Batch batch, BufferedWriter out, HashSet<String> seen, BiConsumer<String, double[]> accepted)
+            throws IOException {
+        int e = 0;
+        for (int i = 0; i < batch.names.size(); i++) {
+            long lineNumber = batch.nameLines.get(i);
+            for (; e < batch.errors.size() && batch.errorLines.get(e) < lineNumber; e++) {
+                skip(batch.errors.get(e));
+            }
+            String name = batch.names.get(i);
+            // The first line per name wins, as in Markets.txt itself.
+            if (!seen.add(name)) {
+                skip("Line " + lineNumber + " (" + name + "): market already exists.");
+                continue;
+            }
+            out.write(batch.formatted.get(i));
+            out.newLine();
+            accepted.accept(name, batch.metrics.get(i));
+            added++;
+        }
+        for (; e < batch.errors.size(); e++) {
+            skip(batch.errors.get(e));
+        }
+        return batch.lines.size();
+    }
+
+    // Counts a skipped line; only the first few reasons are kept so a bad input can't grow memory.
+    private void skip(String message) {
+        skipped++;
+        if (errors.size() < MAX_KEPT_ERRORS) {
+            errors.add(message);
+        }
+    }
+
+    // Blocking queue operations that give up once the pipeline is aborted.
+    private boolean offer(BlockingQueue<Batch> queue, Batch batch) {
+        try {
+            while (!queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (aborted) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Batch take(BlockingQueue<Batch> queue) {
+        try {
+            Batch batch;
+            while ((batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                if (aborted) {
+                    return null;
+                }
+            }
+            return batch;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private boolean acquire(Semaphore permits) {
+        try {
+            while (!permits.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (aborted) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getAdded() {
+        return added;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    // Reasons for the first skipped lines, in input order.
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public List<StageMetrics> getMetrics() {
+        return Arrays.asList(readMetrics, computeMetrics, writeMetrics);
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+
+/**
+* LazyMarket.java
+*
+* Market handle over one raw Markets.txt line. Only the name is known up
+* front; the metrics are decoded on the first metric access and each
+* series is decoded on its own first access.
+*/
+public class LazyMarket extends Market {
+    private final String[] marketDetails;
+    private boolean metricsLoaded;
+    private boolean overlapsLoaded;
+    private final boolean[] seriesLoaded = new boolean[MetricEngine.familyCount()];
+
+    public LazyMarket(String marketName, String line) {
+        super(marketName, null, null);
+        this.marketDetails = line.split("\\|");
+    }
+
+    // Decodes the stat sections once.
+    private void ensureMetrics() {
+        if (metricsLoaded) {
+            return;
+        }
+        metricsLoaded = true;
+        double[] metrics = MetricEngine.parseMetrics(marketDetails);
+        if (metrics == null) {
+            System.out.println("Could not decode metrics for market: " + getMarketName());
+            return;
+        }
+        for (int i = 0; i < metrics.length; i++) {
+            super.setStat(MetricEngine.statOf(i), MetricEngine.familyOf(i), metrics[i]);
+        }
+    }
+
+    // Metric access decodes on first use; setters decode first so a later read can't clobber them.
+
+    @Override
+    public double getStat(int stat, int family) {
+        ensureMetrics();
+        return super.getStat(stat, family);
+    }
+
+    @Override
+    public void setStat(int stat, int family, double value) {
+        ensureMetrics();
+        super.setStat(stat, family, value);
+    }
+
+    // Each series decodes on its first read; a set one is never decoded over.
+
+    @Override
+    public ArrayList<Double> getSeries(int family) {
+        if (family >= 0 && !seriesLoaded[family]) {
+            seriesLoaded[family] = true;
+            double[] values = MetricEngine.parseSeries(marketDetails, family);
+            if (values != null) {
+                super.setSeries(family, Volatility.toDoubleList(values));
+            }
+        }
+        return super.getSeries(family);
+    }
+
+    @Override
+    public void setSeries(int family, ArrayList<Double> values) {
+        if (family >= 0) {
+            seriesLoaded[family] = true;
+        }
+        super.setSeries(family, values);
+    }
+
+    // Shared-period counts decode on first use too.
+
+    @Override
+    public int[] getOverlaps() {
+        ensureOverlaps();
+        return super.getOverlaps();
+    }
+
+    @Override
+    public void setOverlaps(int[] overlaps) {
+        overlapsLoaded = true;
+        super.setOverlaps(overlaps);
+    }
+
+    private void ensureOverlaps() {
+        if (!overlapsLoaded) {
+            overlapsLoaded = true;
+            super.setOverlaps(MetricEngine.parseOverlaps(marketDetails));
+        }
+    }
+}
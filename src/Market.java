@@ -1,128 +1,208 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Market{
-  private double stdDevVac,stdDevRG,stdDevCap,cvVacancy,cvRG,cvCap,betaVac,betaRG,betaCap;
-  private ArrayList<Double> tenYrRG = new ArrayList<Double>();
-  private ArrayList<Double> tenYrCap = new ArrayList<Double>();
-  private ArrayList<Double> tenYrVac = new ArrayList<Double>();
+  // Metrics indexed by MetricEngine.index(stat, family); series by family.
+  private double[] metrics;
+  private ArrayList<ArrayList<Double>> series;
   private String marketName;
+  // Periods each family's series shared with the national series when its metrics were computed;
+  // null while unknown, as for lines written before the count was recorded, and -1 for one unknown family.
+  private int[] overlaps;
 
-  public Market(String marketName, double stdDevVac, double stdDevRG, double stdDevCap, double cvVacancy, double cvRG, double cvCap, double betaVac, double betaRG, double betaCap, ArrayList<Double> tenYrRG, ArrayList<Double> tenYrCap, ArrayList<Double> tenYrVac){
+  public Market(String marketName, double[] metrics, ArrayList<ArrayList<Double>> series){
     this.marketName = marketName;
-    this.stdDevVac = stdDevVac;
-    this.stdDevRG = stdDevRG;
-    this.stdDevCap = stdDevCap;
-    this.cvVacancy = cvVacancy;
-    this.cvRG = cvRG;
-    this.cvCap = cvCap;
-    this.betaVac = betaVac;
-    this.betaRG = betaRG;
-    this.betaCap = betaCap;
-    this.tenYrRG = tenYrRG;
-    this.tenYrCap = tenYrCap;
-    this.tenYrVac = tenYrVac;
-  }
-  
+    this.metrics = metrics != null ? metrics : new double[MetricEngine.metricCount()];
+    this.series = new ArrayList<ArrayList<Double>>();
+    for (int f = 0; f < MetricEngine.familyCount(); f++) {
+      this.series.add(series != null && f < series.size() ? series.get(f) : null);
+    }
+  }
+
+  public Market(String marketName, double stdDevVac, double stdDevRG, double stdDevCap, double cvVacancy, double cvRG, double cvCap, double betaVac, double betaRG, double betaCap, ArrayList<Double> tenYrRG, ArrayList<Double> tenYrCap, ArrayList<Double> tenYrVac){
+    this(marketName, null, null);
+    setStat(MetricEngine.SD, "Vacancy", stdDevVac);
+    setStat(MetricEngine.SD, "Rent Growth", stdDevRG);
+    setStat(MetricEngine.SD, "Cap Rate", stdDevCap);
+    setStat(MetricEngine.CV, "Vacancy", cvVacancy);
+    setStat(MetricEngine.CV, "Rent Growth", cvRG);
+    setStat(MetricEngine.CV, "Cap Rate", cvCap);
+    setStat(MetricEngine.BETA, "Vacancy", betaVac);
+    setStat(MetricEngine.BETA, "Rent Growth", betaRG);
+    setStat(MetricEngine.BETA, "Cap Rate", betaCap);
+    setSeries(MetricEngine.familyIndex("Rent Growth"), tenYrRG);
+    setSeries(MetricEngine.familyIndex("Cap Rate"), tenYrCap);
+    setSeries(MetricEngine.familyIndex("Vacancy"), tenYrVac);
+  }
+
+  // Generic accessors
+
+  public double getStat(int stat, int family){
+    if (family < 0) {
+      return 0;
+    }
+    return metrics[MetricEngine.index(stat, family)];
+  }
+
+  public void setStat(int stat, int family, double value){
+    if (family >= 0) {
+      metrics[MetricEngine.index(stat, family)] = value;
+    }
+  }
+
+  // Copy of every metric in engine index order.
+  public double[] getMetrics(){
+    double[] all = new double[metrics.length];
+    for (int i = 0; i < all.length; i++) {
+      all[i] = getStat(MetricEngine.statOf(i), MetricEngine.familyOf(i));
+    }
+    return all;
+  }
+
+  public ArrayList<Double> getSeries(int family){
+    if (family < 0 || series.get(family) == null) {
+      return new ArrayList<Double>();
+    }
+    return series.get(family);
+  }
+
+  public void setSeries(int family, ArrayList<Double> values){
+    if (family >= 0) {
+      series.set(family, values);
+    }
+  }
+
+  public int[] getOverlaps(){
+    return overlaps == null ? null : overlaps.clone();
+  }
+
+  public void setOverlaps(int[] overlaps){
+    this.overlaps = overlaps == null ? null : overlaps.clone();
+  }
+
+  // Records one family's count; the other families stay unknown (-1) until set.
+  public void setOverlap(int family, int periods){
+    if (family < 0) {
+      return;
+    }
+    int[] updated = getOverlaps();
+    if (updated == null) {
+      updated = new int[MetricEngine.familyCount()];
+      Arrays.fill(updated, -1);
+    }
+    updated[family] = periods;
+    setOverlaps(updated);
+  }
+
+  private double getStat(int stat, String family){
+    return getStat(stat, MetricEngine.familyIndex(family));
+  }
+
+  private void setStat(int stat, String family, double value){
+    setStat(stat, MetricEngine.familyIndex(family), value);
+  }
+
   // Getters
 
   public ArrayList<Double> getTenYrRG(){
-    return tenYrRG;
+    return getSeries(MetricEngine.familyIndex("Rent Growth"));
   }
 
   public ArrayList<Double> getTenYrCap(){
-    return tenYrCap;
+    return getSeries(MetricEngine.familyIndex("Cap Rate"));
   }
 
   public ArrayList<Double> getTenYrVac(){
-    return tenYrVac;
+    return getSeries(MetricEngine.familyIndex("Vacancy"));
   }
 
   public String getMarketName(){
     return marketName;
   }
   public double getStdDevVac(){
-    return stdDevVac;
+    return getStat(MetricEngine.SD, "Vacancy");
   }
 
   public double getStdDevRG(){
-    return stdDevRG;
+    return getStat(MetricEngine.SD, "Rent Growth");
   }
 
   public double getStdDevCap(){
-    return stdDevCap;
+    return getStat(MetricEngine.SD, "Cap Rate");
   }
 
   public double getCVVacancy(){
-    return cvVacancy;
+    return getStat(MetricEngine.CV, "Vacancy");
   }
 
   public double getCVRG(){
-    return cvRG;
+    return getStat(MetricEngine.CV, "Rent Growth");
   }
 
   public double getCVCap(){
-    return cvCap;
+    return getStat(MetricEngine.CV, "Cap Rate");
   }
 
   public double getBetaVac(){
-    return betaVac;
+    return getStat(MetricEngine.BETA, "Vacancy");
   }
 
   public double getBetaRG(){
-    return betaRG;
+    return getStat(MetricEngine.BETA, "Rent Growth");
   }
 
   public double getBetaCap(){
-    return betaCap;
+    return getStat(MetricEngine.BETA, "Cap Rate");
   }
-  
+
   //Setters
 
   public void setTenYrRG(ArrayList<Double> tenYrRG){
-    this.tenYrRG = tenYrRG;
+    setSeries(MetricEngine.familyIndex("Rent Growth"), tenYrRG);
   }
 
   public void setTenYrCap(ArrayList<Double> tenYrCap){
-    this.tenYrCap = tenYrCap;
+    setSeries(MetricEngine.familyIndex("Cap Rate"), tenYrCap);
   }
+
   public void setTenYrVac(ArrayList<Double> tenYrVac){
-    this.tenYrVac = tenYrVac;
+    setSeries(MetricEngine.familyIndex("Vacancy"), tenYrVac);
   }
 
   public void setStdDevVac(double stdDevVac){
-    this.stdDevVac = stdDevVac;
+    setStat(MetricEngine.SD, "Vacancy", stdDevVac);
   }
 
   public void setStdDevRG(double stdDevRG){
-    this.stdDevRG = stdDevRG;
+    setStat(MetricEngine.SD, "Rent Growth", stdDevRG);
   }
 
   public void setStdDevCap(double stdDevCap){
-    this.stdDevCap = stdDevCap;
+    setStat(MetricEngine.SD, "Cap Rate", stdDevCap);
   }
-  
+
   public void setCVVacancy(double cvVacancy){
-    this.cvVacancy = cvVacancy;
+    setStat(MetricEngine.CV, "Vacancy", cvVacancy);
   }
 
   public void setCVRG(double cvRG){
-    this.cvRG = cvRG;
+    setStat(MetricEngine.CV, "Rent Growth", cvRG);
   }
 
   public void setCVCap(double cvCap){
-    this.cvCap = cvCap;
+    setStat(MetricEngine.CV, "Cap Rate", cvCap);
   }
 
   public void setBetaVac(double betaVac){
-    this.betaVac = betaVac;
+    setStat(MetricEngine.BETA, "Vacancy", betaVac);
   }
 
   public void setBetaRG(double betaRG){
-    this.betaRG = betaRG;
+    setStat(MetricEngine.BETA, "Rent Growth", betaRG);
   }
 
   public void setBetaCap(double betaCap){
-    this.betaCap = betaCap;
+    setStat(MetricEngine.BETA, "Cap Rate", betaCap);
   }
 
 }
@@ -0,0 +1,154 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+* MarketCache.java
+*
+* Bounded LRU cache of LazyMarket handles over Markets.txt.
+* A name-to-byte-offset index lets a miss read exactly one line, and the
+* LRU bound keeps decoded markets from piling up as the file grows.
+* Evicted or invalidated handles are only dropped, never torn down, since
+* a caller may still be reading or editing one.
+*/
+public class MarketCache {
+    private final String filename;
+    private final int capacity;
+    private final Consumer<Market> onEvict;
+
+    // Byte offset of each market line, rebuilt when the file changes.
+    private HashMap<String, Long> index;
+    private long indexedLength = -1;
+    private long indexedModified = -1;
+
+    private final LinkedHashMap<String, LazyMarket> cache;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public MarketCache(String filename, int capacity, Consumer<Market> onEvict) {
+        this.filename = filename;
+        this.capacity = Math.max(1, capacity);
+        this.onEvict = onEvict;
+        // Access order makes iteration order least-recently-used first.
+        this.cache = new LinkedHashMap<String, LazyMarket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LazyMarket> eldest) {
+                if (size() > MarketCache.this.capacity) {
+                    evictions++;
+                    drop(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // Returns the handle for a market, or null when the file has no such line.
+    public synchronized LazyMarket get(String marketName) throws IOException {
+        if (marketName == null || marketName.trim().isEmpty()) {
+            return null;
+        }
+        String key = marketName.trim();
+        refreshIndex();
+
+        LazyMarket market = cache.get(key);
+        if (market != null) {
+            hits++;
+            return market;
+        }
+        misses++;
+
+        Long offset = index.get(key);
+        if (offset == null) {
+            return null;
+        }
+        String line = readLineAt(offset);
+        if (line == null || !line.contains(":")) {
+            return null;
+        }
+        market = new LazyMarket(line.split(":", 2)[0], line);
+        cache.put(key, market);
+        return market;
+    }
+
+    // Drops the index and every cached handle after Markets.txt is rewritten.
+    public synchronized void invalidate() {
+        index = null;
+        for (LazyMarket market : cache.values()) {
+            drop(market);
+        }
+        cache.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized String stats() {
+        return "Market cache: " + cache.size() + "/" + capacity + " cached, " + hits + " hits, " + misses
+                + " misses, " + evictions + " evictions";
+    }
+
+    private void drop(LazyMarket market) {
+        if (onEvict != null) {
+            onEvict.accept(market);
+        }
+    }
+
+    // Rebuilds the offset index if it is missing or the file changed underneath it.
+    private void refreshIndex() throws IOException {
+        File file = new File(filename);
+        long length = file.exists() ? file.length() : 0;
+        long modified = file.exists() ? file.lastModified() : 0;
+        if (index != null && length == indexedLength && modified == indexedModified) {
+            return;
+        }
+        if (index != null) {
+            invalidate();
+        }
+
+        // Line-aligned byte ranges are scanned in parallel; the first occurrence of a name still wins.
+        index = ChunkedFileReader.indexLineNames(filename);
+        indexedLength = length;
+        indexedModified = modified;
+    }
+
+    // Reads one full line starting at a byte offset.
+    private String readLineAt(long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(filename, "r");
+        try {
+            raf.seek(offset);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            outer:
+            while ((read = raf.read(chunk)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (chunk[i] == '\n') {
+                        line.write(chunk, 0, i);
+                        break outer;
+                    }
+                }
+                line.write(chunk, 0, read);
+            }
+            String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+            return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.*;
+
+/**
+* MarketDictionary.java
+*
+* Assigns every market name a compact int ID for the session, in the order
+* names are first seen. Indexes keyed by market hold these IDs in plain int
+* arrays instead of hashing name strings, and compare or join markets by
+* ID; the name is looked up again only when something is printed. IDs are
+* never reused or reassigned, so an index that outlives a market simply
+* stops finding it.
+*/
+public class MarketDictionary {
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private final ArrayList<String> names = new ArrayList<String>();
+
+    // ID for a name, assigning the next one if the name is new.
+    public synchronized int id(String marketName) {
+        String key = marketName.trim();
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = names.size();
+            ids.put(key, id);
+            names.add(key);
+        }
+        return id;
+    }
+
+    // ID for a name already seen, or -1.
+    public synchronized int find(String marketName) {
+        if (marketName == null) {
+            return -1;
+        }
+        Integer id = ids.get(marketName.trim());
+        return id == null ? -1 : id;
+    }
+
+    public synchronized String name(int id) {
+        return names.get(id);
+    }
+
+    // Number of IDs handed out so far; every ID is below this.
+    public synchronized int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.*;
+import java.util.*;
+
+/**
+* MarketHierarchy.java
+*
+* Metro/submarket tree from Hierarchy.txt, one line per roll-up:
+* "Atlanta: Buckhead - 1250000, Sandy Springs - 980000, ...", where the
+* number is the child's inventory weight. A roll-up's series is the
+* inventory-weighted mean of its children's series, aligned on the most
+* recent point so a shorter child only covers the tail. Each roll-up keeps
+* its weighted sums per point, so a changed child only swaps its own
+* contribution and re-derives its ancestors; the rest of the tree is
+* untouched. Roll-ups may themselves be children of a larger roll-up.
+*/
+public class MarketHierarchy {
+    private final LinkedHashMap<String, ArrayList<String>> children = new LinkedHashMap<String, ArrayList<String>>();
+    private final HashMap<String, String> parents = new HashMap<String, String>();
+    private final HashMap<String, Double> weights = new HashMap<String, Double>();
+
+    // Current series per market and family: leaves as stored, roll-ups as derived.
+    private final HashMap<String, double[][]> series = new HashMap<String, double[][]>();
+    // Per roll-up and family: weighted sum and total weight per point, aligned on the last point.
+    private final HashMap<String, double[][]> weightedSums = new HashMap<String, double[][]>();
+    private final HashMap<String, double[][]> weightTotals = new HashMap<String, double[][]>();
+    private boolean loaded;
+
+    // Declares a child under a roll-up; a non-positive weight falls back to 1.
+    public void addChild(String parent, String child, double weight) {
+        String previous = parents.get(child);
+        if (previous != null) {
+            children.get(previous).remove(child);
+        }
+        children.computeIfAbsent(parent, p -> new ArrayList<String>()).add(child);
+        parents.put(child, parent);
+        weights.put(child, weight > 0 ? weight : 1);
+    }
+
+    public boolean isEmpty() {
+        return children.isEmpty();
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void setLoaded() {
+        loaded = true;
+    }
+
+    public boolean contains(String marketName) {
+        return parents.containsKey(marketName) || children.containsKey(marketName);
+    }
+
+    public boolean isRollup(String marketName) {
+        return children.containsKey(marketName);
+    }
+
+    public String getParent(String marketName) {
+        return parents.get(marketName);
+    }
+
+    public ArrayList<String> getChildren(String marketName) {
+        ArrayList<String> list = children.get(marketName);
+        return list == null ? new ArrayList<String>() : new ArrayList<String>(list);
+    }
+
+    public double getWeight(String marketName) {
+        Double weight = weights.get(marketName);
+        return weight == null ? 1 : weight;
+    }
+
+    // Every roll-up, children before their parents.
+    public ArrayList<String> rollupOrder() {
+        ArrayList<String> order = new ArrayList<String>();
+        HashSet<String> visited = new HashSet<String>();
+        for (String rollup : children.keySet()) {
+            visit(rollup, visited, order);
+        }
+        return order;
+    }
+
+    private void visit(String rollup, HashSet<String> visited, ArrayList<String> order) {
+        if (!visited.add(rollup)) {
+            return;
+        }
+        for (String child : children.get(rollup)) {
+            if (children.containsKey(child)) {
+                visit(child, visited, order);
+            }
+        }
+        order.add(rollup);
+    }
+
+    // Derived or stored series of one market family; null if nothing covers it.
+    public double[] getSeries(String marketName, int family) {
+        double[][] perFamily = series.get(marketName);
+        return perFamily == null || perFamily[family] == null ? null : perFamily[family].clone();
+    }
+
+    // Records a leaf series without touching its ancestors; follow with rollUpAll().
+    public void put(String marketName, int family, double[] values) {
+        if (isRollup(marketName)) {
+            return;
+        }
+        double[] old = slot(marketName)[family];
+        slot(marketName)[family] = values == null ? null : values.clone();
+        contribute(marketName, family, old, values);
+    }
+
+    // Derives every roll-up from its children, bottom-up.
+    public void rollUpAll() {
+        for (String rollup : rollupOrder()) {
+            for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                double[] old = slot(rollup)[f];
+                double[] derived = derive(rollup, f);
+                slot(rollup)[f] = derived;
+                contribute(rollup, f, old, derived);
+            }
+        }
+    }
+
+    // Replaces one leaf series (null drops it) and re-derives only its ancestors.
+    // Returns the ancestors that were re-derived, nearest first.
+    public ArrayList<String> update(String marketName, int family, double[] values) {
+        ArrayList<String> changed = new ArrayList<String>();
+        if (isRollup(marketName)) {
+            return changed;
+        }
+        put(marketName, family, values);
+        for (String rollup = parents.get(marketName); rollup != null; rollup = parents.get(rollup)) {
+            double[] old = slot(rollup)[family];
+            double[] derived = derive(rollup, family);
+            slot(rollup)[family] = derived;
+            contribute(rollup, family, old, derived);
+            changed.add(rollup);
+        }
+        return changed;
+    }
+
+    // Swaps one child's weighted contribution in its parent's running sums.
+    private void contribute(String child, int family, double[] old, double[] values) {
+        String parent = parents.get(child);
+        if (parent == null) {
+            return;
+        }
+        double weight = getWeight(child);
+        if (old != null) {
+            accumulate(parent, family, old, -weight);
+        }
+        if (values != null) {
+            accumulate(parent, family, values, weight);
+        }
+    }
+
+    private void accumulate(String parent, int family, double[] values, double weight) {
+        double[][] sums = weightedSums.computeIfAbsent(parent, p -> new double[MetricEngine.familyCount()][]);
+        double[][] totals = weightTotals.computeIfAbsent(parent, p -> new double[MetricEngine.familyCount()][]);
+        sums[family] = grow(sums[family], values.length);
+        totals[family] = grow(totals[family], values.length);
+
+        // Right-align so the child's last point lands on the roll-up's last point.
+        int offset = sums[family].length - values.length;
+        for (int i = 0; i < values.length; i++) {
+            sums[family][offset + i] += weight * values[i];
+            totals[family][offset + i] += weight;
+        }
+    }
+
+    // Pads the front of a right-aligned array so it holds at least length points.
+    private static double[] grow(double[] values, int length) {
+        if (values == null) {
+            return new double[length];
+        }
+        if (values.length >= length) {
+            return values;
+        }
+        double[] grown = new double[length];
+        System.arraycopy(values, 0, grown, length - values.length, values.length);
+        return grown;
+    }
+
+    // Weighted mean per point, from the first point any child covers.
+    private double[] derive(String rollup, int family) {
+        double[][] sums = weightedSums.get(rollup);
+        double[][] totals = weightTotals.get(rollup);
+        if (sums == null || sums[family] == null) {
+            return null;
+        }
+        double[] sum = sums[family];
+        double[] total = totals[family];
+        int first = 0;
+        while (first < total.length && total[first] <= 1e-9) {
+            first++;
+        }
+        if (first == total.length) {
+            return null;
+        }
+        double[] derived = new double[total.length - first];
+        for (int i = first; i < total.length; i++) {
+            derived[i - first] = sum[i] / total[i];
+        }
+        return derived;
+    }
+
+    private double[][] slot(String marketName) {
+        return series.computeIfAbsent(marketName, m -> new double[MetricEngine.familyCount()][]);
+    }
+
+    // Reads the tree; an absent file is an empty hierarchy.
+    public static MarketHierarchy load(String filename) throws IOException {
+        MarketHierarchy hierarchy = new MarketHierarchy();
+        if (!new File(filename).exists()) {
+            return hierarchy;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String parent = line.substring(0, colon).trim();
+                for (String entry : line.substring(colon + 1).split(",")) {
+                    if (entry.trim().isEmpty()) {
+                        continue;
+                    }
+                    int split = entry.lastIndexOf(" - ");
+                    String child = split < 0 ? entry.trim() : entry.substring(0, split).trim();
+                    double weight = 1;
+                    if (split >= 0) {
+                        try {
+                            weight = Double.parseDouble(entry.substring(split + 3).trim());
+                        } catch (NumberFormatException e) {
+                            System.out.println("Invalid inventory for " + child + " in " + filename);
+                        }
+                    }
+                    if (child.equals(parent) || hierarchy.isAncestor(child, parent)) {
+                        System.out.println("Ignoring " + child + " under " + parent + ": it would form a cycle.");
+                        continue;
+                    }
+                    hierarchy.addChild(parent, child, weight);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return hierarchy;
+    }
+
+    // Whether candidate sits above marketName in the tree.
+    private boolean isAncestor(String candidate, String marketName) {
+        for (String p = parents.get(marketName); p != null; p = parents.get(p)) {
+            if (p.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,642 @@
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
+
+/**
+* MetricEngine.java
+*
+* Generic engine over N metric families (Vacancy, Rent Growth, Cap Rate, ...)
+* and M statistics (Standard Deviation, CV, Beta, plus downside, drawdown,
+* shape and tracking measures). Every per-market metric
+* lives in one flat double[] indexed by index(stat, family), and ranking
+* categories use the same index, so callers loop instead of branching.
+* Families come from Families.txt (one name per line) when it exists.
+*/
+public class MetricEngine {
+    // Statistic indexes.
+    public static final int SD = 0;
+    public static final int CV = 1;
+    public static final int BETA = 2;
+    public static final int SEMIDEVIATION = 3;
+    public static final int MAX_DRAWDOWN = 4;
+    public static final int SKEWNESS = 5;
+    public static final int KURTOSIS = 6;
+    public static final int CORRELATION = 7;
+    public static final int TRACKING_ERROR = 8;
+
+    // Statistics every Rankings.txt has carried; the rest appear after a --migrate run.
+    private static final int CORE_STATS = 3;
+
+    // Ranking label and Markets.txt section heading per statistic.
+    private static final String[] STAT_LABELS = {"Standard Deviation", "CV", "Beta", "Semideviation",
+            "Max Drawdown", "Skewness", "Kurtosis", "Correlation", "Tracking Error"};
+    private static final String[] STAT_SECTIONS = {"Standard Deviation of: ", "Coefficient of variation of: ",
+            "Beta compared to the national index of: ", "Downside semideviation of: ", "Max drawdown of: ",
+            "Skewness of: ", "Excess kurtosis of: ", "Correlation to the national index of: ",
+            "Tracking error to the national index of: "};
+
+    // Markets.txt section holding, per family, the periods the national-relative statistics cover.
+    private static final String OVERLAP_SECTION = "Periods shared with the national index of: ";
+
+    // Statistic order of the Rankings.txt lines and the per-market views.
+    public static final int[] DISPLAY_ORDER = {CV, BETA, SD, SEMIDEVIATION, MAX_DRAWDOWN, SKEWNESS, KURTOSIS,
+            CORRELATION, TRACKING_ERROR};
+
+    // Storage order of the families in Markets.txt.
+    private static final String[] DEFAULT_FAMILIES = {"Vacancy", "Rent Growth", "Cap Rate"};
+    private static final String[] FAMILIES = loadFamilies("Families.txt");
+
+    // Order Add prompts for the families and order of the Update menu letters, as they have always run;
+    // configured families not listed here follow in storage order.
+    private static final String[] PROMPT_ORDER = {"Rent Growth", "Vacancy", "Cap Rate"};
+    private static final String[] MENU_ORDER = {"Rent Growth", "Cap Rate", "Vacancy"};
+
+    public static int familyCount() {
+        return FAMILIES.length;
+    }
+
+    public static int statCount() {
+        return STAT_LABELS.length;
+    }
+
+    // Number of metrics per market, and of ranking categories.
+    public static int metricCount() {
+        return FAMILIES.length * STAT_LABELS.length;
+    }
+
+    public static String family(int family) {
+        return FAMILIES[family];
+    }
+
+    // Family indices in the order Add prompts for their series.
+    public static int[] promptOrder() {
+        return orderedFamilies(PROMPT_ORDER);
+    }
+
+    // Family indices in the order of the Update menu letters A, B, C, ...
+    public static int[] menuOrder() {
+        return orderedFamilies(MENU_ORDER);
+    }
+
+    // Configured families named in a leading list first, in its order, then the rest in storage order.
+    private static int[] orderedFamilies(String[] leading) {
+        int[] order = new int[FAMILIES.length];
+        boolean[] placed = new boolean[FAMILIES.length];
+        int count = 0;
+        for (String name : leading) {
+            int f = familyIndex(name);
+            if (f >= 0 && !placed[f]) {
+                placed[f] = true;
+                order[count++] = f;
+            }
+        }
+        for (int f = 0; f < FAMILIES.length; f++) {
+            if (!placed[f]) {
+                order[count++] = f;
+            }
+        }
+        return order;
+    }
+
+    public static String statLabel(int stat) {
+        return STAT_LABELS[stat];
+    }
+
+    public static String statSection(int stat) {
+        return STAT_SECTIONS[stat];
+    }
+
+    public static boolean isCore(int stat) {
+        return stat < CORE_STATS;
+    }
+
+    // Statistics that change when National.txt does.
+    public static boolean isNationalRelative(int stat) {
+        return stat == BETA || stat == CORRELATION || stat == TRACKING_ERROR;
+    }
+
+    // Family index by name, or -1 if it isn't configured.
+    public static int familyIndex(String name) {
+        if (name == null) {
+            return -1;
+        }
+        for (int f = 0; f < FAMILIES.length; f++) {
+            if (FAMILIES[f].equalsIgnoreCase(name.trim())) {
+                return f;
+            }
+        }
+        return -1;
+    }
+
+    // Flat metric and ranking category index.
+    public static int index(int stat, int family) {
+        return stat * FAMILIES.length + family;
+    }
+
+    public static int statOf(int index) {
+        return index / FAMILIES.length;
+    }
+
+    public static int familyOf(int index) {
+        return index % FAMILIES.length;
+    }
+
+    // "CV Rent Growth", "Beta Vacancy", ...
+    public static String metricLabel(int index) {
+        return STAT_LABELS[statOf(index)] + " " + FAMILIES[familyOf(index)];
+    }
+
+    // Rankings.txt heading for one category, without the trailing space.
+    public static String rankingPrefix(int index) {
+        return metricLabel(index) + " Rankings:";
+    }
+
+    public static String[] rankingPrefixes() {
+        String[] prefixes = new String[metricCount()];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = rankingPrefix(i);
+        }
+        return prefixes;
+    }
+
+    // Category index for a ranking heading (trailing space optional), or -1.
+    public static int categoryOf(String prefix) {
+        if (prefix == null) {
+            return -1;
+        }
+        for (int i = 0; i < metricCount(); i++) {
+            if (rankingPrefix(i).equals(prefix.trim())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Kernels over primitive series.
+
+    public static double avg(double[] series) {
+        if (series == null || series.length == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (double v : series) {
+            sum += v;
+        }
+        return sum / series.length;
+    }
+
+    // Mean of series[from, from + length), summed in the same order as avg.
+    public static double avg(double[] series, int from, int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = from; i < from + length; i++) {
+            sum += series[i];
+        }
+        return sum / length;
+    }
+
+    // Population standard deviation through Commons Math.
+    public static double stdDev(double[] series) {
+        if (series == null || series.length == 0) {
+            return 0;
+        }
+        return new StandardDeviation(false).evaluate(series);
+    }
+
+    // Population standard deviation of series[from, from + length).
+    public static double stdDev(double[] series, int from, int length) {
+        if (series == null || length <= 0) {
+            return 0;
+        }
+        return new StandardDeviation(false).evaluate(series, from, length);
+    }
+
+    // Coefficient of variation on a percentage scale, 0 for a zero mean.
+    public static double cv(double stdDev, double avg) {
+        if (avg == 0) {
+            return 0;
+        }
+        return stdDev / avg * 100;
+    }
+
+    // Population covariance over the periods both series cover, 0 when they share none.
+    public static double covariance(double[] national, double[] market) {
+        SeriesAlignment overlap = SeriesAlignment.latest(market, national);
+        int n = overlap.getLength();
+        if (n == 0) {
+            return 0;
+        }
+        int m0 = overlap.getMarketFrom();
+        int n0 = overlap.getBenchmarkFrom();
+        double nationalAvg = avg(national, n0, n);
+        double marketAvg = avg(market, m0, n);
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += (national[n0 + i] - nationalAvg) * (market[m0 + i] - marketAvg);
+        }
+        return sum / n;
+    }
+
+    // Covariance over national variance across the shared periods, 0 for a flat national series.
+    public static double beta(double[] national, double[] market) {
+        SeriesAlignment overlap = SeriesAlignment.latest(market, national);
+        if (overlap.getLength() == 0) {
+            return 0;
+        }
+        double nationalStdDev = stdDev(national, overlap.getBenchmarkFrom(), overlap.getLength());
+        double varianceNational = nationalStdDev * nationalStdDev;
+        if (varianceNational == 0) {
+            return 0;
+        }
+        return covariance(national, market) / varianceNational;
+    }
+
+    // Fills every statistic of one family into a flat metrics array and returns the number of
+    // periods the series shares with the national series. After the means, every statistic is
+    // an accumulator in one fused sweep over the series, so extra statistics don't add passes.
+    // The national-relative statistics cover only the shared periods, as lined up by
+    // SeriesAlignment; with none shared, as for a series whose length differs, they stay 0.
+    public static int computeFamily(int family, double[] series, double[] national, double[] metrics) {
+        for (int s = 0; s < STAT_LABELS.length; s++) {
+            metrics[index(s, family)] = 0;
+        }
+        int n = series == null ? 0 : series.length;
+        if (n == 0) {
+            return 0;
+        }
+        SeriesAlignment overlap = SeriesAlignment.latest(series, national);
+        int k = overlap.getLength();
+        boolean aligned = k > 0;
+        int from = overlap.getMarketFrom();
+        // National index = series index + shift inside the overlap.
+        int shift = overlap.getBenchmarkFrom() - from;
+        double mean = avg(series);
+        double overlapMean = k == n ? mean : avg(series, from, k);
+        double nationalMean = aligned ? avg(national, overlap.getBenchmarkFrom(), k) : 0;
+
+        double m2 = 0;
+        double m3 = 0;
+        double m4 = 0;
+        double downside = 0;
+        double peak = series[0];
+        double drawdown = 0;
+        double coMoment = 0;
+        double overlapM2 = 0;
+        double nationalM2 = 0;
+        double trackingM2 = 0;
+        for (int i = 0; i < n; i++) {
+            double x = series[i];
+            double d = x - mean;
+            double d2 = d * d;
+            m2 += d2;
+            m3 += d2 * d;
+            m4 += d2 * d2;
+            if (d < 0) {
+                downside += d2;
+            }
+            if (x > peak) {
+                peak = x;
+            } else if (peak - x > drawdown) {
+                drawdown = peak - x;
+            }
+            if (aligned && i >= from && i < from + k) {
+                double dm = x - overlapMean;
+                double dn = national[i + shift] - nationalMean;
+                coMoment += dm * dn;
+                overlapM2 += dm * dm;
+                nationalM2 += dn * dn;
+                trackingM2 += (dm - dn) * (dm - dn);
+            }
+        }
+
+        double variance = m2 / n;
+        double stdDev = Math.sqrt(variance);
+        metrics[index(SD, family)] = stdDev;
+        metrics[index(CV, family)] = cv(stdDev, mean);
+        metrics[index(SEMIDEVIATION, family)] = Math.sqrt(downside / n);
+        metrics[index(MAX_DRAWDOWN, family)] = drawdown;
+        if (variance != 0) {
+            metrics[index(SKEWNESS, family)] = m3 / n / Math.pow(variance, 1.5);
+            metrics[index(KURTOSIS, family)] = m4 / n / (variance * variance) - 3;
+        }
+        if (aligned) {
+            if (nationalM2 != 0) {
+                metrics[index(BETA, family)] = coMoment / nationalM2;
+            }
+            if (nationalM2 != 0 && overlapM2 != 0) {
+                metrics[index(CORRELATION, family)] = coMoment / Math.sqrt(overlapM2 * nationalM2);
+            }
+            metrics[index(TRACKING_ERROR, family)] = Math.sqrt(trackingM2 / k);
+        }
+        return k;
+    }
+
+    // Periods each family's series shares with the national series.
+    public static int[] overlaps(double[][] series, double[][] national) {
+        int[] overlaps = new int[FAMILIES.length];
+        for (int f = 0; f < FAMILIES.length; f++) {
+            overlaps[f] = SeriesAlignment.latest(series[f], national == null ? null : national[f]).getLength();
+        }
+        return overlaps;
+    }
+
+    // All metrics for one market from its series and the national series, both by family.
+    public static double[] compute(double[][] series, double[][] national) {
+        double[] metrics = new double[metricCount()];
+        for (int f = 0; f < FAMILIES.length; f++) {
+            computeFamily(f, series[f], national == null ? null : national[f], metrics);
+        }
+        return metrics;
+    }
+
+    // Markets.txt line layout.
+
+    // Stat sections first, then one "Ten Year <Family>" series per family in SeriesCodec form.
+    public static String formatLine(String marketName, double[] metrics, double[][] series) {
+        return formatLine(marketName, metrics, series, null);
+    }
+
+    // The same, with the shared-period counts after the stat sections when any are known.
+    public static String formatLine(String marketName, double[] metrics, double[][] series, int[] overlaps) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(marketName).append(": ");
+        for (int s = 0; s < STAT_LABELS.length; s++) {
+            if (hasStat(s, metrics)) {
+                sb.append(formatStatSection(s, metrics)).append(" | ");
+            }
+        }
+        if (overlaps != null && Arrays.stream(overlaps).anyMatch(periods -> periods >= 0)) {
+            sb.append(formatOverlapSection(overlaps)).append(" | ");
+        }
+        for (int f = 0; f < FAMILIES.length; f++) {
+            sb.append("Ten Year ").append(FAMILIES[f]).append(": ").append(SeriesCodec.encode(series[f]))
+                    .append(" | ");
+        }
+        return sb.toString();
+    }
+
+    // "Beta compared to the national index of: Vacancy: x, Rent Growth: y, Cap Rate: z";
+    // families with no value (NaN) are left out.
+    public static String formatStatSection(int stat, double[] metrics) {
+        StringBuilder sb = new StringBuilder(STAT_SECTIONS[stat]);
+        boolean first = true;
+        for (int f = 0; f < FAMILIES.length; f++) {
+            double value = metrics[index(stat, f)];
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            sb.append(first ? "" : ", ").append(FAMILIES[f]).append(": ").append(value);
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    // Whether any family has a value for a statistic; a line leaves out sections with none.
+    private static boolean hasStat(int stat, double[] metrics) {
+        for (int f = 0; f < FAMILIES.length; f++) {
+            if (!Double.isNaN(metrics[index(stat, f)])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // "Periods shared with the national index of: Vacancy: 10, Rent Growth: 0, Cap Rate: 10";
+    // families whose count is unknown (-1) are left out.
+    public static String formatOverlapSection(int[] overlaps) {
+        StringBuilder sb = new StringBuilder(OVERLAP_SECTION);
+        boolean first = true;
+        for (int f = 0; f < FAMILIES.length; f++) {
+            if (overlaps[f] < 0) {
+                continue;
+            }
+            sb.append(first ? "" : ", ").append(FAMILIES[f]).append(": ").append(overlaps[f]);
+            first = false;
+        }
+        return sb.toString();
+    }
+
+    // Shared-period count per family from a split market line; null if the line predates the section.
+    // Families the section doesn't list come back -1.
+    public static int[] parseOverlaps(String[] marketDetails) {
+        int section = overlapSectionIndex(marketDetails);
+        if (section < 0) {
+            return null;
+        }
+        String detail = marketDetails[section];
+        String values = detail.substring(detail.indexOf(OVERLAP_SECTION) + OVERLAP_SECTION.length());
+        int[] overlaps = new int[FAMILIES.length];
+        Arrays.fill(overlaps, -1);
+        Matcher matcher = Pattern.compile("(" + familyAlternation() + "):\\s*([0-9]+)").matcher(values);
+        while (matcher.find()) {
+            overlaps[familyIndex(matcher.group(1))] = Integer.parseInt(matcher.group(2));
+        }
+        return overlaps;
+    }
+
+    // Rewrites the shared-period section of a split market line, inserting it after the last stat
+    // section when an older line lacks it.
+    public static String[] replaceOverlapSection(String[] marketDetails, int[] overlaps) {
+        ArrayList<String> details = new ArrayList<String>(Arrays.asList(marketDetails));
+        String section = " " + formatOverlapSection(overlaps) + " ";
+        int existing = overlapSectionIndex(marketDetails);
+        if (existing >= 0) {
+            details.set(existing, section);
+        } else {
+            int last = 0;
+            for (int s = 0; s < STAT_LABELS.length; s++) {
+                last = Math.max(last, sectionIndex(marketDetails, s));
+            }
+            details.add(last + 1, section);
+        }
+        return details.toArray(new String[0]);
+    }
+
+    private static int overlapSectionIndex(String[] marketDetails) {
+        for (int i = 0; marketDetails != null && i < marketDetails.length; i++) {
+            if (marketDetails[i].contains(OVERLAP_SECTION)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // List text form, the same as ArrayList<Double>.toString(); lines written before SeriesCodec hold this.
+    public static String formatSeries(double[] series) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; series != null && i < series.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(series[i]);
+        }
+        return sb.append("]").toString();
+    }
+
+    // Parses the stat sections of a split market line by heading; statistics or families
+    // missing from an older line are NaN. Returns null if no stat section parses at all.
+    public static double[] parseMetrics(String[] marketDetails) {
+        if (marketDetails == null) {
+            return null;
+        }
+
+        double[] metrics = new double[metricCount()];
+        Arrays.fill(metrics, Double.NaN);
+        boolean found = false;
+        Pattern labelValuePattern = Pattern
+                .compile("(" + familyAlternation() + "):\\s*([-+]?[0-9]*\\.?[0-9]+(?:[eE][-+]?[0-9]+)?)");
+        for (int s = 0; s < STAT_LABELS.length; s++) {
+            int section = sectionIndex(marketDetails, s);
+            if (section < 0) {
+                continue;
+            }
+            String detail = marketDetails[section];
+            String values = detail.substring(detail.indexOf(STAT_SECTIONS[s]) + STAT_SECTIONS[s].length());
+            Matcher matcher = labelValuePattern.matcher(values);
+            while (matcher.find()) {
+                int f = familyIndex(matcher.group(1));
+                try {
+                    metrics[index(s, f)] = DecimalParser.parse(values, matcher.start(2), matcher.end(2));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                found = true;
+            }
+        }
+        return found ? metrics : null;
+    }
+
+    // Position of one stat section in a split market line, or -1 if the line predates it.
+    public static int sectionIndex(String[] marketDetails, int stat) {
+        for (int i = 0; i < marketDetails.length; i++) {
+            if (marketDetails[i].contains(STAT_SECTIONS[stat])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Rewrites the given stat sections of a split market line, inserting any that an older
+    // line lacks after its last stat section. The leading section, which also holds the
+    // market name, is never one of them in practice.
+    public static String[] replaceStatSections(String[] marketDetails, int[] stats, double[] metrics) {
+        ArrayList<String> details = new ArrayList<String>(Arrays.asList(marketDetails));
+        for (int stat : stats) {
+            String section = " " + formatStatSection(stat, metrics) + " ";
+            int existing = sectionIndex(details.toArray(new String[0]), stat);
+            if (existing >= 0) {
+                details.set(existing, section);
+                continue;
+            }
+            int last = 0;
+            for (int s = 0; s < STAT_LABELS.length; s++) {
+                last = Math.max(last, sectionIndex(details.toArray(new String[0]), s));
+            }
+            details.add(last + 1, section);
+        }
+        return details.toArray(new String[0]);
+    }
+
+    // Parses the "Ten Year <Family>: ..." section for one family, in either SeriesCodec or list text
+    // form, or null if absent.
+    public static double[] parseSeries(String[] marketDetails, int family) {
+        if (marketDetails == null) {
+            return null;
+        }
+        String label = "Ten Year " + FAMILIES[family] + ":";
+        for (String detail : marketDetails) {
+            String section = detail.trim();
+            if (!section.startsWith(label)) {
+                continue;
+            }
+            String value = section.substring(label.length()).trim();
+            if (SeriesCodec.isEncoded(value)) {
+                return SeriesCodec.decode(value);
+            }
+            int open = section.indexOf('[');
+            int close = section.lastIndexOf(']');
+            if (open < 0 || close < open) {
+                return null;
+            }
+
+            try {
+                return DecimalParser.parseList(section, open + 1, close, true);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // Loads "Ten Year National <Family>: v1, v2, ..." lines by label; missing families come back empty.
+    public static double[][] loadNational(String filename) throws IOException {
+        double[][] national = new double[FAMILIES.length][];
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (int f = 0; f < FAMILIES.length; f++) {
+                    String label = "Ten Year National " + FAMILIES[f] + ":";
+                    if (!line.startsWith(label)) {
+                        continue;
+                    }
+                    try {
+                        national[f] = DecimalParser.parseList(line, label.length(), line.length(), true);
+                    } catch (NumberFormatException e) {
+                        System.out.println("Invalid national " + FAMILIES[f].toLowerCase() + " value: "
+                                + e.getMessage());
+                        return null;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        for (int f = 0; f < FAMILIES.length; f++) {
+            if (national[f] == null) {
+                national[f] = new double[0];
+            }
+        }
+        return national;
+    }
+
+    // Regex alternation of all family names, longest first so "Rent Growth" beats "Growth".
+    private static String familyAlternation() {
+        String[] sorted = FAMILIES.clone();
+        Arrays.sort(sorted, (a, b) -> b.length() - a.length());
+        StringBuilder sb = new StringBuilder();
+        for (String family : sorted) {
+            if (sb.length() > 0) {
+                sb.append("|");
+            }
+            sb.append(Pattern.quote(family));
+        }
+        return sb.toString();
+    }
+
+    // Reads configured families, falling back to the three built-in ones.
+    private static String[] loadFamilies(String filename) {
+        File file = new File(filename);
+        if (!file.exists()) {
+            return DEFAULT_FAMILIES;
+        }
+        ArrayList<String> families = new ArrayList<String>();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty() && !families.contains(line.trim())) {
+                    families.add(line.trim());
+                }
+            }
+            reader.close();
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return DEFAULT_FAMILIES;
+        }
+        return families.isEmpty() ? DEFAULT_FAMILIES : families.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,381 @@
+import java.util.*;
+
+/**
+* MetricFilter.java
+*
+* A small filter language over market metrics, for screens such as
+* "CV Rent Growth > 100 and Beta Vacancy < 1 and SD Cap Rate < 0.4".
+* A comparison is a metric label, one of < <= > >= = != and a number;
+* comparisons combine with and, or, not and parentheses, and "and" binds
+* tighter than "or". Every metric label from MetricEngine is accepted,
+* ignoring case, with SD short for Standard Deviation. Parsing compiles
+* the expression into a tree whose leaves each test one metric column
+* against a constant over a range of rows, setting bits in a mask, so a
+* scan runs tight loops over primitive arrays instead of interpreting
+* the expression once per market. A comparison with a missing (NaN)
+* metric is false, and so is a not over one, so a market without a
+* value never matches a screen that reads it.
+*/
+public class MetricFilter {
+    private static final int LT = 0;
+    private static final int LE = 1;
+    private static final int GT = 2;
+    private static final int GE = 3;
+    private static final int EQ = 4;
+    private static final int NE = 5;
+    private static final String[] OPERATORS = {"<", "<=", ">", ">=", "=", "!="};
+
+    // One compiled node: sets bit (r - from) of mask for every row r in [from, to) it matches.
+    private interface Node {
+        void eval(double[][] columns, int from, int to, long[] mask);
+    }
+
+    private final Node root;
+    private final int[] metrics;
+
+    private MetricFilter(Node root, int[] metrics) {
+        this.root = root;
+        this.metrics = metrics;
+    }
+
+    // Compiles an expression; throws IllegalArgumentException naming the first problem.
+    public static MetricFilter parse(String expression) {
+        Parser parser = new Parser(expression);
+        Node root = parser.expression();
+        if (parser.position < parser.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected \"" + parser.tokens.get(parser.position) + "\"");
+        }
+        int[] metrics = new int[parser.metrics.size()];
+        int i = 0;
+        for (int metric : parser.metrics) {
+            metrics[i++] = metric;
+        }
+        return new MetricFilter(root, metrics);
+    }
+
+    // Metric indexes the expression reads, in order of first use.
+    public int[] getMetrics() {
+        return metrics.clone();
+    }
+
+    // Fills mask with the matching rows of [from, to); mask needs (to - from + 63) / 64 words.
+    public void eval(double[][] columns, int from, int to, long[] mask) {
+        root.eval(columns, from, to, mask);
+    }
+
+    // Metric index for a label such as "CV Rent Growth" or "SD Cap Rate", ignoring case; -1 if unknown.
+    public static int metricIndex(String label) {
+        String key = label.trim().replaceAll("\\s+", " ");
+        for (int i = 0; i < MetricEngine.metricCount(); i++) {
+            if (MetricEngine.metricLabel(i).equalsIgnoreCase(key)) {
+                return i;
+            }
+            if (MetricEngine.statOf(i) == MetricEngine.SD
+                    && ("SD " + MetricEngine.family(MetricEngine.familyOf(i))).equalsIgnoreCase(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Compiled comparisons: one loop per operator, so the inner loop has no branch on it.
+
+    private static class Comparison implements Node {
+        private final int metric;
+        private final int operator;
+        private final double value;
+
+        Comparison(int metric, int operator, double value) {
+            this.metric = metric;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        public void eval(double[][] columns, int from, int to, long[] mask) {
+            double[] column = columns[metric];
+            double v = value;
+            // Each word is built from 64 branch-free tests, then stored once.
+            switch (operator) {
+                case LT:
+                    for (int w = 0, r = from; r < to; w++) {
+                        long bits = 0;
+                        for (int k = 0, end = Math.min(64, to - r); k < end; k++, r++) {
+                            bits |= (column[r] < v ? 1L : 0L) << k;
+                        }
+                        mask[w] = bits;
+                    }
+                    break;
+                case LE:
+                    for (int w = 0, r = from; r < to; w++) {
+                        long bits = 0;
+                        for (int k = 0, end = Math.min(64, to - r); k < end; k++, r++) {
+                            bits |= (column[r] <= v ? 1L : 0L) << k;
+                        }
+                        mask[w] = bits;
+                    }
+                    break;
+                case GT:
+                    for (int w = 0, r = from; r < to; w++) {
+                        long bits = 0;
+                        for (int k = 0, end = Math.min(64, to - r); k < end; k++, r++) {
+                            bits |= (column[r] > v ? 1L : 0L) << k;
+                        }
+                        mask[w] = bits;
+                    }
+                    break;
+                case GE:
+                    for (int w = 0, r = from; r < to; w++) {
+                        long bits = 0;
+                        for (int k = 0, end = Math.min(64, to - r); k < end; k++, r++) {
+                            bits |= (column[r] >= v ? 1L : 0L) << k;
+                        }
+                        mask[w] = bits;
+                    }
+                    break;
+                case EQ:
+                    for (int w = 0, r = from; r < to; w++) {
+                        long bits = 0;
+                        for (int k = 0, end = Math.min(64, to - r); k < end; k++, r++) {
+                            bits |= (column[r] == v ? 1L : 0L) << k;
+                        }
+                        mask[w] = bits;
+                    }
+                    break;
+                default:
+                    // NaN != v is true in Java, so test the value is present too.
+                    for (int w = 0, r = from; r < to; w++) {
+                        long bits = 0;
+                        for (int k = 0, end = Math.min(64, to - r); k < end; k++, r++) {
+                            bits |= (column[r] != v && column[r] == column[r] ? 1L : 0L) << k;
+                        }
+                        mask[w] = bits;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static class And implements Node {
+        private final Node left;
+        private final Node right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public void eval(double[][] columns, int from, int to, long[] mask) {
+            left.eval(columns, from, to, mask);
+            long[] other = new long[mask.length];
+            right.eval(columns, from, to, other);
+            for (int w = 0; w < words(from, to); w++) {
+                mask[w] &= other[w];
+            }
+        }
+    }
+
+    private static class Or implements Node {
+        private final Node left;
+        private final Node right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public void eval(double[][] columns, int from, int to, long[] mask) {
+            left.eval(columns, from, to, mask);
+            long[] other = new long[mask.length];
+            right.eval(columns, from, to, other);
+            for (int w = 0; w < words(from, to); w++) {
+                mask[w] |= other[w];
+            }
+        }
+    }
+
+    private static class Not implements Node {
+        private final Node inner;
+        private final int[] metrics;
+
+        // metrics are the columns the inner node reads.
+        Not(Node inner, int[] metrics) {
+            this.inner = inner;
+            this.metrics = metrics;
+        }
+
+        public void eval(double[][] columns, int from, int to, long[] mask) {
+            inner.eval(columns, from, to, mask);
+            int words = words(from, to);
+            for (int w = 0; w < words; w++) {
+                mask[w] = ~mask[w];
+            }
+            // Clear the bits past the last row.
+            int tail = (to - from) & 63;
+            if (tail != 0) {
+                mask[words - 1] &= (1L << tail) - 1;
+            }
+            // Clear the rows missing a metric the inner node reads.
+            for (int metric : metrics) {
+                double[] column = columns[metric];
+                for (int r = from; r < to; r++) {
+                    if (column[r] != column[r]) {
+                        mask[(r - from) >>> 6] &= ~(1L << (r - from));
+                    }
+                }
+            }
+        }
+    }
+
+    private static int words(int from, int to) {
+        return (to - from + 63) >>> 6;
+    }
+
+    // Recursive descent over the token list: or-terms of and-terms of factors.
+    private static class Parser {
+        private final ArrayList<String> tokens = new ArrayList<String>();
+        private final LinkedHashSet<Integer> metrics = new LinkedHashSet<Integer>();
+        // Metric of every comparison parsed so far, repeats included.
+        private final ArrayList<Integer> read = new ArrayList<Integer>();
+        private int position;
+
+        Parser(String expression) {
+            tokenize(expression == null ? "" : expression);
+            if (tokens.isEmpty()) {
+                throw new IllegalArgumentException("The filter is empty");
+            }
+        }
+
+        Node expression() {
+            Node node = term();
+            while (isKeyword("or") || isToken("||")) {
+                position++;
+                node = new Or(node, term());
+            }
+            return node;
+        }
+
+        private Node term() {
+            Node node = factor();
+            while (isKeyword("and") || isToken("&&")) {
+                position++;
+                node = new And(node, factor());
+            }
+            return node;
+        }
+
+        private Node factor() {
+            if (isKeyword("not") || isToken("!")) {
+                position++;
+                int start = read.size();
+                Node inner = factor();
+                LinkedHashSet<Integer> innerMetrics = new LinkedHashSet<Integer>(read.subList(start, read.size()));
+                int[] columns = new int[innerMetrics.size()];
+                int i = 0;
+                for (int metric : innerMetrics) {
+                    columns[i++] = metric;
+                }
+                return new Not(inner, columns);
+            }
+            if (isToken("(")) {
+                position++;
+                Node node = expression();
+                if (!isToken(")")) {
+                    throw new IllegalArgumentException("Missing \")\"");
+                }
+                position++;
+                return node;
+            }
+            return comparison();
+        }
+
+        // Metric words up to the operator, the operator, then the number.
+        private Node comparison() {
+            StringBuilder label = new StringBuilder();
+            while (position < tokens.size() && Character.isLetter(tokens.get(position).charAt(0))
+                    && !isKeyword("and") && !isKeyword("or") && !isKeyword("not")) {
+                label.append(label.length() == 0 ? "" : " ").append(tokens.get(position++));
+            }
+            if (label.length() == 0) {
+                throw new IllegalArgumentException(position < tokens.size()
+                        ? "Expected a metric name before \"" + tokens.get(position) + "\""
+                        : "Expected a metric name at the end");
+            }
+            int metric = metricIndex(label.toString());
+            if (metric < 0) {
+                throw new IllegalArgumentException("Unknown metric \"" + label + "\"");
+            }
+            int operator = position < tokens.size() ? operatorIndex(tokens.get(position)) : -1;
+            if (operator < 0) {
+                throw new IllegalArgumentException("Expected a comparison after \"" + label + "\"");
+            }
+            position++;
+            if (position >= tokens.size()) {
+                throw new IllegalArgumentException("Expected a number after \"" + label + " "
+                        + OPERATORS[operator] + "\"");
+            }
+            double value;
+            try {
+                value = Double.parseDouble(tokens.get(position));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("\"" + tokens.get(position) + "\" is not a number");
+            }
+            position++;
+            metrics.add(metric);
+            read.add(metric);
+            return new Comparison(metric, operator, value);
+        }
+
+        private static int operatorIndex(String token) {
+            if (token.equals("==")) {
+                return EQ;
+            }
+            if (token.equals("<>")) {
+                return NE;
+            }
+            return Arrays.asList(OPERATORS).indexOf(token);
+        }
+
+        private boolean isKeyword(String keyword) {
+            return position < tokens.size() && tokens.get(position).equalsIgnoreCase(keyword);
+        }
+
+        private boolean isToken(String token) {
+            return position < tokens.size() && tokens.get(position).equals(token);
+        }
+
+        // Words, numbers, operators and parentheses; whitespace only separates.
+        private void tokenize(String text) {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                int start = i;
+                if (Character.isWhitespace(c)) {
+                    i++;
+                    continue;
+                }
+                if (Character.isLetter(c)) {
+                    while (i < text.length() && Character.isLetter(text.charAt(i))) {
+                        i++;
+                    }
+                } else if (Character.isDigit(c) || c == '.' || c == '-' || c == '+') {
+                    i++;
+                    while (i < text.length() && (Character.isDigit(text.charAt(i)) || text.charAt(i) == '.'
+                            || text.charAt(i) == 'e' || text.charAt(i) == 'E'
+                            || ((text.charAt(i) == '-' || text.charAt(i) == '+')
+                            && (text.charAt(i - 1) == 'e' || text.charAt(i - 1) == 'E')))) {
+                        i++;
+                    }
+                } else if ("<>=!&|".indexOf(c) >= 0) {
+                    while (i < text.length() && "<>=!&|".indexOf(text.charAt(i)) >= 0) {
+                        i++;
+                    }
+                } else if (c == '(' || c == ')') {
+                    i++;
+                } else {
+                    throw new IllegalArgumentException("Unexpected character '" + c + "'");
+                }
+                tokens.add(text.substring(start, i));
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+* MetricScreen.java
+*
+* Every market's metrics held column by column, one primitive array per
+* metric, for MetricFilter screens. A screen is a blocked scan: blocks
+* are filtered in parallel, each comparison sweeping one column of the
+* block into a bit mask, and each block keeps only the best offset +
+* limit matches in the requested order, so a page costs one pass over
+* the columns and a sort of no more than one page per block. Adds and
+* updates overwrite or append a row; removes move the last row into the
+* hole, as in SimilarityIndex.
+*/
+public class MetricScreen {
+    private static final int BLOCK_ROWS = 4096;
+
+    // One matching market and its full metric vector.
+    public static class Match {
+        private final String marketName;
+        private final double[] metrics;
+
+        public Match(String marketName, double[] metrics) {
+            this.marketName = marketName;
+            this.metrics = metrics;
+        }
+
+        public String getMarketName() {
+            return marketName;
+        }
+
+        public double getMetric(int index) {
+            return metrics[index];
+        }
+    }
+
+    // One page of a screen, with the number of matches over all pages.
+    public static class Page {
+        private final List<Match> matches;
+        private final int total;
+
+        public Page(List<Match> matches, int total) {
+            this.matches = matches;
+            this.total = total;
+        }
+
+        public List<Match> getMatches() {
+            return matches;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    private final MarketDictionary dictionary;
+    private final double[][] columns;
+    // Market ID per row, and row + 1 per market ID (0 where not indexed).
+    private int[] ids = new int[0];
+    private int[] rowById = new int[0];
+    private int size;
+    private boolean loaded;
+
+    public MetricScreen(MarketDictionary dictionary) {
+        this.dictionary = dictionary;
+        this.columns = new double[MetricEngine.metricCount()][0];
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized void setLoaded() {
+        loaded = true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean contains(String marketName) {
+        return rowOf(dictionary.find(marketName)) >= 0;
+    }
+
+    // Forgets everything; the next caller must reload.
+    public synchronized void invalidate() {
+        Arrays.fill(rowById, 0);
+        size = 0;
+        loaded = false;
+    }
+
+    // Adds a market or replaces its metrics.
+    public synchronized void put(String marketName, double[] metrics) {
+        int id = dictionary.id(marketName);
+        int row = rowOf(id);
+        if (row < 0) {
+            ensureCapacity(size + 1);
+            row = size++;
+            ids[row] = id;
+            if (rowById.length <= id) {
+                rowById = Arrays.copyOf(rowById, Math.max(id + 1, rowById.length * 3 / 2));
+            }
+            rowById[id] = row + 1;
+        }
+        for (int j = 0; j < columns.length; j++) {
+            columns[j][row] = j < metrics.length ? metrics[j] : Double.NaN;
+        }
+    }
+
+    public synchronized void remove(String marketName) {
+        int id = dictionary.find(marketName);
+        int row = rowOf(id);
+        if (row < 0) {
+            return;
+        }
+        rowById[id] = 0;
+
+        // Fill the hole with the last row so rows stay dense.
+        int last = --size;
+        if (row != last) {
+            for (double[] column : columns) {
+                column[row] = column[last];
+            }
+            ids[row] = ids[last];
+            rowById[ids[row]] = row + 1;
+        }
+    }
+
+    private int rowOf(int id) {
+        return id < 0 || id >= rowById.length ? -1 : rowById[id] - 1;
+    }
+
+    // Matches offset to offset + limit of the filter, ordered by one metric (missing values last, then by
+    // name), or by name when sortMetric is -1.
+    public synchronized Page screen(MetricFilter filter, int sortMetric, boolean descending, int offset, int limit) {
+        int count = size;
+        int blocks = (count + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        int keep = offset + limit;
+        Comparator<Integer> order = (a, b) -> compareRows(a, b, sortMetric, descending);
+
+        // Each block keeps a heap of its best rows, worst on top so it is evicted first.
+        int[] totals = new int[blocks];
+        List<PriorityQueue<Integer>> partials = new ArrayList<PriorityQueue<Integer>>();
+        for (int b = 0; b < blocks; b++) {
+            partials.add(null);
+        }
+        IntStream.range(0, blocks).parallel().forEach(b -> {
+            int from = b * BLOCK_ROWS;
+            int to = Math.min(count, from + BLOCK_ROWS);
+            long[] mask = new long[(BLOCK_ROWS + 63) / 64];
+            filter.eval(columns, from, to, mask);
+            PriorityQueue<Integer> heap = new PriorityQueue<Integer>(Math.max(1, Math.min(keep, BLOCK_ROWS) + 1),
+                    order.reversed());
+            int worst = -1;
+            for (int w = 0; w < mask.length; w++) {
+                totals[b] += Long.bitCount(mask[w]);
+                for (long bits = mask[w]; bits != 0; bits &= bits - 1) {
+                    int row = from + w * 64 + Long.numberOfTrailingZeros(bits);
+                    // Once the heap is full most rows lose to the worst kept one; test that without boxing.
+                    if (heap.size() < keep) {
+                        heap.add(row);
+                    } else if (keep > 0 && compareRows(row, worst, sortMetric, descending) < 0) {
+                        heap.poll();
+                        heap.add(row);
+                    } else {
+                        continue;
+                    }
+                    worst = heap.peek();
+                }
+            }
+            partials.set(b, heap);
+        });
+
+        // Merge the block heaps and cut out the page.
+        int total = 0;
+        ArrayList<Integer> best = new ArrayList<Integer>();
+        for (int b = 0; b < blocks; b++) {
+            total += totals[b];
+            best.addAll(partials.get(b));
+        }
+        best.sort(order);
+        ArrayList<Match> matches = new ArrayList<Match>();
+        for (int i = offset; i < Math.min(keep, best.size()); i++) {
+            int row = best.get(i);
+            double[] metrics = new double[columns.length];
+            for (int j = 0; j < columns.length; j++) {
+                metrics[j] = columns[j][row];
+            }
+            matches.add(new Match(dictionary.name(ids[row]), metrics));
+        }
+        return new Page(matches, total);
+    }
+
+    // Row order for a screen: by one metric with missing values last, or by name when sortMetric is -1;
+    // names are looked up only to break ties.
+    private int compareRows(int a, int b, int sortMetric, boolean descending) {
+        if (sortMetric >= 0) {
+            double x = columns[sortMetric][a];
+            double y = columns[sortMetric][b];
+            boolean xMissing = Double.isNaN(x);
+            boolean yMissing = Double.isNaN(y);
+            int cmp = xMissing || yMissing ? Boolean.compare(xMissing, yMissing)
+                    : descending ? Double.compare(y, x) : Double.compare(x, y);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        int cmp = dictionary.name(ids[a]).compareTo(dictionary.name(ids[b]));
+        return sortMetric < 0 && descending ? -cmp : cmp;
+    }
+
+    private void ensureCapacity(int rowsNeeded) {
+        if (rowsNeeded <= ids.length) {
+            return;
+        }
+        int capacity = Math.max(rowsNeeded, Math.max(16, ids.length * 2));
+        ids = Arrays.copyOf(ids, capacity);
+        for (int j = 0; j < columns.length; j++) {
+            columns[j] = Arrays.copyOf(columns[j], capacity);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+* MetricSketches.java
+*
+* Approximate distribution of every metric over the whole universe, for
+* medians, deciles and percentile placements without sorting the ranking
+* lists. Each metric keeps two QuantileSketches: one of values added and
+* one of values removed. An update removes the old value and adds the new
+* one, and the count at or below x is the difference of the two sketches'
+* ranks. Removed values are always values that were added earlier, so the
+* difference tracks the live set. Its error grows with everything the
+* sketches have seen, not just the live markets, so once removals reach
+* half the live count the sketches drop themselves and are rebuilt on the
+* next load. Bulk loads build one set of sketches per shard in parallel
+* and merge them.
+*/
+public class MetricSketches {
+    // Items kept per sketch; rank error is about 1% of the count.
+    private static final int K = 200;
+    private static final int SHARD_ROWS = 16384;
+
+    private QuantileSketch[] added;
+    private QuantileSketch[] removed;
+    private boolean loaded;
+
+    public MetricSketches() {
+        reset();
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized void setLoaded() {
+        loaded = true;
+    }
+
+    // Forgets everything; the next caller must reload.
+    public synchronized void invalidate() {
+        reset();
+        loaded = false;
+    }
+
+    private void reset() {
+        int metricCount = MetricEngine.metricCount();
+        added = new QuantileSketch[metricCount];
+        removed = new QuantileSketch[metricCount];
+        for (int i = 0; i < metricCount; i++) {
+            added[i] = new QuantileSketch(K, 2L * i);
+            removed[i] = new QuantileSketch(K, 2L * i + 1);
+        }
+    }
+
+    // Counts one market's metrics; missing (NaN) values are left out.
+    public synchronized void add(double[] metrics) {
+        for (int i = 0; i < added.length && i < metrics.length; i++) {
+            added[i].add(metrics[i]);
+        }
+    }
+
+    // Uncounts metrics that were added before.
+    public synchronized void remove(double[] metrics) {
+        boolean stale = false;
+        for (int i = 0; i < removed.length && i < metrics.length; i++) {
+            removed[i].add(metrics[i]);
+            stale |= removed[i].getCount() * 2 > count(i);
+        }
+        if (stale) {
+            invalidate();
+        }
+    }
+
+    // Replaces one market's old metrics with its new ones.
+    public synchronized void update(double[] oldMetrics, double[] newMetrics) {
+        add(newMetrics);
+        remove(oldMetrics);
+    }
+
+    // Folds in sketches built elsewhere, such as on another shard.
+    public synchronized void merge(MetricSketches other) {
+        for (int i = 0; i < added.length; i++) {
+            added[i].merge(other.added[i]);
+            removed[i].merge(other.removed[i]);
+        }
+    }
+
+    // Sketches of the non-null rows, built a shard at a time in parallel and merged in shard order.
+    public static MetricSketches build(double[][] rows) {
+        int shards = (rows.length + SHARD_ROWS - 1) / SHARD_ROWS;
+        MetricSketches[] partials = new MetricSketches[shards];
+        IntStream.range(0, shards).parallel().forEach(s -> {
+            MetricSketches partial = new MetricSketches();
+            for (int r = s * SHARD_ROWS; r < Math.min(rows.length, (s + 1) * SHARD_ROWS); r++) {
+                if (rows[r] != null) {
+                    partial.add(rows[r]);
+                }
+            }
+            partials[s] = partial;
+        });
+        MetricSketches sketches = new MetricSketches();
+        for (MetricSketches partial : partials) {
+            sketches.merge(partial);
+        }
+        return sketches;
+    }
+
+    // Markets with a value for the metric.
+    public synchronized long count(int metric) {
+        return added[metric].getCount() - removed[metric].getCount();
+    }
+
+    // Approximate number of markets with the metric at or below value.
+    public synchronized long rank(int metric, double value) {
+        return Math.max(0, added[metric].rank(value) - removed[metric].rank(value));
+    }
+
+    // Smallest value with at least a fraction q of the markets at or below it; NaN if none have the metric.
+    public synchronized double quantile(int metric, double q) {
+        long count = count(metric);
+        if (count <= 0) {
+            return Double.NaN;
+        }
+        long target = Math.max(1, (long) Math.ceil(q * count));
+
+        // The live rank only changes at values the added sketch kept, so search those.
+        double[] values = added[metric].sortedValues();
+        int lo = 0;
+        int hi = values.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (rank(metric, values[mid]) >= target) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return values[lo];
+    }
+
+    // Percent of markets with the metric at or below value; NaN if none have it.
+    public synchronized double percentile(int metric, double value) {
+        long count = count(metric);
+        if (count <= 0 || Double.isNaN(value)) {
+            return Double.NaN;
+        }
+        return Math.min(100.0, 100.0 * rank(metric, value) / count);
+    }
+}
@@ -0,0 +1,288 @@
+import java.util.*;
+
+/**
+* NameSearchIndex.java
+*
+* Case-insensitive search over market names. Prefix queries walk one range
+* of a sorted map keyed by the lower-cased name. Substring queries look up
+* the query's rarest trigram, whose posting list of MarketDictionary IDs
+* holds every name that can contain the query, and check only those
+* names. "Did you mean" suggestions rank the names sharing the most
+* trigrams with the query by edit distance. Adds and removes update the
+* map and the posting lists in place; a removed ID stays in its posting
+* lists but is skipped until the name is added again.
+*/
+public class NameSearchIndex {
+    // Posting entries read, and names edit-distance checked, per suggestion query.
+    private static final int SUGGESTION_BUDGET = 50000;
+    private static final int SUGGESTION_CANDIDATES = 200;
+
+    private final MarketDictionary dictionary;
+    // Lower-cased name + '\0' + name, so equal names in different case stay distinct.
+    private final TreeMap<String, Integer> sorted = new TreeMap<String, Integer>();
+    private final HashMap<Long, int[]> postings = new HashMap<Long, int[]>();
+    private String[] lowerById = new String[0];
+    private final BitSet live = new BitSet();
+    private final BitSet posted = new BitSet();
+    // Shared-trigram count per ID while suggesting; always left all zero.
+    private int[] counts = new int[0];
+    private boolean loaded;
+
+    public NameSearchIndex(MarketDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized void setLoaded() {
+        loaded = true;
+    }
+
+    public synchronized int size() {
+        return sorted.size();
+    }
+
+    // Forgets everything; the next caller must reload.
+    public synchronized void invalidate() {
+        sorted.clear();
+        postings.clear();
+        live.clear();
+        posted.clear();
+        loaded = false;
+    }
+
+    public synchronized void add(String marketName) {
+        int id = dictionary.id(marketName);
+        if (live.get(id)) {
+            return;
+        }
+        String name = dictionary.name(id);
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (id >= lowerById.length) {
+            lowerById = Arrays.copyOf(lowerById, Math.max(id + 1, lowerById.length * 3 / 2));
+        }
+        lowerById[id] = lower;
+        sorted.put(lower + '\0' + name, id);
+        live.set(id);
+
+        // Post each distinct trigram once; a re-added name is already posted.
+        if (!posted.get(id)) {
+            for (long trigram : distinctTrigrams(pad(lower))) {
+                int[] list = postings.get(trigram);
+                // Slot 0 holds the count.
+                if (list == null) {
+                    list = new int[4];
+                    postings.put(trigram, list);
+                } else if (list[0] + 1 == list.length) {
+                    list = Arrays.copyOf(list, list.length * 2);
+                    postings.put(trigram, list);
+                }
+                list[++list[0]] = id;
+            }
+            posted.set(id);
+        }
+    }
+
+    public synchronized void remove(String marketName) {
+        int id = dictionary.find(marketName);
+        if (id < 0 || !live.get(id)) {
+            return;
+        }
+        sorted.remove(lowerById[id] + '\0' + dictionary.name(id));
+        live.clear(id);
+    }
+
+    // Names starting with the query, ignoring case, in alphabetical order; at most limit of them.
+    public synchronized List<String> prefix(String query, int limit) {
+        String lower = query.trim().toLowerCase(Locale.ROOT);
+        ArrayList<String> result = new ArrayList<String>();
+        for (Integer id : sorted.subMap(lower, true, lower + Character.MAX_VALUE, false).values()) {
+            if (result.size() >= limit) {
+                break;
+            }
+            result.add(dictionary.name(id));
+        }
+        return result;
+    }
+
+    // Names containing the query anywhere, ignoring case, in alphabetical order.
+    public synchronized List<String> contains(String query) {
+        String lower = query.trim().toLowerCase(Locale.ROOT);
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        if (lower.length() < 3) {
+            // Too short for a trigram; check every name.
+            for (int id = live.nextSetBit(0); id >= 0; id = live.nextSetBit(id + 1)) {
+                if (lowerById[id].contains(lower)) {
+                    ids.add(id);
+                }
+            }
+        } else {
+            // Every match holds every trigram of the query, so the shortest posting list covers them all.
+            int[] rarest = null;
+            for (int i = 0; i + 3 <= lower.length(); i++) {
+                int[] list = postings.get(trigram(lower, i));
+                if (list == null) {
+                    return new ArrayList<String>();
+                }
+                if (rarest == null || list[0] < rarest[0]) {
+                    rarest = list;
+                }
+            }
+            for (int i = 1; i <= rarest[0]; i++) {
+                int id = rarest[i];
+                if (live.get(id) && lowerById[id].contains(lower)) {
+                    ids.add(id);
+                }
+            }
+        }
+        ids.sort((a, b) -> {
+            int cmp = lowerById[a].compareTo(lowerById[b]);
+            return cmp != 0 ? cmp : dictionary.name(a).compareTo(dictionary.name(b));
+        });
+        ArrayList<String> result = new ArrayList<String>(ids.size());
+        for (int id : ids) {
+            result.add(dictionary.name(id));
+        }
+        return result;
+    }
+
+    // Closest names by edit distance, ignoring case, for a query that matched nothing; nearest first.
+    public synchronized List<String> suggest(String query, int limit) {
+        String lower = query.trim().toLowerCase(Locale.ROOT);
+        if (lower.isEmpty() || sorted.isEmpty()) {
+            return new ArrayList<String>();
+        }
+
+        // Count shared trigrams per name, rarest trigrams first, until the work budget is spent; the
+        // common trigrams left over would add many names and little information.
+        String padded = pad(lower);
+        ArrayList<int[]> lists = new ArrayList<int[]>();
+        for (long trigram : distinctTrigrams(padded)) {
+            int[] list = postings.get(trigram);
+            if (list != null) {
+                lists.add(list);
+            }
+        }
+        lists.sort((a, b) -> a[0] - b[0]);
+        if (counts.length < lowerById.length) {
+            counts = new int[lowerById.length];
+        }
+        IntList touched = new IntList();
+        int visited = 0;
+        for (int[] list : lists) {
+            if (visited > 0 && visited + list[0] > SUGGESTION_BUDGET) {
+                break;
+            }
+            visited += list[0];
+            for (int j = 1; j <= list[0]; j++) {
+                int id = list[j];
+                if (live.get(id) && counts[id]++ == 0) {
+                    touched.add(id);
+                }
+            }
+        }
+
+        // Edit distance on the names sharing the most trigrams: bucket by count, then walk down from the top.
+        int best = 0;
+        for (int i = 0; i < touched.size; i++) {
+            best = Math.max(best, counts[touched.values[i]]);
+        }
+        IntList[] byCount = new IntList[best + 1];
+        for (int i = 0; i < touched.size; i++) {
+            int id = touched.values[i];
+            if (byCount[counts[id]] == null) {
+                byCount[counts[id]] = new IntList();
+            }
+            byCount[counts[id]].add(id);
+            counts[id] = 0;
+        }
+        int maxDistance = Math.max(2, lower.length() / 3);
+        ArrayList<int[]> scored = new ArrayList<int[]>();
+        int checked = 0;
+        for (int c = best; c > 0 && checked < SUGGESTION_CANDIDATES; c--) {
+            for (int i = 0; byCount[c] != null && i < byCount[c].size && checked < SUGGESTION_CANDIDATES; i++) {
+                int id = byCount[c].values[i];
+                checked++;
+                int distance = editDistance(lower, lowerById[id], maxDistance);
+                if (distance <= maxDistance) {
+                    scored.add(new int[] {distance, id});
+                }
+            }
+        }
+        scored.sort((a, b) -> a[0] != b[0] ? a[0] - b[0] : lowerById[a[1]].compareTo(lowerById[b[1]]));
+        ArrayList<String> result = new ArrayList<String>();
+        for (int i = 0; i < Math.min(limit, scored.size()); i++) {
+            result.add(dictionary.name(scored.get(i)[1]));
+        }
+        return result;
+    }
+
+    // Levenshtein distance, or max + 1 as soon as it must exceed max.
+    static int editDistance(String a, String b, int max) {
+        if (Math.abs(a.length() - b.length()) > max) {
+            return max + 1;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+
+    // Word boundaries count as characters, so short names and word starts still share trigrams.
+    private static String pad(String lower) {
+        return " " + lower + " ";
+    }
+
+    // Each trigram of the text once, in order of first appearance.
+    private static long[] distinctTrigrams(String text) {
+        long[] trigrams = new long[Math.max(0, text.length() - 2)];
+        int count = 0;
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            long trigram = trigram(text, i);
+            boolean seen = false;
+            for (int j = 0; j < count && !seen; j++) {
+                seen = trigrams[j] == trigram;
+            }
+            if (!seen) {
+                trigrams[count++] = trigram;
+            }
+        }
+        return Arrays.copyOf(trigrams, count);
+    }
+
+    private static long trigram(String text, int at) {
+        return ((long) text.charAt(at) << 32) | ((long) text.charAt(at + 1) << 16) | text.charAt(at + 2);
+    }
+
+    // Growable int array, to avoid boxing while gathering candidates.
+    private static class IntList {
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
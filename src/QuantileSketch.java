@@ -0,0 +1,191 @@
+import java.util.*;
+
+/**
+* QuantileSketch.java
+*
+* KLL quantile sketch over a stream of doubles. Items sit in levels, and
+* an item at level h stands for 2^h of the values seen. When the sketch
+* outgrows its budget, the lowest full level is sorted and every other
+* item, starting at a random offset, moves up one level. Capacities
+* shrink geometrically going down the levels, so about k items are kept
+* however long the stream gets, and ranks are off by a small fraction of
+* the count, roughly 1.7 / k. Two sketches merge by pooling each level
+* and compacting again, so shards built on different threads combine
+* into one. Queries go through a sorted, cumulative-weight copy of the
+* kept items that is rebuilt only after the sketch changes. The random
+* source is seeded, so the same input order always gives the same sketch.
+*/
+public class QuantileSketch {
+    private static final double DECAY = 2.0 / 3.0;
+    private static final int MIN_LEVEL_CAPACITY = 8;
+
+    private final int k;
+    private final Random random;
+    private double[][] items = new double[1][16];
+    private int[] sizes = new int[1];
+    private int levels = 1;
+    private long count;
+    // Items kept over all levels, and how many the levels may hold; the budget changes only with the height.
+    private int retained;
+    private int budget;
+    private int[] capacities = new int[1];
+    // Sorted copy of the kept items with running weights; null after a change.
+    private double[] sortedValues;
+    private long[] cumulative;
+
+    public QuantileSketch(int k, long seed) {
+        this.k = k;
+        this.random = new Random(seed);
+        computeCapacities();
+    }
+
+    // Number of values the sketch stands for.
+    public long getCount() {
+        return count;
+    }
+
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        append(0, value);
+        count++;
+        sortedValues = null;
+        compress();
+    }
+
+    // Folds another sketch's values into this one; the other sketch is left as it was.
+    public void merge(QuantileSketch other) {
+        for (int h = 0; h < other.levels; h++) {
+            for (int i = 0; i < other.sizes[h]; i++) {
+                append(h, other.items[h][i]);
+            }
+        }
+        count += other.count;
+        sortedValues = null;
+        compress();
+    }
+
+    // Approximate number of values at or below x.
+    public long rank(double x) {
+        prepare();
+        // Index of the first kept value above x.
+        int lo = 0;
+        int hi = sortedValues.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sortedValues[mid] <= x) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo == 0 ? 0 : cumulative[lo - 1];
+    }
+
+    // Kept values in ascending order, and the running weight up to and including each one.
+    public double[] sortedValues() {
+        prepare();
+        return sortedValues;
+    }
+
+    public long[] cumulativeWeights() {
+        prepare();
+        return cumulative;
+    }
+
+    private void prepare() {
+        if (sortedValues != null) {
+            return;
+        }
+        int total = 0;
+        for (int h = 0; h < levels; h++) {
+            total += sizes[h];
+        }
+        // Sort (value, weight) pairs by value through an index array of the flattened items.
+        double[] values = new double[total];
+        long[] weights = new long[total];
+        int n = 0;
+        for (int h = 0; h < levels; h++) {
+            for (int i = 0; i < sizes[h]; i++) {
+                values[n] = items[h][i];
+                weights[n++] = 1L << h;
+            }
+        }
+        Integer[] order = new Integer[total];
+        for (int i = 0; i < total; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+        sortedValues = new double[total];
+        cumulative = new long[total];
+        long running = 0;
+        for (int i = 0; i < total; i++) {
+            sortedValues[i] = values[order[i]];
+            running += weights[order[i]];
+            cumulative[i] = running;
+        }
+    }
+
+    private void append(int level, double value) {
+        while (level >= levels) {
+            addLevel();
+        }
+        if (sizes[level] == items[level].length) {
+            items[level] = Arrays.copyOf(items[level], items[level].length * 2);
+        }
+        items[level][sizes[level]++] = value;
+        retained++;
+    }
+
+    private void addLevel() {
+        if (levels == items.length) {
+            items = Arrays.copyOf(items, levels * 2);
+            sizes = Arrays.copyOf(sizes, levels * 2);
+        }
+        items[levels] = new double[16];
+        sizes[levels] = 0;
+        levels++;
+        computeCapacities();
+    }
+
+    // Compacts the lowest over-full level until the sketch is back within budget.
+    private void compress() {
+        while (retained > budget) {
+            for (int h = 0; h < levels; h++) {
+                if (sizes[h] >= capacities[h]) {
+                    compact(h);
+                    break;
+                }
+            }
+        }
+    }
+
+    // Promotes every other sorted item of one level; an odd one out stays behind, so weight is kept exactly.
+    private void compact(int level) {
+        if (level + 1 == levels) {
+            addLevel();
+        }
+        double[] values = items[level];
+        int size = sizes[level];
+        Arrays.sort(values, 0, size);
+        int kept = size % 2;
+        int offset = random.nextBoolean() ? 1 : 0;
+        for (int i = kept + offset; i < size; i += 2) {
+            append(level + 1, values[i]);
+        }
+        // The odd item is the smallest, left at the front.
+        retained -= size - kept;
+        sizes[level] = kept;
+    }
+
+    // Items each level may hold: k at the top, shrinking by DECAY per level down.
+    private void computeCapacities() {
+        capacities = new int[levels];
+        budget = 0;
+        for (int h = 0; h < levels; h++) {
+            capacities[h] = Math.max(MIN_LEVEL_CAPACITY, (int) Math.ceil(k * Math.pow(DECAY, levels - 1 - h)));
+            budget += capacities[h];
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.*;
+import java.util.*;
+
+/**
+* RankIndex.java
+*
+* Reverse index from market to its rank in every ranking category.
+* Categories are re-indexed only when their list is rewritten, so looking
+* up a market's ranks is a single hash probe instead of nine list scans.
+* Tie-aware rank modes are filled in by the same walk over each sorted list.
+* Markets are held as MarketDictionary IDs: each category is a position
+* array indexed by ID and an ID array indexed by position.
+*/
+public class RankIndex {
+    // How a rank is reported: list position, 1-2-2-4, 1-2-2-3, or percent rank.
+    public enum Mode { POSITION, COMPETITION, DENSE, PERCENTILE }
+
+    private final String[] categories;
+    private final MarketDictionary dictionary;
+    // 1-based position per market ID per category, 0 where unranked.
+    private final int[][] positionById;
+    // Market IDs in rank order per category, so a re-index can clear old positions.
+    private final int[][] idsByPosition;
+    // Tie-aware ranks per position, computed alongside the positional index.
+    private final int[][] competitionByPosition;
+    private final int[][] denseByPosition;
+    private boolean loaded;
+
+    public RankIndex(String[] categories, MarketDictionary dictionary) {
+        this.categories = categories;
+        this.dictionary = dictionary;
+        this.positionById = new int[categories.length][0];
+        this.idsByPosition = new int[categories.length][0];
+        this.competitionByPosition = new int[categories.length][0];
+        this.denseByPosition = new int[categories.length][0];
+    }
+
+    // Maps a "... Rankings:" heading (with or without trailing space) to its category index.
+    public int categoryOf(String prefix) {
+        if (prefix == null) {
+            return -1;
+        }
+        for (int i = 0; i < categories.length; i++) {
+            if (categories[i].equals(prefix.trim())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String getCategory(int category) {
+        return categories[category];
+    }
+
+    public int categoryCount() {
+        return categories.length;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    // Forgets everything; the next caller must rebuild.
+    public void invalidate() {
+        for (int i = 0; i < categories.length; i++) {
+            positionById[i] = new int[0];
+            idsByPosition[i] = new int[0];
+            competitionByPosition[i] = new int[0];
+            denseByPosition[i] = new int[0];
+        }
+        loaded = false;
+    }
+
+    // Indexes all categories from lists in category order.
+    public void rebuild(ArrayList<RankingList> rankings) {
+        invalidate();
+        if (rankings == null || rankings.size() < categories.length) {
+            return;
+        }
+        for (int i = 0; i < categories.length; i++) {
+            updateCategory(i, rankings.get(i));
+        }
+        loaded = true;
+    }
+
+    // Re-indexes one category after its list has been re-sorted or edited.
+    public void updateCategory(int category, RankingList rankingList) {
+        if (category < 0 || category >= categories.length || rankingList == null) {
+            return;
+        }
+
+        // Clear this category's old ranks.
+        int[] positions = positionById[category];
+        for (int id : idsByPosition[category]) {
+            positions[id] = 0;
+        }
+
+        // Record 1-based positions; the first occurrence of a name wins.
+        // Lists arrive sorted, so ties are adjacent and one walk ranks them.
+        int n = rankingList.size();
+        int[] ids = new int[n];
+        int[] competition = new int[n];
+        int[] dense = new int[n];
+        for (int i = 0; i < n; i++) {
+            boolean tied = i > 0 && Double.compare(rankingList.value(i), rankingList.value(i - 1)) == 0;
+            competition[i] = tied ? competition[i - 1] : i + 1;
+            dense[i] = tied ? dense[i - 1] : (i == 0 ? 1 : dense[i - 1] + 1);
+            ids[i] = rankingList.id(i);
+        }
+
+        // Grow the position array to cover any newly assigned IDs, then fill it.
+        if (positions.length < dictionary.size()) {
+            positions = Arrays.copyOf(positions, Math.max(dictionary.size(), positions.length * 3 / 2));
+            positionById[category] = positions;
+        }
+        for (int i = 0; i < n; i++) {
+            if (positions[ids[i]] == 0) {
+                positions[ids[i]] = i + 1;
+            }
+        }
+        idsByPosition[category] = ids;
+        competitionByPosition[category] = competition;
+        denseByPosition[category] = dense;
+    }
+
+    // 1-based rank of a market in one category, or 0 if it isn't ranked there.
+    public int getRank(String marketName, int category) {
+        return getRank(dictionary.find(marketName), category);
+    }
+
+    // The same by market ID.
+    public int getRank(int id, int category) {
+        if (id < 0 || category < 0 || category >= categories.length || id >= positionById[category].length) {
+            return 0;
+        }
+        return positionById[category][id];
+    }
+
+    // Rank of a market in one category under the given mode, or 0 if it isn't ranked there.
+    public double getRank(String marketName, int category, Mode mode) {
+        return getRank(dictionary.find(marketName), category, mode);
+    }
+
+    public double getRank(int id, int category, Mode mode) {
+        int position = getRank(id, category);
+        if (position == 0) {
+            return 0;
+        }
+        if (mode == Mode.COMPETITION) {
+            return competitionByPosition[category][position - 1];
+        }
+        if (mode == Mode.DENSE) {
+            return denseByPosition[category][position - 1];
+        }
+        if (mode == Mode.PERCENTILE) {
+            // Percent of the category ranked strictly ahead of this market.
+            int n = idsByPosition[category].length;
+            int ahead = competitionByPosition[category][position - 1] - 1;
+            return n <= 1 ? 0 : Math.round(ahead * 10000.0 / (n - 1)) / 100.0;
+        }
+        return position;
+    }
+
+    // Ranks in every category, or null for a market ranked nowhere.
+    public int[] getRanks(String marketName) {
+        int id = dictionary.find(marketName);
+        int[] marketRanks = new int[categories.length];
+        boolean ranked = false;
+        for (int category = 0; category < categories.length; category++) {
+            marketRanks[category] = getRank(id, category);
+            ranked |= marketRanks[category] != 0;
+        }
+        return ranked ? marketRanks : null;
+    }
+
+    // Every ranked market name, sorted for stable exports.
+    public ArrayList<String> marketNames() {
+        boolean[] ranked = new boolean[dictionary.size()];
+        for (int[] ids : idsByPosition) {
+            for (int id : ids) {
+                ranked[id] = true;
+            }
+        }
+        ArrayList<String> names = new ArrayList<String>();
+        for (int id = 0; id < ranked.length; id++) {
+            if (ranked[id]) {
+                names.add(dictionary.name(id));
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    // Writes one CSV row per requested market with its rank in each category.
+    public int exportRanks(List<String> marketNames, String filename, Mode mode) throws IOException {
+        PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(filename)));
+        pw.print("Market");
+        for (String category : categories) {
+            pw.print("," + category.replace(" Rankings:", ""));
+        }
+        pw.println();
+
+        int written = 0;
+        for (String name : marketNames) {
+            int id = dictionary.find(name);
+            int[] marketRanks = getRanks(name);
+            if (marketRanks == null) {
+                continue;
+            }
+            pw.print(name.trim());
+            for (int category = 0; category < marketRanks.length; category++) {
+                pw.print(",");
+                if (marketRanks[category] > 0) {
+                    double rank = getRank(id, category, mode);
+                    pw.print(mode == Mode.PERCENTILE ? Double.toString(rank) : Integer.toString((int) rank));
+                }
+            }
+            pw.println();
+            written++;
+        }
+        pw.close();
+        return written;
+    }
+}
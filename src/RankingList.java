@@ -0,0 +1,182 @@
+import java.util.*;
+
+/**
+* RankingList.java
+*
+* One ranking category in memory: market IDs from a MarketDictionary in
+* rank order, with each market's value alongside in a parallel double
+* array. Lists are read from Rankings.txt once per entry and sorted by
+* value, then name, without re-parsing anything; the "Market - value"
+* text of the file is produced again only when a list is written out.
+* Missing or malformed values are held as NaN and sort last.
+*/
+public class RankingList {
+    private final MarketDictionary dictionary;
+    private int[] ids = new int[16];
+    private double[] values = new double[16];
+    private int size;
+
+    public RankingList(MarketDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Market ID at a 0-based position.
+    public int id(int position) {
+        return ids[position];
+    }
+
+    public String name(int position) {
+        return dictionary.name(ids[position]);
+    }
+
+    public double value(int position) {
+        return values[position];
+    }
+
+    public void add(String marketName, double value) {
+        add(dictionary.id(marketName), value);
+    }
+
+    public void add(int id, double value) {
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        ids[size] = id;
+        values[size++] = value;
+    }
+
+    // Adds one "Market - value" entry as read from Rankings.txt.
+    public void addEntry(String entry) {
+        add(nameOf(entry), valueOf(entry));
+    }
+
+    // 0-based position of the first entry for a market, or -1.
+    public int indexOf(String marketName) {
+        int id = dictionary.find(marketName);
+        for (int i = 0; id >= 0 && i < size; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Replaces the value of every entry for a market; false if it isn't listed.
+    public boolean set(String marketName, double value) {
+        int id = dictionary.find(marketName);
+        boolean listed = false;
+        for (int i = 0; id >= 0 && i < size; i++) {
+            if (ids[i] == id) {
+                values[i] = value;
+                listed = true;
+            }
+        }
+        return listed;
+    }
+
+    // Sets a market's value, adding the entry if it is missing.
+    public void put(String marketName, double value) {
+        if (!set(marketName, value)) {
+            add(marketName, value);
+        }
+    }
+
+    // Drops every entry for a market; returns how many were dropped.
+    public int remove(String marketName) {
+        int id = dictionary.find(marketName);
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (id < 0 || ids[i] != id) {
+                ids[kept] = ids[i];
+                values[kept++] = values[i];
+            }
+        }
+        int removed = size - kept;
+        size = kept;
+        return removed;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // Sorts by value, then market name, so ties never depend on input order.
+    public void sort() {
+        if (size < 2) {
+            return;
+        }
+        // Names are fetched once per entry rather than once per comparison.
+        String[] names = new String[size];
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = dictionary.name(ids[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> {
+            int byValue = Double.compare(values[a], values[b]);
+            return byValue != 0 ? byValue : names[a].compareTo(names[b]);
+        });
+
+        int[] sortedIds = new int[ids.length];
+        double[] sortedValues = new double[values.length];
+        for (int i = 0; i < size; i++) {
+            sortedIds[i] = ids[order[i]];
+            sortedValues[i] = values[order[i]];
+        }
+        ids = sortedIds;
+        values = sortedValues;
+    }
+
+    // "Market - value" text of one entry, as written to Rankings.txt.
+    public String entry(int position) {
+        return name(position) + " - " + values[position];
+    }
+
+    // Entries formatted one at a time as they are written.
+    public Iterable<String> entries() {
+        return () -> new Iterator<String>() {
+            private int position;
+
+            @Override
+            public boolean hasNext() {
+                return position < size;
+            }
+
+            @Override
+            public String next() {
+                if (position >= size) {
+                    throw new NoSuchElementException();
+                }
+                return entry(position++);
+            }
+        };
+    }
+
+    // Market name portion of a "Market - value" entry.
+    public static String nameOf(String entry) {
+        int split = entry.lastIndexOf(" - ");
+        return split < 0 ? entry.trim() : entry.substring(0, split).trim();
+    }
+
+    // Numeric portion of a "Market - value" entry, or NaN if it is missing or malformed.
+    public static double valueOf(String entry) {
+        int split = entry.lastIndexOf(" - ");
+        if (split < 0) {
+            return Double.NaN;
+        }
+        try {
+            return DecimalParser.parse(entry, split + 3, entry.length());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
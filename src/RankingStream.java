@@ -0,0 +1,218 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+* RankingStream.java
+*
+* Chunked reader and writer for Rankings.txt. The file layout is unchanged
+* (one "<Category> Rankings: A - v,B - v,..." line per category), but a
+* category line is never held as one String: the reader pulls the file
+* through a fixed char buffer and hands out one entry at a time, and a
+* caller that has what it needs can skip the rest of a category without
+* allocating. Rewriting one category streams every other line through
+* untouched into a temporary file that then replaces the original, so
+* memory stays at one buffer plus the category being written.
+*/
+public class RankingStream {
+    private static final int CHUNK_CHARS = 64 * 1024;
+
+    // Entry-at-a-time reader over a rankings file.
+    public static class Reader implements Closeable {
+        private final java.io.Reader in;
+        private final char[] buffer = new char[CHUNK_CHARS];
+        private int position;
+        private int limit;
+        private boolean inCategory;
+        private final StringBuilder token = new StringBuilder();
+
+        public Reader(String filename) throws IOException {
+            this.in = new InputStreamReader(new FileInputStream(filename), "UTF-8");
+        }
+
+        // Next char, or -1 at end of file.
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+
+        // Moves to the next category line and returns its heading ("... Rankings:"), or null at end of
+        // file. Lines without a heading are skipped.
+        public String nextCategory() throws IOException {
+            if (inCategory) {
+                skipCategory();
+            }
+            while (true) {
+                token.setLength(0);
+                int c;
+                while ((c = read()) != -1 && c != ':' && c != '\n') {
+                    token.append((char) c);
+                }
+                if (c == -1) {
+                    return null;
+                }
+                if (c == ':') {
+                    inCategory = true;
+                    return token.toString().trim() + ":";
+                }
+            }
+        }
+
+        // Next "Market - value" entry of the current category, or null once the line ends.
+        public String nextEntry() throws IOException {
+            while (inCategory) {
+                token.setLength(0);
+                int c;
+                while ((c = read()) != -1 && c != ',' && c != '\n') {
+                    token.append((char) c);
+                }
+                if (c != ',') {
+                    inCategory = false;
+                }
+                String entry = token.toString().trim();
+                if (!entry.isEmpty()) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        // Skips the rest of the current category without building any strings.
+        public void skipCategory() throws IOException {
+            int c;
+            while (inCategory && (c = read()) != -1 && c != '\n') {
+                // Discard.
+            }
+            inCategory = false;
+        }
+
+        // Copies the rest of the current category line, newline included, straight to the writer.
+        void copyCategory(java.io.Writer out) throws IOException {
+            while (inCategory) {
+                if (position == limit && read() != -1) {
+                    position--;
+                }
+                if (position == limit) {
+                    inCategory = false;
+                    out.write('\n');
+                    return;
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                out.write(buffer, start, position - start);
+                if (position < limit) {
+                    position++;
+                    out.write('\n');
+                    inCategory = false;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Writes one category line from any sequence of entries.
+    public static void writeCategory(java.io.Writer out, String prefix, Iterable<String> entries) throws IOException {
+        out.write(prefix);
+        out.write(' ');
+        boolean first = true;
+        for (String entry : entries) {
+            if (!first) {
+                out.write(',');
+            }
+            out.write(entry);
+            first = false;
+        }
+        out.write('\n');
+    }
+
+    // 1-based position of a market in every category, 0 where it isn't listed; each category stops
+    // being read at the first match. Null if the file lacks a required category.
+    public static int[] positions(String filename, String marketName, String[] categories, boolean[] required)
+            throws IOException {
+        int[] positions = new int[categories.length];
+        boolean[] seen = new boolean[categories.length];
+        Reader reader = new Reader(filename);
+        try {
+            String prefix;
+            while ((prefix = reader.nextCategory()) != null) {
+                int category = indexOf(categories, prefix);
+                if (category < 0 || seen[category]) {
+                    continue;
+                }
+                seen[category] = true;
+                String entry;
+                for (int position = 1; (entry = reader.nextEntry()) != null; position++) {
+                    if (RankingList.nameOf(entry).equals(marketName)) {
+                        positions[category] = position;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        for (int i = 0; i < categories.length; i++) {
+            if (required[i] && !seen[i]) {
+                return null;
+            }
+        }
+        return positions;
+    }
+
+    // Replaces one category line, or appends it if the file lacks it, streaming every other line through.
+    public static void replaceCategory(String filename, String prefix, Iterable<String> entries) throws IOException {
+        File target = new File(filename);
+        File temp = new File(filename + ".tmp");
+        boolean replaced = false;
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"),
+                CHUNK_CHARS);
+        try {
+            if (target.exists()) {
+                Reader reader = new Reader(filename);
+                try {
+                    String heading;
+                    while ((heading = reader.nextCategory()) != null) {
+                        if (heading.equals(prefix.trim()) && !replaced) {
+                            reader.skipCategory();
+                            writeCategory(out, heading, entries);
+                            replaced = true;
+                        } else {
+                            out.write(heading);
+                            reader.copyCategory(out);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            if (!replaced) {
+                writeCategory(out, prefix.trim(), entries);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static int indexOf(String[] categories, String prefix) {
+        for (int i = 0; i < categories.length; i++) {
+            if (categories[i].equals(prefix)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.*;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+* ScenarioEngine.java
+*
+* Stress scenarios applied to the national series and passed through every
+* market's stored beta. A scenario gives, per family, the cumulative shock
+* to the national series after each period; a market moves by beta times
+* that shock from its last observed value. Markets are held column-wise
+* (one beta array and one last-value array per family), so a batch of
+* scenarios is an outer product evaluated with a flat loop over markets,
+* in parallel across the batch. Each batch is ranked and streamed to the
+* results file before the next one is computed. A scenario's shock is the
+* final value of its path, for the rankings and for the most exposed
+* market alike; the latter is read off each scenario's projected moves.
+*/
+public class ScenarioEngine {
+    private static final int SCENARIO_BATCH = 64;
+
+    // One named shock: a cumulative national shock path per family, null where untouched.
+    public static class Scenario {
+        private final String name;
+        private final double[][] paths;
+
+        public Scenario(String name, double[][] paths) {
+            this.name = name;
+            this.paths = paths;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double[] getPath(int family) {
+            return paths[family];
+        }
+    }
+
+    private final String[] names;
+    // Per family, per market.
+    private final double[][] betas;
+    private final double[][] lastValues;
+    // Per scenario of the last run, per family: the market with the largest projected move and that move;
+    // -1 and NaN where the family isn't shocked or the universe is empty.
+    private int[][] mostExposed = new int[0][];
+    private double[][] exposedMoves = new double[0][];
+
+    public ScenarioEngine(String[] names, double[][] betas, double[][] lastValues) {
+        this.names = names;
+        this.betas = betas;
+        this.lastValues = lastValues;
+    }
+
+    // Evaluates every scenario against every market and writes one ranking line per scenario family,
+    // "<Scenario> <Family> Rankings: Market - projected,...", lowest projected value first.
+    public int run(List<Scenario> scenarios, String filename) throws IOException {
+        int familyCount = MetricEngine.familyCount();
+        int n = names.length;
+        double[][] projected = new double[SCENARIO_BATCH][n];
+        int lines = 0;
+        mostExposed = new int[scenarios.size()][familyCount];
+        exposedMoves = new double[scenarios.size()][familyCount];
+        for (int s = 0; s < scenarios.size(); s++) {
+            Arrays.fill(mostExposed[s], -1);
+            Arrays.fill(exposedMoves[s], Double.NaN);
+        }
+
+        PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(filename)));
+        try {
+            for (int start = 0; start < scenarios.size(); start += SCENARIO_BATCH) {
+                int batch = Math.min(SCENARIO_BATCH, scenarios.size() - start);
+                for (int f = 0; f < familyCount; f++) {
+                    final int family = f;
+                    final int first = start;
+                    double[] beta = betas[f];
+                    double[] last = lastValues[f];
+
+                    // Outer product over the batch: projected[k][m] = last[m] + beta[m] * shock[k].
+                    IntStream.range(0, batch).parallel().forEach(k -> {
+                        double[] path = scenarios.get(first + k).getPath(family);
+                        if (path == null || path.length == 0) {
+                            return;
+                        }
+                        double shock = path[path.length - 1];
+                        double[] row = projected[k];
+                        for (int m = 0; m < n; m++) {
+                            row[m] = last[m] + beta[m] * shock;
+                        }
+
+                        // The largest projected move, ties to the first name.
+                        int exposed = -1;
+                        double exposedMove = 0;
+                        for (int m = 0; m < n; m++) {
+                            double move = row[m] - last[m];
+                            if (Double.isNaN(move)) {
+                                continue;
+                            }
+                            double cmp = Math.abs(move) - Math.abs(exposedMove);
+                            if (exposed < 0 || cmp > 0 || (cmp == 0 && names[m].compareTo(names[exposed]) < 0)) {
+                                exposed = m;
+                                exposedMove = move;
+                            }
+                        }
+                        mostExposed[first + k][family] = exposed;
+                        exposedMoves[first + k][family] = exposed < 0 ? Double.NaN : exposedMove;
+                    });
+
+                    // Rank and stream this batch in scenario order.
+                    for (int k = 0; k < batch; k++) {
+                        Scenario scenario = scenarios.get(start + k);
+                        double[] path = scenario.getPath(f);
+                        if (path == null || path.length == 0) {
+                            continue;
+                        }
+                        writeRanking(pw, scenario.getName() + " " + MetricEngine.family(f) + " Rankings: ",
+                                projected[k]);
+                        lines++;
+                    }
+                }
+            }
+        } finally {
+            pw.close();
+        }
+        return lines;
+    }
+
+    private void writeRanking(PrintWriter pw, String prefix, double[] values) {
+        Integer[] order = new Integer[names.length];
+        for (int m = 0; m < order.length; m++) {
+            order[m] = m;
+        }
+        // Same total order as Rankings.txt: value, then market name.
+        Arrays.sort(order, (a, b) -> {
+            int cmp = Double.compare(values[a], values[b]);
+            return cmp != 0 ? cmp : names[a].compareTo(names[b]);
+        });
+        pw.print(prefix);
+        for (int i = 0; i < order.length; i++) {
+            if (i > 0) {
+                pw.print(',');
+            }
+            pw.print(names[order[i]]);
+            pw.print(" - ");
+            pw.print(values[order[i]]);
+        }
+        pw.println();
+    }
+
+    // Market with the largest projected move in one family under one scenario of the last run, by the
+    // scenario's index in that run; null if the family isn't shocked or there are no markets.
+    public String getMostExposed(int scenario, int family) {
+        int m = mostExposed[scenario][family];
+        return m < 0 ? null : names[m];
+    }
+
+    // That market's projected move at the scenario's final shock; NaN if the family isn't shocked.
+    public double getExposedMove(int scenario, int family) {
+        return exposedMoves[scenario][family];
+    }
+
+    // Reads "<Scenario>: <Family>: s1, s2, ... | <Family>: ..." lines, where each s is the
+    // cumulative shock to the national series after that period.
+    public static ArrayList<Scenario> load(String filename) throws IOException {
+        ArrayList<Scenario> scenarios = new ArrayList<Scenario>();
+        if (!new File(filename).exists()) {
+            return scenarios;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int colon = line.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                double[][] paths = new double[MetricEngine.familyCount()][];
+                boolean valid = !name.isEmpty();
+                for (String part : line.substring(colon + 1).split("\\|")) {
+                    int split = part.indexOf(':');
+                    int family = split < 0 ? -1 : MetricEngine.familyIndex(part.substring(0, split).trim());
+                    double[] path = family < 0 ? null : parsePath(part.substring(split + 1));
+                    if (path == null) {
+                        valid = false;
+                        break;
+                    }
+                    paths[family] = path;
+                }
+                if (valid) {
+                    scenarios.add(new Scenario(name, paths));
+                } else {
+                    System.out.println("Skipping invalid scenario line in " + filename + ": " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return scenarios;
+    }
+
+    private static double[] parsePath(String text) {
+        try {
+            double[] path = DecimalParser.parseList(text, true);
+            return path.length == 0 ? null : path;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
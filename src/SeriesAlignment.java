@@ -0,0 +1,61 @@
+/**
+* SeriesAlignment.java
+*
+* Lines a market series up with a benchmark series by period. Series whose
+* first periods are known are joined with of(): a merge of two sorted,
+* contiguous period runs, which reduces to the intersection of the runs.
+* It is found in constant time and describes a window into each array, so
+* statistics read both series in place over the overlap without copying.
+* The data files carry no dates or frequencies, and they mix frequencies:
+* market lines hold quarterly points while National.txt holds annual ones.
+* A difference in length can't be told apart from a difference in
+* frequency, so latest() only pairs series of the same length, period for
+* period, and reports no shared periods otherwise.
+*/
+public class SeriesAlignment {
+    private final int marketFrom;
+    private final int benchmarkFrom;
+    private final int length;
+
+    private SeriesAlignment(int marketFrom, int benchmarkFrom, int length) {
+        this.marketFrom = marketFrom;
+        this.benchmarkFrom = benchmarkFrom;
+        this.length = length;
+    }
+
+    // Shared periods of two series whose first points sit at the given periods.
+    public static SeriesAlignment of(int marketStart, int marketLength, int benchmarkStart, int benchmarkLength) {
+        int start = Math.max(marketStart, benchmarkStart);
+        int end = Math.min(marketStart + marketLength, benchmarkStart + benchmarkLength);
+        if (end <= start) {
+            return new SeriesAlignment(0, 0, 0);
+        }
+        return new SeriesAlignment(start - marketStart, start - benchmarkStart, end - start);
+    }
+
+    // Shared periods of two unkeyed series that end at the latest period; empty if either is missing
+    // or their lengths differ, since they may then be at different frequencies.
+    public static SeriesAlignment latest(double[] market, double[] benchmark) {
+        int marketLength = market == null ? 0 : market.length;
+        int benchmarkLength = benchmark == null ? 0 : benchmark.length;
+        if (marketLength != benchmarkLength) {
+            return new SeriesAlignment(0, 0, 0);
+        }
+        return of(-marketLength, marketLength, -benchmarkLength, benchmarkLength);
+    }
+
+    // Index of the first shared period in the market series.
+    public int getMarketFrom() {
+        return marketFrom;
+    }
+
+    // Index of the first shared period in the benchmark series.
+    public int getBenchmarkFrom() {
+        return benchmarkFrom;
+    }
+
+    // Number of shared periods.
+    public int getLength() {
+        return length;
+    }
+}
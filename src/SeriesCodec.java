@@ -0,0 +1,222 @@
+import java.util.*;
+
+/**
+* SeriesCodec.java
+*
+* Compact text encoding for the stored series, written as "{S3:...}" or
+* "{X:...}" in place of the "[v1, v2, ...]" list text. Most series hold
+* values with a few decimals, so the scaled form ("S" plus the number of
+* decimals) stores each value as an integer at that scale, delta-encoded
+* from the one before as a zigzag varint. A series that no small scale
+* reproduces bit for bit, such as a derived roll-up or one holding -0.0
+* (which scales to a plain 0), falls back to the XOR form: each value's
+* bits XOR the previous value's bits, stored as the trailing-zero count
+* and the remaining bits as varints. Both are lossless. The bytes are Base64 without padding, so the result contains
+* no '|', ',', ':' or brackets and fits the Markets.txt line layout.
+* Decoding reads the characters straight into a primitive array.
+*/
+public class SeriesCodec {
+    private static final int MAX_DECIMALS = 6;
+    private static final double[] SCALES = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6};
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+    private static final int[] SIXTETS = new int[128];
+
+    static {
+        Arrays.fill(SIXTETS, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            SIXTETS[ALPHABET[i]] = i;
+        }
+    }
+
+    // Whether a stored section value is in encoded form rather than list text.
+    public static boolean isEncoded(String text) {
+        return text.startsWith("{");
+    }
+
+    public static String encode(double[] series) {
+        int n = series == null ? 0 : series.length;
+        int decimals = scaleFor(series);
+        ByteSink sink = new ByteSink(n * 2 + 4);
+        sink.varint(n);
+        if (decimals >= 0) {
+            long previous = 0;
+            for (int i = 0; i < n; i++) {
+                long scaled = Math.round(series[i] * SCALES[decimals]);
+                sink.varint(zigzag(scaled - previous));
+                previous = scaled;
+            }
+        } else {
+            long previous = 0;
+            for (int i = 0; i < n; i++) {
+                long bits = Double.doubleToRawLongBits(series[i]);
+                long xor = bits ^ previous;
+                int trailing = xor == 0 ? 64 : Long.numberOfTrailingZeros(xor);
+                sink.varint(trailing);
+                if (xor != 0) {
+                    sink.varint(xor >>> trailing);
+                }
+                previous = bits;
+            }
+        }
+        return "{" + (decimals >= 0 ? "S" + decimals : "X") + ":" + sink.base64() + "}";
+    }
+
+    // Smallest number of decimals that reproduces every value bit for bit, or -1 if none up to MAX_DECIMALS does.
+    // Bits are compared rather than values, since -0.0 == 0.0 but would decode as 0.0.
+    private static int scaleFor(double[] series) {
+        for (int d = 0; d <= MAX_DECIMALS; d++) {
+            boolean exact = true;
+            for (int i = 0; series != null && i < series.length && exact; i++) {
+                double scaled = series[i] * SCALES[d];
+                exact = Math.abs(scaled) < 1e15 && Double.doubleToRawLongBits(Math.round(scaled) / SCALES[d])
+                        == Double.doubleToRawLongBits(series[i]);
+            }
+            if (exact) {
+                return d;
+            }
+        }
+        return -1;
+    }
+
+    // Decodes "{S3:...}" or "{X:...}"; null if the text is damaged.
+    public static double[] decode(String text) {
+        int colon = text.indexOf(':');
+        int close = text.lastIndexOf('}');
+        if (!text.startsWith("{") || colon < 0 || close < colon) {
+            return null;
+        }
+        String mode = text.substring(1, colon);
+        ByteSource source = new ByteSource(text, colon + 1, close);
+        try {
+            int n = (int) source.varint();
+            if (n < 0 || n > close * 6) {
+                return null;
+            }
+            double[] series = new double[n];
+            if (mode.startsWith("S")) {
+                int decimals = Integer.parseInt(mode.substring(1));
+                if (decimals > MAX_DECIMALS) {
+                    return null;
+                }
+                double scale = SCALES[decimals];
+                long value = 0;
+                for (int i = 0; i < n; i++) {
+                    value += unzigzag(source.varint());
+                    series[i] = value / scale;
+                }
+            } else if (mode.equals("X")) {
+                long previous = 0;
+                for (int i = 0; i < n; i++) {
+                    int trailing = (int) source.varint();
+                    long xor = trailing >= 64 ? 0 : source.varint() << trailing;
+                    previous ^= xor;
+                    series[i] = Double.longBitsToDouble(previous);
+                }
+            } else {
+                return null;
+            }
+            return series;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    // Growable byte buffer with LEB128 varints and a Base64 rendering.
+    private static class ByteSink {
+        private byte[] bytes;
+        private int size;
+
+        ByteSink(int capacity) {
+            bytes = new byte[Math.max(8, capacity)];
+        }
+
+        void varint(long v) {
+            while (true) {
+                if (size == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                if ((v & ~0x7FL) == 0) {
+                    bytes[size++] = (byte) v;
+                    return;
+                }
+                bytes[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+        }
+
+        String base64() {
+            StringBuilder sb = new StringBuilder((size * 4 + 2) / 3);
+            for (int i = 0; i < size; i += 3) {
+                int chunk = (bytes[i] & 0xFF) << 16;
+                int remaining = size - i;
+                if (remaining > 1) {
+                    chunk |= (bytes[i + 1] & 0xFF) << 8;
+                }
+                if (remaining > 2) {
+                    chunk |= bytes[i + 2] & 0xFF;
+                }
+                sb.append(ALPHABET[(chunk >> 18) & 63]).append(ALPHABET[(chunk >> 12) & 63]);
+                if (remaining > 1) {
+                    sb.append(ALPHABET[(chunk >> 6) & 63]);
+                }
+                if (remaining > 2) {
+                    sb.append(ALPHABET[chunk & 63]);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    // Reads bytes straight out of the Base64 characters, without an intermediate array.
+    private static class ByteSource {
+        private final String text;
+        private int position;
+        private final int end;
+        private int buffer;
+        private int bits;
+
+        ByteSource(String text, int start, int end) {
+            this.text = text;
+            this.position = start;
+            this.end = end;
+        }
+
+        int next() {
+            while (bits < 8) {
+                if (position >= end) {
+                    throw new IndexOutOfBoundsException("Truncated series encoding");
+                }
+                char c = text.charAt(position++);
+                int sixtet = c < 128 ? SIXTETS[c] : -1;
+                if (sixtet < 0) {
+                    throw new NumberFormatException("Invalid series encoding character: " + c);
+                }
+                buffer = ((buffer << 6) | sixtet) & 0xFFFFF;
+                bits += 6;
+            }
+            bits -= 8;
+            return (buffer >> bits) & 0xFF;
+        }
+
+        long varint() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = next();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new NumberFormatException("Varint too long");
+        }
+    }
+}
@@ -0,0 +1,290 @@
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+* SimilarityIndex.java
+*
+* Nearest-neighbour search over every market's metric vector, optionally
+* extended with the normalized shape of each series. Vectors sit row-major
+* in flat arrays, metrics and shape apart so a metric-only query streams
+* only the metric block. A query is a blocked scan: blocks are searched in
+* parallel, each keeping its own top-k, and the block results are merged.
+* Adds and updates overwrite or append a row; removes move the last row
+* into the hole, so the index never needs a rebuild to stay current.
+* A missing (NaN) metric counts as the mean of that metric, so it adds
+* nothing to a distance on the z-score scale.
+*/
+public class SimilarityIndex {
+    // Points each series is resampled to for the shape features.
+    public static final int SHAPE_POINTS = 8;
+    private static final int BLOCK_ROWS = 4096;
+
+    // One search hit.
+    public static class Neighbor {
+        private final String marketName;
+        private final double distance;
+
+        public Neighbor(String marketName, double distance) {
+            this.marketName = marketName;
+            this.distance = distance;
+        }
+
+        public String getMarketName() {
+            return marketName;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+    }
+
+    private final int metricDims;
+    private final int shapeDims;
+    private double[] metricRows = new double[0];
+    private double[] shapeRows = new double[0];
+    // Market ID per row, and row + 1 per market ID (0 where not indexed).
+    private final MarketDictionary dictionary;
+    private int[] ids = new int[0];
+    private int[] rowById = new int[0];
+    private int size;
+    // Running per-metric sums over present values so the z-score scale follows every put and remove.
+    private final double[] sum;
+    private final double[] sumSq;
+    private final int[] present;
+    private boolean loaded;
+
+    public SimilarityIndex(MarketDictionary dictionary) {
+        this.dictionary = dictionary;
+        this.metricDims = MetricEngine.metricCount();
+        this.shapeDims = MetricEngine.familyCount() * SHAPE_POINTS;
+        this.sum = new double[metricDims];
+        this.sumSq = new double[metricDims];
+        this.present = new int[metricDims];
+    }
+
+    public synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized void setLoaded() {
+        loaded = true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean contains(String marketName) {
+        return rowOf(dictionary.find(marketName)) >= 0;
+    }
+
+    // Forgets everything; the next caller must reload.
+    public synchronized void invalidate() {
+        Arrays.fill(rowById, 0);
+        Arrays.fill(sum, 0);
+        Arrays.fill(sumSq, 0);
+        Arrays.fill(present, 0);
+        size = 0;
+        loaded = false;
+    }
+
+    // Adds a market or replaces its vector.
+    public synchronized void put(String marketName, double[] metrics, double[][] series) {
+        int id = dictionary.id(marketName);
+        int row = rowOf(id);
+        if (row < 0) {
+            ensureCapacity(size + 1);
+            row = size++;
+            ids[row] = id;
+            if (rowById.length <= id) {
+                rowById = Arrays.copyOf(rowById, Math.max(id + 1, rowById.length * 3 / 2));
+            }
+            rowById[id] = row + 1;
+        } else {
+            account(row, -1);
+        }
+
+        System.arraycopy(metrics, 0, metricRows, row * metricDims, metricDims);
+        for (int f = 0; f < MetricEngine.familyCount(); f++) {
+            shape(series == null ? null : series[f], shapeRows, row * shapeDims + f * SHAPE_POINTS);
+        }
+        account(row, 1);
+    }
+
+    public synchronized void remove(String marketName) {
+        int id = dictionary.find(marketName);
+        int row = rowOf(id);
+        if (row < 0) {
+            return;
+        }
+        rowById[id] = 0;
+        account(row, -1);
+
+        // Fill the hole with the last row so rows stay dense.
+        int last = --size;
+        if (row != last) {
+            System.arraycopy(metricRows, last * metricDims, metricRows, row * metricDims, metricDims);
+            System.arraycopy(shapeRows, last * shapeDims, shapeRows, row * shapeDims, shapeDims);
+            ids[row] = ids[last];
+            rowById[ids[row]] = row + 1;
+        }
+    }
+
+    // Row of a market ID, or -1 if it isn't indexed.
+    private int rowOf(int id) {
+        return id < 0 || id >= rowById.length ? -1 : rowById[id] - 1;
+    }
+
+    // The k markets closest to the named one, nearest first; null if it isn't indexed.
+    public synchronized List<Neighbor> nearest(String marketName, int k, boolean withShape) {
+        int row = rowOf(dictionary.find(marketName));
+        if (row < 0) {
+            return null;
+        }
+        double[] query = Arrays.copyOfRange(metricRows, row * metricDims, (row + 1) * metricDims);
+        double[] queryShape = Arrays.copyOfRange(shapeRows, row * shapeDims, (row + 1) * shapeDims);
+        return nearest(query, withShape ? queryShape : null, k, row);
+    }
+
+    // The k rows closest to a raw vector, skipping one row (-1 for none). A null
+    // shape leaves the shape features out of the distance.
+    private List<Neighbor> nearest(double[] query, double[] queryShape, int k, int skipRow) {
+        double[] weights = weights();
+        double[] means = means();
+        for (int j = 0; j < metricDims; j++) {
+            if (query[j] != query[j]) {
+                query[j] = means[j];
+            }
+        }
+        int count = size;
+        int blocks = (count + BLOCK_ROWS - 1) / BLOCK_ROWS;
+
+        // Each block keeps a max-heap of its best k, so the worst candidate is evicted first.
+        List<PriorityQueue<Neighbor>> partials = new ArrayList<PriorityQueue<Neighbor>>();
+        for (int b = 0; b < blocks; b++) {
+            partials.add(null);
+        }
+        IntStream.range(0, blocks).parallel().forEach(b -> {
+            PriorityQueue<Neighbor> heap = newHeap(k);
+            int end = Math.min(count, (b + 1) * BLOCK_ROWS);
+            for (int r = b * BLOCK_ROWS; r < end; r++) {
+                if (r == skipRow) {
+                    continue;
+                }
+                double bound = heap.size() < k ? Double.POSITIVE_INFINITY : heap.peek().getDistance();
+                double d = 0;
+                int base = r * metricDims;
+                for (int j = 0; j < metricDims && d < bound; j++) {
+                    double v = metricRows[base + j];
+                    double diff = (v == v ? v : means[j]) - query[j];
+                    d += diff * diff * weights[j];
+                }
+                base = r * shapeDims;
+                for (int j = 0; queryShape != null && j < shapeDims && d < bound; j++) {
+                    double diff = shapeRows[base + j] - queryShape[j];
+                    d += diff * diff;
+                }
+                if (d < bound) {
+                    heap.add(new Neighbor(dictionary.name(ids[r]), d));
+                    if (heap.size() > k) {
+                        heap.poll();
+                    }
+                }
+            }
+            partials.set(b, heap);
+        });
+
+        // Merge the block heaps and report Euclidean distances nearest first.
+        PriorityQueue<Neighbor> merged = newHeap(k);
+        for (PriorityQueue<Neighbor> heap : partials) {
+            for (Neighbor n : heap) {
+                merged.add(n);
+                if (merged.size() > k) {
+                    merged.poll();
+                }
+            }
+        }
+        ArrayList<Neighbor> result = new ArrayList<Neighbor>();
+        for (Neighbor n : merged) {
+            result.add(new Neighbor(n.getMarketName(), Math.sqrt(n.getDistance())));
+        }
+        result.sort((a, b) -> {
+            int cmp = Double.compare(a.getDistance(), b.getDistance());
+            return cmp != 0 ? cmp : a.getMarketName().compareTo(b.getMarketName());
+        });
+        return result;
+    }
+
+    // Largest distance on top; equal distances keep the alphabetically first name.
+    private static PriorityQueue<Neighbor> newHeap(int k) {
+        return new PriorityQueue<Neighbor>(Math.max(1, k + 1), (a, b) -> {
+            int cmp = Double.compare(b.getDistance(), a.getDistance());
+            return cmp != 0 ? cmp : b.getMarketName().compareTo(a.getMarketName());
+        });
+    }
+
+    // Inverse variance per metric so every metric counts on a z-score scale;
+    // shape features are already normalized per series and weigh 1.
+    private double[] weights() {
+        double[] weights = new double[metricDims];
+        for (int j = 0; j < metricDims; j++) {
+            double mean = present[j] == 0 ? 0 : sum[j] / present[j];
+            double variance = present[j] == 0 ? 0 : sumSq[j] / present[j] - mean * mean;
+            weights[j] = variance > 1e-12 ? 1 / variance : 0;
+        }
+        return weights;
+    }
+
+    // Mean of each metric over the markets that have it; stands in for missing values.
+    private double[] means() {
+        double[] means = new double[metricDims];
+        for (int j = 0; j < metricDims; j++) {
+            means[j] = present[j] == 0 ? 0 : sum[j] / present[j];
+        }
+        return means;
+    }
+
+    // Adds (+1) or retracts (-1) one row's metrics from the running sums.
+    private void account(int row, int sign) {
+        int base = row * metricDims;
+        for (int j = 0; j < metricDims; j++) {
+            double v = metricRows[base + j];
+            if (Double.isFinite(v)) {
+                sum[j] += sign * v;
+                sumSq[j] += sign * v * v;
+                present[j] += sign;
+            }
+        }
+    }
+
+    private void ensureCapacity(int rowsNeeded) {
+        if (rowsNeeded <= ids.length) {
+            return;
+        }
+        int capacity = Math.max(rowsNeeded, Math.max(16, ids.length * 2));
+        metricRows = Arrays.copyOf(metricRows, capacity * metricDims);
+        shapeRows = Arrays.copyOf(shapeRows, capacity * shapeDims);
+        ids = Arrays.copyOf(ids, capacity);
+    }
+
+    // Z-normalizes a series and resamples it to SHAPE_POINTS by linear interpolation.
+    static void shape(double[] series, double[] out, int offset) {
+        if (series == null || series.length < 2) {
+            Arrays.fill(out, offset, offset + SHAPE_POINTS, 0);
+            return;
+        }
+        double mean = MetricEngine.avg(series);
+        double m2 = 0;
+        for (double v : series) {
+            m2 += (v - mean) * (v - mean);
+        }
+        double sd = Math.sqrt(m2 / series.length);
+        for (int p = 0; p < SHAPE_POINTS; p++) {
+            double position = (double) p * (series.length - 1) / (SHAPE_POINTS - 1);
+            int lo = (int) Math.floor(position);
+            int hi = Math.min(lo + 1, series.length - 1);
+            double v = series[lo] + (series[hi] - series[lo]) * (position - lo);
+            out[offset + p] = sd == 0 ? 0 : (v - mean) / sd;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+* SimilarityUpdateCheck.java
+*
+* Standalone check that a market update shows up in "similar markets", run
+* as "java SimilarityUpdateCheck". It writes three markets to a temporary
+* Markets.txt, indexes them, then edits one through a MarketCache handle
+* the way Volatility's update does: change the series and metrics, rewrite
+* the line, invalidate the cache, evict the handle and re-index it from the
+* handle the caller still holds. The edited market takes on another one's
+* series exactly, so that market must come back as its nearest neighbour
+* at distance 0, and the held handle must still read the new series.
+* Each failure is printed, and the exit status is 1 if there were any.
+*/
+public class SimilarityUpdateCheck {
+    private static final int POINTS = 10;
+
+    private static int checked;
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        int families = MetricEngine.familyCount();
+        double[][] national = new double[families][];
+        double[][] rising = new double[families][];
+        double[][] falling = new double[families][];
+        for (int f = 0; f < families; f++) {
+            national[f] = new double[POINTS];
+            rising[f] = new double[POINTS];
+            falling[f] = new double[POINTS];
+            for (int i = 0; i < POINTS; i++) {
+                national[f][i] = 5 + f + Math.sin(i);
+                rising[f][i] = 4 + f + 0.4 * i + 0.3 * Math.cos(i);
+                falling[f][i] = 9 + f - 0.6 * i + 0.2 * Math.sin(2 * i);
+            }
+        }
+
+        // Alpha starts out identical to Gamma; Beta runs the other way.
+        File file = File.createTempFile("Markets", ".txt");
+        file.deleteOnExit();
+        ArrayList<String> lines = new ArrayList<String>();
+        lines.add(line("Alpha", rising, national));
+        lines.add(line("Beta", falling, national));
+        lines.add(line("Gamma", rising, national));
+        write(file, lines);
+
+        SimilarityIndex index = new SimilarityIndex(new MarketDictionary());
+        for (String line : lines) {
+            String[] marketDetails = line.split("\\|");
+            double[][] series = new double[families][];
+            for (int f = 0; f < families; f++) {
+                series[f] = MetricEngine.parseSeries(marketDetails, f);
+            }
+            index.put(line.split(":", 2)[0], MetricEngine.parseMetrics(marketDetails), series);
+        }
+        expectNearest(index, "Alpha", "Gamma");
+
+        // Update Alpha to Beta's series through a cached handle, then rewrite its line.
+        ArrayList<Market> evicted = new ArrayList<Market>();
+        MarketCache cache = new MarketCache(file.getPath(), 1, market -> evicted.add(market));
+        Market alpha = cache.get("Alpha");
+        double[] metrics = MetricEngine.compute(falling, national);
+        for (int f = 0; f < families; f++) {
+            alpha.getSeries(f);
+            for (int s = 0; s < MetricEngine.statCount(); s++) {
+                alpha.setStat(s, f, metrics[MetricEngine.index(s, f)]);
+            }
+            alpha.setSeries(f, toList(falling[f]));
+        }
+        lines.set(0, line("Alpha", falling, national));
+        write(file, lines);
+        cache.invalidate();
+        expect("invalidate hands back the dropped handle", evicted.contains(alpha));
+
+        // Loading other markets through the cache evicts again; the held handle must survive both.
+        cache.get("Beta");
+        cache.get("Gamma");
+        for (int f = 0; f < families; f++) {
+            expect("held handle keeps the new " + MetricEngine.family(f) + " series",
+                    Arrays.equals(toArray(alpha.getSeries(f)), falling[f]));
+        }
+
+        double[][] series = new double[families][];
+        for (int f = 0; f < families; f++) {
+            series[f] = toArray(alpha.getSeries(f));
+        }
+        index.put("Alpha", alpha.getMetrics(), series);
+        expectNearest(index, "Alpha", "Beta");
+
+        System.out.println("Checked " + checked + " cases; " + failures + " failures.");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Nearest neighbour with series shape must be the expected market; an exact copy must sit at distance 0.
+    private static void expectNearest(SimilarityIndex index, String marketName, String expected) {
+        List<SimilarityIndex.Neighbor> neighbors = index.nearest(marketName, 1, true);
+        if (neighbors == null || neighbors.isEmpty()) {
+            expect(marketName + " has a nearest neighbour", false);
+            return;
+        }
+        SimilarityIndex.Neighbor nearest = neighbors.get(0);
+        expect("nearest to " + marketName + " is " + expected + ", got " + nearest.getMarketName() + " at "
+                + nearest.getDistance(), nearest.getMarketName().equals(expected) && nearest.getDistance() < 1e-12);
+    }
+
+    private static String line(String marketName, double[][] series, double[][] national) {
+        return MetricEngine.formatLine(marketName, MetricEngine.compute(series, national), series);
+    }
+
+    private static void write(File file, ArrayList<String> lines) throws IOException {
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    private static ArrayList<Double> toList(double[] values) {
+        ArrayList<Double> list = new ArrayList<Double>();
+        for (double value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static double[] toArray(ArrayList<Double> values) {
+        double[] array = new double[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    private static void expect(String label, boolean passed) {
+        checked++;
+        if (!passed) {
+            failures++;
+            System.out.println("Failed: " + label);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+* SnapshotStore.java
+*
+* Versioned history of every market's metrics and every ranking category,
+* appended to Snapshots.txt. A version stores only what changed since the
+* one before it (changed values and removed names), so the file grows with
+* edits rather than with the universe. Callers hand over those changes as
+* a Delta gathered from the market lines they wrote, so recording an edit
+* never re-reads the data files or holds the whole state in memory. Every
+* CHECKPOINT_INTERVAL versions a full checkpoint is written instead, built
+* by replaying the delta onto the previous version. Snapshots.idx maps each
+* version to its time and byte offset, so an as-of query seeks straight to
+* the nearest checkpoint at or before the version and replays at most the
+* deltas after it.
+*
+* Version block layout:
+*   Version <n> <checkpoint|delta> <yyyy-mm-ddThh:mm:ss> <label>
+*   Metrics <market>: <metric label>=<value>,...
+*   Removed Metrics: <market>
+*   Ranking <category prefix> <market> - <value>,...
+*   Removed Ranking <category prefix> <market>,...
+*   End
+*/
+public class SnapshotStore {
+    private static final int CHECKPOINT_INTERVAL = 16;
+
+    // Metrics and rankings at one version.
+    public static class Snapshot {
+        private int version;
+        private LocalDateTime time;
+        private String label = "";
+        // Market name to metric label to stored value text.
+        private final HashMap<String, HashMap<String, String>> metrics = new HashMap<String, HashMap<String, String>>();
+        // Ranking prefix to market name to ranked value text.
+        private final HashMap<String, HashMap<String, String>> rankings = new HashMap<String, HashMap<String, String>>();
+
+        public int getVersion() {
+            return version;
+        }
+
+        public LocalDateTime getTime() {
+            return time;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public HashMap<String, String> getMetrics(String marketName) {
+            return metrics.get(marketName);
+        }
+
+        public void putMetric(String marketName, String metricLabel, String value) {
+            metrics.computeIfAbsent(marketName, m -> new HashMap<String, String>()).put(metricLabel, value);
+        }
+
+        // One category as "Market - value" entries, unsorted.
+        public ArrayList<String> getRanking(String prefix) {
+            ArrayList<String> entries = new ArrayList<String>();
+            HashMap<String, String> values = rankings.get(prefix);
+            if (values != null) {
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    entries.add(entry.getKey() + " - " + entry.getValue());
+                }
+            }
+            return entries;
+        }
+
+        public void putRanking(String prefix, String marketName, String value) {
+            rankings.computeIfAbsent(prefix, p -> new HashMap<String, String>()).put(marketName, value);
+        }
+    }
+
+    // Changes since the latest version, gathered as market lines are written.
+    public static class Delta {
+        // Market name to metric label to new value text, and markets removed outright.
+        private final TreeMap<String, TreeMap<String, String>> metrics = new TreeMap<String, TreeMap<String, String>>();
+        private final TreeSet<String> removedMetrics = new TreeSet<String>();
+        // Ranking prefix to market name to new value text, and names dropped from each category.
+        private final TreeMap<String, TreeMap<String, String>> rankings = new TreeMap<String, TreeMap<String, String>>();
+        private final TreeMap<String, TreeSet<String>> removedRankings = new TreeMap<String, TreeSet<String>>();
+
+        public boolean isEmpty() {
+            return metrics.isEmpty() && removedMetrics.isEmpty() && rankings.isEmpty() && removedRankings.isEmpty();
+        }
+
+        public void clear() {
+            metrics.clear();
+            removedMetrics.clear();
+            rankings.clear();
+            removedRankings.clear();
+        }
+
+        public void putMetric(String marketName, String metricLabel, String value) {
+            removedMetrics.remove(marketName);
+            metrics.computeIfAbsent(marketName, m -> new TreeMap<String, String>()).put(metricLabel, value);
+        }
+
+        public void removeMetrics(String marketName) {
+            metrics.remove(marketName);
+            removedMetrics.add(marketName);
+        }
+
+        public void putRanking(String prefix, String marketName, String value) {
+            TreeSet<String> removed = removedRankings.get(prefix);
+            if (removed != null) {
+                removed.remove(marketName);
+            }
+            rankings.computeIfAbsent(prefix, p -> new TreeMap<String, String>()).put(marketName, value);
+        }
+
+        public void removeRanking(String prefix, String marketName) {
+            TreeMap<String, String> values = rankings.get(prefix);
+            if (values != null) {
+                values.remove(marketName);
+            }
+            removedRankings.computeIfAbsent(prefix, p -> new TreeSet<String>()).add(marketName);
+        }
+
+        // Writes the version body in the same order a full diff would: markets, then categories, by name.
+        private void write(StringBuilder out) {
+            TreeSet<String> markets = new TreeSet<String>(metrics.keySet());
+            markets.addAll(removedMetrics);
+            for (String market : markets) {
+                if (removedMetrics.contains(market)) {
+                    out.append("Removed Metrics: ").append(market).append("\n");
+                    continue;
+                }
+                StringBuilder line = new StringBuilder();
+                for (Map.Entry<String, String> metric : metrics.get(market).entrySet()) {
+                    line.append(line.length() == 0 ? "" : ",").append(metric.getKey()).append("=")
+                            .append(metric.getValue());
+                }
+                out.append("Metrics ").append(market).append(": ").append(line).append("\n");
+            }
+
+            TreeSet<String> prefixes = new TreeSet<String>(rankings.keySet());
+            prefixes.addAll(removedRankings.keySet());
+            for (String prefix : prefixes) {
+                StringBuilder changed = new StringBuilder();
+                for (Map.Entry<String, String> entry : rankings.getOrDefault(prefix, new TreeMap<String, String>())
+                        .entrySet()) {
+                    changed.append(changed.length() == 0 ? "" : ",").append(entry.getKey()).append(" - ")
+                            .append(entry.getValue());
+                }
+                String removed = String.join(",", removedRankings.getOrDefault(prefix, new TreeSet<String>()));
+                if (changed.length() > 0) {
+                    out.append("Ranking ").append(prefix).append(" ").append(changed).append("\n");
+                }
+                if (!removed.isEmpty()) {
+                    out.append("Removed Ranking ").append(prefix).append(" ").append(removed).append("\n");
+                }
+            }
+        }
+    }
+
+    private final String dataFile;
+    private final String indexFile;
+    private final ArrayList<LocalDateTime> times = new ArrayList<LocalDateTime>();
+    private final ArrayList<Long> offsets = new ArrayList<Long>();
+    private final ArrayList<Boolean> checkpoints = new ArrayList<Boolean>();
+    private boolean loaded;
+
+    public SnapshotStore(String dataFile, String indexFile) {
+        this.dataFile = dataFile;
+        this.indexFile = indexFile;
+    }
+
+    // Number of versions stored; version numbers run from 1 to this.
+    public int versionCount() throws IOException {
+        ensureLoaded();
+        return offsets.size();
+    }
+
+    public LocalDateTime getTime(int version) throws IOException {
+        ensureLoaded();
+        return times.get(version - 1);
+    }
+
+    // Latest version recorded at or before the given time; 0 if there is none.
+    public int versionAt(LocalDateTime time) throws IOException {
+        ensureLoaded();
+        int lo = 0;
+        int hi = times.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times.get(mid).isAfter(time)) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    // Appends the whole state as a checkpoint version, such as the baseline before the first change;
+    // returns its number, or 0 if the state is empty.
+    public int recordFull(Snapshot current, String label) throws IOException {
+        ensureLoaded();
+        StringBuilder body = new StringBuilder();
+        if (diff(new Snapshot(), current, body) == 0) {
+            return 0;
+        }
+        return append(true, body, label);
+    }
+
+    // Appends a version holding the given changes; returns its number, or 0 if there are none. A version
+    // that falls on a checkpoint is written in full, from the previous version with the changes applied.
+    public int record(Delta changes, String label) throws IOException {
+        ensureLoaded();
+        if (changes.isEmpty()) {
+            return 0;
+        }
+        StringBuilder body = new StringBuilder();
+        changes.write(body);
+        int version = offsets.size() + 1;
+        boolean checkpoint = (version - 1) % CHECKPOINT_INTERVAL == 0;
+        if (checkpoint && version > 1) {
+            Snapshot state = asOf(version - 1);
+            for (String line : body.toString().split("\n")) {
+                apply(state, line);
+            }
+            body.setLength(0);
+            diff(new Snapshot(), state, body);
+        }
+        return append(checkpoint, body, label);
+    }
+
+    // Writes one version block and its index line.
+    private int append(boolean checkpoint, StringBuilder body, String label) throws IOException {
+        int version = offsets.size() + 1;
+        LocalDateTime time = LocalDateTime.now().withNano(0);
+        if (!times.isEmpty() && time.isBefore(times.get(times.size() - 1))) {
+            time = times.get(times.size() - 1);
+        }
+        String header = "Version " + version + " " + (checkpoint ? "checkpoint" : "delta") + " " + time + " "
+                + label.replace('\n', ' ');
+        byte[] bytes = (header + "\n" + body + "End\n").getBytes(StandardCharsets.UTF_8);
+
+        long offset = new File(dataFile).length();
+        FileOutputStream out = new FileOutputStream(dataFile, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        PrintWriter index = new PrintWriter(new BufferedWriter(new FileWriter(indexFile, true)));
+        index.println(version + "," + (checkpoint ? 1 : 0) + "," + time + "," + offset + "," + bytes.length);
+        index.close();
+
+        times.add(time);
+        offsets.add(offset);
+        checkpoints.add(checkpoint);
+        return version;
+    }
+
+    // Writes the changes from base to current; returns how many names changed.
+    private static int diff(Snapshot base, Snapshot current, StringBuilder out) {
+        int changes = 0;
+        TreeSet<String> markets = new TreeSet<String>(current.metrics.keySet());
+        markets.addAll(base.metrics.keySet());
+        for (String market : markets) {
+            HashMap<String, String> now = current.metrics.get(market);
+            HashMap<String, String> before = base.metrics.get(market);
+            if (now == null) {
+                out.append("Removed Metrics: ").append(market).append("\n");
+                changes++;
+                continue;
+            }
+            StringBuilder line = new StringBuilder();
+            for (String metric : new TreeSet<String>(now.keySet())) {
+                String value = now.get(metric);
+                if (before == null || !value.equals(before.get(metric))) {
+                    line.append(line.length() == 0 ? "" : ",").append(metric).append("=").append(value);
+                }
+            }
+            if (line.length() > 0) {
+                out.append("Metrics ").append(market).append(": ").append(line).append("\n");
+                changes++;
+            }
+        }
+
+        TreeSet<String> prefixes = new TreeSet<String>(current.rankings.keySet());
+        prefixes.addAll(base.rankings.keySet());
+        for (String prefix : prefixes) {
+            HashMap<String, String> now = current.rankings.get(prefix);
+            HashMap<String, String> before = base.rankings.get(prefix);
+            now = now == null ? new HashMap<String, String>() : now;
+            before = before == null ? new HashMap<String, String>() : before;
+            StringBuilder changed = new StringBuilder();
+            for (String market : new TreeSet<String>(now.keySet())) {
+                if (!now.get(market).equals(before.get(market))) {
+                    changed.append(changed.length() == 0 ? "" : ",").append(market).append(" - ")
+                            .append(now.get(market));
+                    changes++;
+                }
+            }
+            StringBuilder removed = new StringBuilder();
+            for (String market : new TreeSet<String>(before.keySet())) {
+                if (!now.containsKey(market)) {
+                    removed.append(removed.length() == 0 ? "" : ",").append(market);
+                    changes++;
+                }
+            }
+            if (changed.length() > 0) {
+                out.append("Ranking ").append(prefix).append(" ").append(changed).append("\n");
+            }
+            if (removed.length() > 0) {
+                out.append("Removed Ranking ").append(prefix).append(" ").append(removed).append("\n");
+            }
+        }
+        return changes;
+    }
+
+    // State at one version: seeks to the nearest checkpoint at or before it and replays forward.
+    public Snapshot asOf(int version) throws IOException {
+        ensureLoaded();
+        if (version < 1 || version > offsets.size()) {
+            return null;
+        }
+        int start = version;
+        while (start > 1 && !checkpoints.get(start - 1)) {
+            start--;
+        }
+
+        Snapshot snapshot = new Snapshot();
+        FileInputStream in = new FileInputStream(dataFile);
+        try {
+            in.getChannel().position(offsets.get(start - 1));
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            int current = start - 1;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("Version ")) {
+                    if (++current > version) {
+                        break;
+                    }
+                    String[] header = line.split(" ", 5);
+                    snapshot.version = current;
+                    snapshot.time = LocalDateTime.parse(header[3]);
+                    snapshot.label = header.length > 4 ? header[4] : "";
+                } else {
+                    apply(snapshot, line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return snapshot;
+    }
+
+    private static void apply(Snapshot snapshot, String line) {
+        if (line.startsWith("Removed Metrics: ")) {
+            snapshot.metrics.remove(line.substring("Removed Metrics: ".length()));
+        } else if (line.startsWith("Metrics ")) {
+            int colon = line.indexOf(": ");
+            String market = line.substring("Metrics ".length(), colon);
+            for (String pair : line.substring(colon + 2).split(",")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    snapshot.putMetric(market, pair.substring(0, eq), pair.substring(eq + 1));
+                }
+            }
+        } else if (line.startsWith("Removed Ranking ")) {
+            int colon = line.indexOf(": ");
+            String prefix = line.substring("Removed Ranking ".length(), colon + 1);
+            HashMap<String, String> values = snapshot.rankings.get(prefix);
+            for (String market : line.substring(colon + 2).split(",")) {
+                if (values != null) {
+                    values.remove(market);
+                }
+            }
+        } else if (line.startsWith("Ranking ")) {
+            int colon = line.indexOf(": ");
+            String prefix = line.substring("Ranking ".length(), colon + 1);
+            for (String entry : line.substring(colon + 2).split(",")) {
+                int split = entry.lastIndexOf(" - ");
+                if (split > 0) {
+                    snapshot.putRanking(prefix, entry.substring(0, split), entry.substring(split + 3));
+                }
+            }
+        }
+    }
+
+    // Reads the index, rebuilding it from the data file when it is missing or doesn't end where the data does.
+    private void ensureLoaded() throws IOException {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File data = new File(dataFile);
+        if (!data.exists()) {
+            return;
+        }
+        long indexedEnd = -1;
+        File index = new File(indexFile);
+        if (index.exists()) {
+            BufferedReader reader = new BufferedReader(new FileReader(index));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(",");
+                    if (parts.length < 5) {
+                        continue;
+                    }
+                    checkpoints.add(parts[1].equals("1"));
+                    times.add(LocalDateTime.parse(parts[2]));
+                    offsets.add(Long.parseLong(parts[3]));
+                    indexedEnd = Long.parseLong(parts[3]) + Long.parseLong(parts[4]);
+                }
+            } catch (RuntimeException e) {
+                indexedEnd = -1;
+            } finally {
+                reader.close();
+            }
+        }
+        if (indexedEnd != data.length()) {
+            rebuildIndex();
+        }
+    }
+
+    // Scans Snapshots.txt once for its version headers and rewrites the index.
+    private void rebuildIndex() throws IOException {
+        times.clear();
+        offsets.clear();
+        checkpoints.clear();
+        ArrayList<String> versions = new ArrayList<String>();
+        long offset = 0;
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(dataFile));
+        try {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                if (text.startsWith("Version ")) {
+                    String[] header = text.split(" ", 5);
+                    checkpoints.add(header[2].equals("checkpoint"));
+                    times.add(LocalDateTime.parse(header[3]));
+                    offsets.add(offset);
+                    versions.add(header[1]);
+                }
+                offset += line.size() + 1;
+                line.reset();
+            }
+        } finally {
+            in.close();
+        }
+
+        PrintWriter index = new PrintWriter(new BufferedWriter(new FileWriter(indexFile)));
+        for (int i = 0; i < offsets.size(); i++) {
+            long end = i + 1 < offsets.size() ? offsets.get(i + 1) : offset;
+            index.println(versions.get(i) + "," + (checkpoints.get(i) ? 1 : 0) + "," + times.get(i) + ","
+                    + offsets.get(i) + "," + (end - offsets.get(i)));
+        }
+        index.close();
+    }
+}
@@ -1,7 +1,11 @@
 import java.util.*;
-import java.util.regex.*;
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
+import java.util.stream.IntStream;
 import java.io.*;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
 
 /**
 * Volatility.java
@@ -12,8 +16,54 @@ import java.io.*;
 */
 public class Volatility {
     static ArrayList<Market> marketList = new ArrayList<Market>();
+    // Lazy market handles over Markets.txt; evicted handles also leave marketList.
+    static MarketCache marketCache = new MarketCache("Markets.txt", 1024,
+            market -> marketList.remove(market));
+
+    // Session-wide int IDs for market names, shared by the indexes below.
+    static MarketDictionary marketIds = new MarketDictionary();
+    // Ranking categories in MetricEngine index order, as returned by readRankingCategories.
+    static final String[] RANKING_CATEGORIES = MetricEngine.rankingPrefixes();
+    // Market name to rank in every category, kept in step with Rankings.txt writes.
+    static RankIndex rankIndex = new RankIndex(RANKING_CATEGORIES, marketIds);
+    // View Market streams Rankings.txt instead of indexing it once the file passes 1/8 of the heap.
+    static final int RANK_INDEX_HEAP_SHARE = 8;
+    // Metric vectors of every market for similar-market queries, kept in step with Markets.txt writes.
+    static SimilarityIndex similarityIndex = new SimilarityIndex(marketIds);
+    // Case-insensitive prefix, substring and did-you-mean lookup over Markets.txt names.
+    static NameSearchIndex nameIndex = new NameSearchIndex(marketIds);
+    // Matches listed by Search Markets before the rest are only counted.
+    static final int SEARCH_RESULT_LIMIT = 50;
+    // Column-wise metrics of every market for filter screens, kept in step with Markets.txt writes.
+    static MetricScreen metricScreen = new MetricScreen(marketIds);
+    // Markets per page of Screen Markets results.
+    static final int SCREEN_PAGE_SIZE = 20;
+    // Quantile sketches of every metric over all markets, kept in step with Markets.txt writes.
+    static MetricSketches metricSketches = new MetricSketches();
+    // Metro/submarket tree with the running roll-up sums, loaded on first use.
+    static MarketHierarchy hierarchy = new MarketHierarchy();
+    // Versioned history of Markets.txt metrics and Rankings.txt, appended after every change.
+    static SnapshotStore snapshotStore = new SnapshotStore("Snapshots.txt", "Snapshots.idx");
+    // Metric and ranking values changed since the last version, gathered as market lines are written.
+    static SnapshotStore.Delta snapshotChanges = new SnapshotStore.Delta();
 
     public static void main(String args[]) {
+        // One-off maintenance mode: recompute stored metrics and exit.
+        if (args.length > 0 && args[0].equals("--migrate")) {
+            migrateStoredMetrics();
+            return;
+        }
+        // Bulk-import markets from a file and exit.
+        if (args.length > 1 && args[0].equals("--ingest")) {
+            ingestProcess(args[1]);
+            return;
+        }
+        // Report on the stored series encoding and exit.
+        if (args.length > 0 && args[0].equals("--series-report")) {
+            seriesReport();
+            return;
+        }
+
         // Keep one scanner open for the full session.
         Scanner scanner = new Scanner(System.in);
         String answerMain = "";
@@ -29,6 +79,18 @@ public class Volatility {
             System.out.println("E. Remove Market");
             System.out.println("F. Extract Rankigs");
             System.out.println("G. Exit");
+            System.out.println("H. Export Market Ranks");
+            System.out.println("I. Rebase on National.txt");
+            System.out.println("J. Benchmark Betas");
+            System.out.println("K. Similar Markets");
+            System.out.println("L. Cluster Markets");
+            System.out.println("M. Roll Up Metros");
+            System.out.println("N. Bootstrap Intervals");
+            System.out.println("O. Shock Scenarios");
+            System.out.println("P. As-Of Lookup");
+            System.out.println("Q. Search Markets");
+            System.out.println("R. Screen Markets");
+            System.out.println("S. Metric Distributions");
             System.out.print("Enter your choice: ");
 
             // Handle EOF or closed stdin cleanly.
@@ -67,12 +129,73 @@ public class Volatility {
 
             // Route to "Extract Rankings".
             if (answerMain.toUpperCase().equals("F")) {
-                extractRankingsProcess();
+                extractRankingsProcess(scanner);
+            }
+
+            // Route to "Export Market Ranks".
+            if (answerMain.toUpperCase().equals("H")) {
+                exportRanksProcess(scanner);
+            }
+
+            // Route to "Rebase on National.txt".
+            if (answerMain.toUpperCase().equals("I")) {
+                rebaseProcess();
+            }
+
+            // Route to "Benchmark Betas".
+            if (answerMain.toUpperCase().equals("J")) {
+                benchmarkBetasProcess();
+            }
+
+            // Route to "Similar Markets".
+            if (answerMain.toUpperCase().equals("K")) {
+                similarMarketsProcess(scanner);
+            }
+
+            // Route to "Cluster Markets".
+            if (answerMain.toUpperCase().equals("L")) {
+                clusterMarketsProcess(scanner);
+            }
+
+            // Route to "Roll Up Metros".
+            if (answerMain.toUpperCase().equals("M")) {
+                rollUpProcess();
+            }
+
+            // Route to "Bootstrap Intervals".
+            if (answerMain.toUpperCase().equals("N")) {
+                bootstrapProcess(scanner);
+            }
+
+            // Route to "Shock Scenarios".
+            if (answerMain.toUpperCase().equals("O")) {
+                scenarioProcess();
+            }
+
+            // Route to "As-Of Lookup".
+            if (answerMain.toUpperCase().equals("P")) {
+                asOfProcess(scanner);
+            }
+
+            // Route to "Search Markets".
+            if (answerMain.toUpperCase().equals("Q")) {
+                searchMarketsProcess(scanner);
+            }
+
+            // Route to "Screen Markets".
+            if (answerMain.toUpperCase().equals("R")) {
+                screenMarketsProcess(scanner);
+            }
+
+            // Route to "Metric Distributions".
+            if (answerMain.toUpperCase().equals("S")) {
+                metricDistributionsProcess(scanner);
             }
 
             // Give feedback for unsupported menu keys.
-            if (!answerMain.isEmpty() && !"ABCDEFG".contains(answerMain.toUpperCase())) {
-                System.out.println("Invalid choice. Please enter A, B, C, D, E, F, or G.");
+            if (!answerMain.isEmpty() && !"ABCDEFGHIJKLMNOPQRS".contains(answerMain.toUpperCase())) {
+                System.out.println("Invalid choice. Please enter A, B, C, D, E, F, G, H, I, J, K, L, M, N, O, P, Q, "
+                        + "R, or S.");
             }
 
             System.out.println();
@@ -95,156 +218,97 @@ public class Volatility {
             return;
         }
 
-        // Read all three market metric series from the user.
-        System.out.println("Enter the rent growth for past 10 years, seperated by commas:");
-        ArrayList<Double> tenYrRG = parseDoubleList(scanner.nextLine());
-
-        System.out.println("Enter the vacancy for past 10 years, seperated by commas:");
-        ArrayList<Double> tenYrVac = parseDoubleList(scanner.nextLine());
-
-        System.out.println("Enter the cap rate for past 10 years, seperated by commas:");
-        ArrayList<Double> tenYrCap = parseDoubleList(scanner.nextLine());
+        // Read one series per metric family from the user, in prompt order; series stay in family order.
+        int familyCount = MetricEngine.familyCount();
+        ArrayList<ArrayList<Double>> series = new ArrayList<ArrayList<Double>>();
+        for (int f = 0; f < familyCount; f++) {
+            series.add(null);
+        }
+        for (int f : MetricEngine.promptOrder()) {
+            System.out.println("Enter the " + MetricEngine.family(f).toLowerCase()
+                    + " for past 10 years, seperated by commas:");
+            series.set(f, scanner.hasNextLine() ? parseDoubleList(scanner.nextLine()) : null);
+        }
 
         // Reject malformed numbers or mismatched list lengths up front.
-        if (tenYrRG == null || tenYrVac == null || tenYrCap == null) {
-            System.out.println("Invalid numeric input. Please enter comma-separated numbers only.");
-            return;
-        }
-        if (tenYrRG.isEmpty() || tenYrVac.isEmpty() || tenYrCap.isEmpty()) {
-            System.out.println("Each metric requires at least one numeric value.");
-            return;
+        for (ArrayList<Double> values : series) {
+            if (values == null) {
+                System.out.println("Invalid numeric input. Please enter comma-separated numbers only.");
+                return;
+            }
         }
-        if (tenYrRG.size() != tenYrVac.size() || tenYrRG.size() != tenYrCap.size()) {
-            System.out.println("Rent Growth, Vacancy, and Cap Rate lists must have the same number of entries.");
-            return;
+        for (ArrayList<Double> values : series) {
+            if (values.isEmpty()) {
+                System.out.println("Each metric requires at least one numeric value.");
+                return;
+            }
         }
-
         // Pull national benchmark series for beta calculations.
         ArrayList<ArrayList<Double>> nationalData = getNationalData();
-        if (nationalData == null || nationalData.size() < 3) {
+        if (nationalData == null || nationalData.size() < familyCount) {
             System.out.println("National data could not be loaded.");
             return;
         }
 
-        ArrayList<Double> tenYrNationalRG = nationalData.get(0);
-        ArrayList<Double> tenYrNationalVac = nationalData.get(1);
-        ArrayList<Double> tenYrNationalCap = nationalData.get(2);
-
-        // Ensure national lists are present and aligned with market lengths.
-        if (tenYrNationalRG.isEmpty() || tenYrNationalVac.isEmpty() || tenYrNationalCap.isEmpty()) {
-            System.out.println("National data is missing one or more metric lists.");
-            return;
+        // Ensure national lists are present and match the market lengths; without dates a different
+        // length may be a different frequency, so the series can't be lined up.
+        for (int f = 0; f < familyCount; f++) {
+            if (nationalData.get(f).isEmpty()) {
+                System.out.println("National data is missing one or more metric lists.");
+                return;
+            }
         }
-
-        if (tenYrNationalRG.size() != tenYrRG.size() || tenYrNationalVac.size() != tenYrVac.size()
-                || tenYrNationalCap.size() != tenYrCap.size()) {
-            System.out.println("National data length must match market data length for each metric.");
-            return;
+        for (int f = 0; f < familyCount; f++) {
+            if (nationalData.get(f).size() != series.get(f).size()) {
+                System.out.println("National data length must match market data length for each metric.");
+                return;
+            }
         }
 
-        // Compute the core risk metrics for this market.
-        double stdDevVac = stdDev(tenYrVac);
-        double stdDevRG = stdDev(tenYrRG);
-        double stdDevCap = stdDev(tenYrCap);
+        // Compute every statistic for every family in one call.
+        double[][] seriesArrays = new double[familyCount][];
+        double[][] nationalArrays = new double[familyCount][];
+        for (int f = 0; f < familyCount; f++) {
+            seriesArrays[f] = toDoubleArray(series.get(f));
+            nationalArrays[f] = toDoubleArray(nationalData.get(f));
+        }
+        double[] metrics = MetricEngine.compute(seriesArrays, nationalArrays);
+        int[] overlaps = MetricEngine.overlaps(seriesArrays, nationalArrays);
 
         System.out.println();
 
         // Echo calculated values so the user can sanity-check inputs.
-        System.out.println("Standard Deviation Vacancy: " + stdDevVac);
-        System.out.println("Standard Deviation Rent Growth: " + stdDevRG);
-        System.out.println("Standard Deviation Cap Rate: " + stdDevCap);
-
-        double cvVacancy = CV(stdDevVac, avg(tenYrVac));
-        double cvRG = CV(stdDevRG, avg(tenYrRG));
-        double cvCap = CV(stdDevCap, avg(tenYrCap));
-
-        System.out.println("CV for Vacancy: " + cvVacancy);
-        System.out.println("CV for Rent Growth: " + cvRG);
-        System.out.println("CV for Cap Rate: " + cvCap);
-
-        double betaVacancy = beta(tenYrNationalVac, tenYrVac);
-        double betaRG = beta(tenYrNationalRG, tenYrRG);
-        double betaCap = beta(tenYrNationalCap, tenYrCap);
-
-        System.out.println("Beta for Vacancy: " + betaVacancy);
-        System.out.println("Beta for Rent Growth: " + betaRG);
-        System.out.println("Beta for Cap Rate: " + betaCap);
-
-        // Initialize all ranking buckets used by Rankings.txt.
-        ArrayList<String> cvVacancyList = new ArrayList<String>();
-        ArrayList<String> cvRGList = new ArrayList<String>();
-        ArrayList<String> cvCapList = new ArrayList<String>();
-        ArrayList<String> stdDevVacList = new ArrayList<String>();
-        ArrayList<String> stdDevRGList = new ArrayList<String>();
-        ArrayList<String> stdDevCapList = new ArrayList<String>();
-        ArrayList<String> betaVacancyList = new ArrayList<String>();
-        ArrayList<String> betaRGList = new ArrayList<String>();
-        ArrayList<String> betaCapList = new ArrayList<String>();
-
-        // Load existing ranking lines if the file already exists.
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader("Rankings.txt"));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("CV Vacancy Rankings: ")) {
-                    parseRankingLine(line, "CV Vacancy Rankings: ", cvVacancyList);
-                } else if (line.startsWith("CV Rent Growth Rankings: ")) {
-                    parseRankingLine(line, "CV Rent Growth Rankings: ", cvRGList);
-                } else if (line.startsWith("CV Cap Rate Rankings: ")) {
-                    parseRankingLine(line, "CV Cap Rate Rankings: ", cvCapList);
-                } else if (line.startsWith("Beta Vacancy Rankings: ")) {
-                    parseRankingLine(line, "Beta Vacancy Rankings: ", betaVacancyList);
-                } else if (line.startsWith("Beta Rent Growth Rankings: ")) {
-                    parseRankingLine(line, "Beta Rent Growth Rankings: ", betaRGList);
-                } else if (line.startsWith("Beta Cap Rate Rankings: ")) {
-                    parseRankingLine(line, "Beta Cap Rate Rankings: ", betaCapList);
-                } else if (line.startsWith("Standard Deviation Cap Rate Rankings: ")) {
-                    parseRankingLine(line, "Standard Deviation Cap Rate Rankings: ", stdDevCapList);
-                } else if (line.startsWith("Standard Deviation Rent Growth Rankings: ")) {
-                    parseRankingLine(line, "Standard Deviation Rent Growth Rankings: ", stdDevRGList);
-                } else if (line.startsWith("Standard Deviation Vacancy Rankings: ")) {
-                    parseRankingLine(line, "Standard Deviation Vacancy Rankings: ", stdDevVacList);
-                }
-            }
-            reader.close();
-        } catch (FileNotFoundException e) {
-            // First run is valid; rankings file will be created below.
-        } catch (IOException e) {
-            System.out.println("An error occured: " + e.getMessage());
+        for (int i = 0; i < metrics.length; i++) {
+            System.out.println(MetricEngine.metricLabel(i) + ": " + round2(metrics[i]));
+        }
+
+        // Load existing ranking lines; a missing file is a valid first run.
+        ArrayList<RankingList> rankings = readRankingCategories(false);
+        if (rankings == null) {
             return;
         }
+        ensureSnapshotBaseline();
+
+        // Append this market's fresh values into each category and keep them sorted.
+        for (int i = 0; i < metrics.length; i++) {
+            rankings.get(i).add(marketName, metrics[i]);
+            rankings.get(i).sort();
+            trackRankingChange(i, marketName, metrics[i]);
+        }
 
-        // Append this market's fresh values into each category.
-        cvVacancyList.add(marketName + " - " + cvVacancy);
-        cvRGList.add(marketName + " - " + cvRG);
-        cvCapList.add(marketName + " - " + cvCap);
-        betaVacancyList.add(marketName + " - " + betaVacancy);
-        betaRGList.add(marketName + " - " + betaRG);
-        betaCapList.add(marketName + " - " + betaCap);
-        stdDevVacList.add(marketName + " - " + stdDevVac);
-        stdDevRGList.add(marketName + " - " + stdDevRG);
-        stdDevCapList.add(marketName + " - " + stdDevCap);
-
-        // Keep all ranking lists sorted by numeric metric value.
-        cvVacancyList.sort(Volatility::compareMarketValues);
-        cvRGList.sort(Volatility::compareMarketValues);
-        cvCapList.sort(Volatility::compareMarketValues);
-        betaVacancyList.sort(Volatility::compareMarketValues);
-        betaRGList.sort(Volatility::compareMarketValues);
-        betaCapList.sort(Volatility::compareMarketValues);
-        stdDevVacList.sort(Volatility::compareMarketValues);
-        stdDevRGList.sort(Volatility::compareMarketValues);
-        stdDevCapList.sort(Volatility::compareMarketValues);
+        // A new submarket feeds its metros.
+        for (int f = 0; f < familyCount; f++) {
+            rollUpAncestors(marketName, f, seriesArrays[f], nationalArrays[f], rankings);
+        }
 
         // Rewrite the ranking file in canonical order.
-        writeRankingsToFile(cvVacancyList, cvRGList, cvCapList, betaVacancyList, betaRGList,
-                betaCapList, stdDevVacList, stdDevRGList, stdDevCapList);
+        writeRankingsToFile(rankings);
 
         // Persist this full market record in Markets.txt.
-        Market market = new Market(marketName, stdDevVac, stdDevRG, stdDevCap, cvVacancy, cvRG, cvCap,
-                betaVacancy, betaRG, betaCap, tenYrRG, tenYrCap, tenYrVac);
-
+        Market market = new Market(marketName, metrics, series);
+        market.setOverlaps(overlaps);
         writeMarketToFile(market);
+        recordSnapshot("Add " + marketName);
     }
 
     // Looks up one market and prints its ranking position across all metrics.
@@ -271,39 +335,135 @@ public class Volatility {
 
         if (market == null) {
             System.out.println("Market not found");
+            printSuggestions(marketViewName);
+            return;
+        }
+
+        // Build the rank index on the first view so later views are constant-time lookups. When
+        // Rankings.txt is too large to index within the heap, stream it once instead, stopping each
+        // category at the market.
+        String name = market.getMarketName();
+        int[] positions = null;
+        boolean ranked;
+        if (rankingsFitInMemory()) {
+            ranked = loadRankIndex();
+        } else {
+            positions = streamRankPositions(name);
+            ranked = positions != null;
+        }
+        if (!ranked) {
+            System.out.println("One or more of the rankings lists are null");
+            return;
+        }
+
+        // Print rank placement for each tracked metric.
+        for (int stat : MetricEngine.DISPLAY_ORDER) {
+            for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                int category = MetricEngine.index(stat, f);
+                String label = positions == null ? rankLabel(name, category)
+                        : positions[category] > 0 ? ordinal(positions[category]) : "Not found";
+                System.out.println("Ranking for " + MetricEngine.metricLabel(category) + ": " + label);
+            }
+        }
+
+        // Show the volatility regime once markets have been clustered.
+        HashMap<String, Integer> clusters = readClusterAssignments();
+        if (clusters.containsKey(name)) {
+            System.out.println("Cluster: " + clusters.get(name));
+        }
+    }
+
+    // Builds the rank index from Rankings.txt the first time it is needed.
+    private static boolean loadRankIndex() {
+        if (rankIndex.isLoaded()) {
+            return true;
+        }
+        ArrayList<RankingList> rankings = readRankingCategories(true);
+        if (rankings == null) {
+            return false;
+        }
+        rankIndex.rebuild(rankings);
+        return true;
+    }
+
+    // Whether the rank index is already built or Rankings.txt is small enough to index; the index holds
+    // a few times the file's bytes, so the file must stay under RANK_INDEX_HEAP_SHARE of the heap.
+    private static boolean rankingsFitInMemory() {
+        return rankIndex.isLoaded()
+                || new File("Rankings.txt").length() <= Runtime.getRuntime().maxMemory() / RANK_INDEX_HEAP_SHARE;
+    }
+
+    // Position of one market in every ranking category from a single streamed pass over Rankings.txt,
+    // 0 where it isn't listed; null if the file can't be read or a core category is missing.
+    private static int[] streamRankPositions(String marketName) {
+        String[] prefixes = new String[MetricEngine.metricCount()];
+        boolean[] required = new boolean[prefixes.length];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = MetricEngine.rankingPrefix(i);
+            required[i] = MetricEngine.isCore(MetricEngine.statOf(i));
+        }
+        try {
+            return RankingStream.positions("Rankings.txt", marketName, prefixes, required);
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Ordinal rank label for one category, or "Not found".
+    private static String rankLabel(String marketName, int category) {
+        int rank = rankIndex.getRank(marketName, category);
+        return rank > 0 ? ordinal(rank) : "Not found";
+    }
+
+    // Writes every tracked market's rank per category to a CSV file.
+    private static void exportRanksProcess(Scanner scanner) {
+        System.out.println("Enter the markets to export, seperated by commas (leave blank for all):");
+        if (!scanner.hasNextLine()) {
+            System.out.println("No markets provided.");
+            return;
+        }
+        String answer = scanner.nextLine().trim();
+
+        // Let the caller pick how ties are reported.
+        System.out.println("Select the rank mode:");
+        System.out.println("A. Position");
+        System.out.println("B. Competition (ties share the best rank, 1-2-2-4)");
+        System.out.println("C. Dense (ties share a rank with no gaps, 1-2-2-3)");
+        System.out.println("D. Percentile");
+        if (!scanner.hasNextLine()) {
+            System.out.println("No rank mode selected.");
+            return;
+        }
+        String modeChoice = scanner.nextLine().trim().toUpperCase();
+        RankIndex.Mode mode = RankIndex.Mode.POSITION;
+        if (modeChoice.equals("B")) {
+            mode = RankIndex.Mode.COMPETITION;
+        } else if (modeChoice.equals("C")) {
+            mode = RankIndex.Mode.DENSE;
+        } else if (modeChoice.equals("D")) {
+            mode = RankIndex.Mode.PERCENTILE;
+        } else if (!modeChoice.equals("A") && !modeChoice.isEmpty()) {
+            System.out.println("Invalid rank mode. Please enter A, B, C, or D.");
             return;
         }
 
-        // Pull all ranking lists so rank labels can be displayed.
-        ArrayList<ArrayList<String>> rankings = extractAllRankings();
-        if (rankings == null || rankings.size() < 9) {
+        if (!loadRankIndex()) {
             System.out.println("One or more of the rankings lists are null");
             return;
         }
 
-        ArrayList<String> stdDevCapList = rankings.get(0);
-        ArrayList<String> stdDevRGList = rankings.get(1);
-        ArrayList<String> stdDevVacList = rankings.get(2);
-        ArrayList<String> cvCapList = rankings.get(3);
-        ArrayList<String> betaCapList = rankings.get(4);
-        ArrayList<String> cvRGList = rankings.get(5);
-        ArrayList<String> betaRGList = rankings.get(6);
-        ArrayList<String> cvVacancyList = rankings.get(7);
-        ArrayList<String> betaVacancyList = rankings.get(8);
+        // Blank input exports the whole universe.
+        List<String> names = answer.isEmpty() ? rankIndex.marketNames() : Arrays.asList(answer.split(","));
+        try {
+            int written = rankIndex.exportRanks(names, "RankExport.csv", mode);
+            System.out.println("Exported ranks for " + written + " markets to RankExport.csv");
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+        }
+    }
 
-        // Print rank placement for each tracked metric.
-        System.out.println("Ranking for CV Rent Growth: " + viewRanking(market.getMarketName(), cvRGList));
-        System.out.println("Ranking for CV Vacancy: " + viewRanking(market.getMarketName(), cvVacancyList));
-        System.out.println("Ranking for CV Cap Rate: " + viewRanking(market.getMarketName(), cvCapList));
-        System.out.println("Ranking for Beta Rent Growth: " + viewRanking(market.getMarketName(), betaRGList));
-        System.out.println("Ranking for Beta Vacancy: " + viewRanking(market.getMarketName(), betaVacancyList));
-        System.out.println("Ranking for Beta Cap Rate: " + viewRanking(market.getMarketName(), betaCapList));
-        System.out.println("Ranking for Standard Deviation Rent Growth: " + viewRanking(market.getMarketName(), stdDevRGList));
-        System.out.println("Ranking for Standard Deviation Vacancy: " + viewRanking(market.getMarketName(), stdDevVacList));
-        System.out.println("Ranking for Standard Deviation Cap Rate: " + viewRanking(market.getMarketName(), stdDevCapList));
-    }
-
-    // Recomputes one metric set (RG/Cap/Vacancy) for an existing market.
+    // Recomputes one metric family for an existing market.
     private static void updateMarketProcess(Scanner scanner) {
         // Identify the market to update.
         System.out.println("Enter the name of the market you want to update:");
@@ -322,34 +482,38 @@ public class Volatility {
 
         if (marketUpdated == null) {
             System.out.println("Market not found");
+            printSuggestions(updateMarketName);
             return;
         }
 
-        // Ask which metric family should be replaced.
+        // Ask which metric family should be replaced, one letter per family in menu order.
         System.out.println("Enter the metric you want to update:");
-        System.out.println("A. Ten Year Rent Growth: ");
-        System.out.println("B. Ten year Cap Rate: ");
-        System.out.println("C. Ten year Vacancy: ");
+        int[] menu = MetricEngine.menuOrder();
+        StringBuilder letters = new StringBuilder();
+        for (int i = 0; i < menu.length; i++) {
+            char letter = (char) ('A' + i);
+            letters.append(i == 0 ? "" : i == menu.length - 1 ? ", or " : ", ").append(letter);
+            System.out.println(letter + ". Ten Year " + MetricEngine.family(menu[i]) + ": ");
+        }
         if (!scanner.hasNextLine()) {
             System.out.println("No metric selected.");
             return;
         }
         String metric = scanner.nextLine().trim().toUpperCase();
 
-        // Dispatch to metric-specific update flow.
-        if (metric.equals("A")) {
-            updateMetric(updateMarketName, "Rent Growth", scanner);
-        } else if (metric.equals("B")) {
-            updateMetric(updateMarketName, "Cap Rate", scanner);
-        } else if (metric.equals("C")) {
-            updateMetric(updateMarketName, "Vacancy", scanner);
+        // Dispatch to the family-specific update flow.
+        int choice = metric.length() == 1 ? metric.charAt(0) - 'A' : -1;
+        if (choice >= 0 && choice < menu.length) {
+            updateMetric(updateMarketName, menu[choice], scanner);
         } else {
-            System.out.println("Invalid metric choice. Please enter A, B, or C.");
+            System.out.println("Invalid metric choice. Please enter " + letters + ".");
         }
     }
 
     // Reads new market metric data and matching national data, then updates rankings and market record.
-    private static void updateMetric(String marketName, String metric, Scanner scanner) {
+    private static void updateMetric(String marketName, int family, Scanner scanner) {
+        String metric = MetricEngine.family(family);
+
         // Read updated market values for the selected metric.
         System.out.println("Enter the " + metric.toLowerCase() + " for past 10 years, seperated by commas:");
         if (!scanner.hasNextLine()) {
@@ -380,57 +544,35 @@ public class Volatility {
             return;
         }
 
-        // Build exact line prefixes used in Rankings.txt.
-        String cvPrefix = "CV " + metric + " Rankings: ";
-        String betaPrefix = "Beta " + metric + " Rankings: ";
-        String stdDevPrefix = "Standard Deviation " + metric + " Rankings: ";
-
-        String lineExtractCV = null;
-        String lineExtractBeta = null;
-        String lineExtractStdDev = null;
-
-        // Load the existing ranking lines for this metric.
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader("Rankings.txt"));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith(cvPrefix)) {
-                    lineExtractCV = line;
-                } else if (line.startsWith(betaPrefix)) {
-                    lineExtractBeta = line;
-                } else if (line.startsWith(stdDevPrefix)) {
-                    lineExtractStdDev = line;
-                }
-            }
-            reader.close();
-        } catch (IOException e) {
-            System.out.println("The following error occured: " + e.getMessage());
-            return;
-        }
-
-        // Parse comma-delimited entries into mutable lists.
-        ArrayList<String> cvList = extractRankings(cvPrefix.trim(), lineExtractCV);
-        ArrayList<String> betaList = extractRankings(betaPrefix.trim(), lineExtractBeta);
-        ArrayList<String> stdDevList = extractRankings(stdDevPrefix.trim(), lineExtractStdDev);
-
-        if (cvList == null || betaList == null || stdDevList == null) {
+        // Load the existing ranking lines; a missing line is an empty category.
+        ArrayList<RankingList> rankings = readRankingCategories(false);
+        if (rankings == null) {
             System.out.println("Could not parse one or more ranking lines for " + metric + ".");
             return;
         }
+        ArrayList<RankingList> statRankings = new ArrayList<RankingList>();
+        for (int s = 0; s < MetricEngine.statCount(); s++) {
+            statRankings.add(rankings.get(MetricEngine.index(s, family)));
+        }
 
         // Recompute values and update ranking entries.
-        ArrayList<ArrayList<String>> updates = update(marketName, metric, updatedData, nationalData,
-                cvList, betaList, stdDevList);
+        ensureSnapshotBaseline();
+        ArrayList<RankingList> updates = update(marketName, family, updatedData, nationalData, statRankings);
 
-        if (updates == null || updates.size() < 3) {
+        if (updates == null || updates.size() < MetricEngine.statCount()) {
             System.out.println("Failed to update rankings.");
             return;
         }
 
+        // Re-derive only the metros above this market, in the same ranking lists.
+        rollUpAncestors(marketName, family, toDoubleArray(updatedData),
+                toDoubleArray(nationalData), rankings);
+
         // Write each updated ranking list back to its source line.
-        writeIntoFileUpdate(cvPrefix.trim(), updates.get(1));
-        writeIntoFileUpdate(betaPrefix.trim(), updates.get(0));
-        writeIntoFileUpdate(stdDevPrefix.trim(), updates.get(2));
+        for (int stat : MetricEngine.DISPLAY_ORDER) {
+            writeIntoFileUpdate(MetricEngine.rankingPrefix(MetricEngine.index(stat, family)), updates.get(stat));
+        }
+        recordSnapshot("Update " + marketName + " " + metric);
     }
 
     // Compares two markets side by side.
@@ -496,319 +638,1734 @@ public class Volatility {
         }
 
         // Load all ranking lists so we can remove the market from each one.
-        ArrayList<ArrayList<String>> rankings = extractAllRankings();
+        ArrayList<RankingList> rankings = readRankingCategories(true);
         if (rankings == null) {
             System.out.println("One or more of the rankings lists are null");
             return;
         }
 
+        ensureSnapshotBaseline();
+
         // Remove any ranking entry that matches the market name.
-        for (ArrayList<String> rankingList : rankings) {
-            Iterator<String> iterator = rankingList.iterator();
-            while (iterator.hasNext()) {
-                String entry = iterator.next();
-                String[] parts = entry.split(" - ");
-                if (parts.length < 1) {
-                    continue;
-                }
-                String marketName = parts[0].trim();
-                if (marketName.equals(answerRemoveMarket.trim())) {
-                    iterator.remove();
-                }
+        for (int i = 0; i < rankings.size(); i++) {
+            if (rankings.get(i).remove(answerRemoveMarket.trim()) > 0) {
+                snapshotChanges.removeRanking(MetricEngine.rankingPrefix(i), answerRemoveMarket.trim());
+            }
+        }
+
+        // Drop the market's share from its metros before the lists are written.
+        if (loadHierarchy() && hierarchy.getParent(answerRemoveMarket.trim()) != null) {
+            ArrayList<ArrayList<Double>> nationalData = getNationalData();
+            for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                double[] national = f < nationalData.size() ? toDoubleArray(nationalData.get(f)) : null;
+                rollUpAncestors(answerRemoveMarket, f, null, national, rankings);
             }
         }
 
         // Persist each list back to its corresponding ranking line.
-        writeIntoFileUpdate("CV Vacancy Rankings:", rankings.get(7));
-        writeIntoFileUpdate("CV Rent Growth Rankings:", rankings.get(5));
-        writeIntoFileUpdate("CV Cap Rate Rankings:", rankings.get(3));
-        writeIntoFileUpdate("Beta Vacancy Rankings:", rankings.get(8));
-        writeIntoFileUpdate("Beta Rent Growth Rankings:", rankings.get(6));
-        writeIntoFileUpdate("Beta Cap Rate Rankings:", rankings.get(4));
-        writeIntoFileUpdate("Standard Deviation Cap Rate Rankings:", rankings.get(0));
-        writeIntoFileUpdate("Standard Deviation Rent Growth Rankings:", rankings.get(1));
-        writeIntoFileUpdate("Standard Deviation Vacancy Rankings:", rankings.get(2));
+        for (int stat : MetricEngine.DISPLAY_ORDER) {
+            for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                int category = MetricEngine.index(stat, f);
+                writeIntoFileUpdate(MetricEngine.rankingPrefix(category), rankings.get(category));
+            }
+        }
 
         // Remove the market detail row from Markets.txt.
         removeMarketFromFile(answerRemoveMarket);
+        recordSnapshot("Remove " + answerRemoveMarket.trim());
     }
 
-    // Prints a table-style view of rankings.
-    private static void extractRankingsProcess() {
-        // Gather all ranking lists required for tabular output.
-        ArrayList<ArrayList<String>> rankings = extractAllRankings();
+    // Recomputes only the national-relative metrics (beta, correlation, tracking error) of every
+    // market against a new National.txt vintage.
+    private static void rebaseProcess() {
+        // Load the new national vintage once for the whole universe.
+        int familyCount = MetricEngine.familyCount();
+        ArrayList<ArrayList<Double>> nationalData = getNationalData();
+        if (nationalData == null || nationalData.size() < familyCount) {
+            System.out.println("National data could not be loaded.");
+            return;
+        }
+        double[][] national = new double[familyCount][];
+        for (int f = 0; f < familyCount; f++) {
+            if (nationalData.get(f).isEmpty()) {
+                System.out.println("National data could not be loaded.");
+                return;
+            }
+            national[f] = toDoubleArray(nationalData.get(f));
+        }
+
+        ArrayList<RankingList> rankings = readRankingCategories(true);
         if (rankings == null) {
             System.out.println("One or more of the rankings lists are null");
             return;
         }
 
-        ArrayList<String> cvCapList = rankings.get(3);
-        ArrayList<String> cvRGList = rankings.get(5);
-        ArrayList<String> cvVacancyList = rankings.get(7);
-        ArrayList<String> betaCapList = rankings.get(4);
-        ArrayList<String> betaRGList = rankings.get(6);
-        ArrayList<String> betaVacancyList = rankings.get(8);
-        ArrayList<String> stdDevCapList = rankings.get(0);
-        ArrayList<String> stdDevRGList = rankings.get(1);
-        ArrayList<String> stdDevVacList = rankings.get(2);
-
-        // Compute a safe row count in case list sizes drift.
-        int rowCount = Math.min(
-                Math.min(Math.min(cvCapList.size(), cvRGList.size()), Math.min(cvVacancyList.size(), betaCapList.size())),
-                Math.min(Math.min(betaRGList.size(), betaVacancyList.size()), Math.min(stdDevCapList.size(),
-                        Math.min(stdDevRGList.size(), stdDevVacList.size()))));
-
-        if (rowCount == 0) {
-            System.out.println("No ranking data available.");
+        ArrayList<String> lines;
+        try {
+            lines = readAllLines("Markets.txt");
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
             return;
         }
 
-        // Convert lists to arrays for indexed table access.
-        String[] cvCapArray = cvCapList.toArray(new String[0]);
-        String[] cvRGArray = cvRGList.toArray(new String[0]);
-        String[] cvVacancyArray = cvVacancyList.toArray(new String[0]);
-        String[] betaCapArray = betaCapList.toArray(new String[0]);
-        String[] betaRGArray = betaRGList.toArray(new String[0]);
-        String[] betaVacancyArray = betaVacancyList.toArray(new String[0]);
-        String[] stdDevCapArray = stdDevCapList.toArray(new String[0]);
-        String[] stdDevRGArray = stdDevRGList.toArray(new String[0]);
-        String[] stdDevVacArray = stdDevVacList.toArray(new String[0]);
+        // Only the national-relative sections are rewritten; the others are copied through untouched.
+        ArrayList<Integer> relative = new ArrayList<Integer>();
+        for (int stat = 0; stat < MetricEngine.statCount(); stat++) {
+            if (MetricEngine.isNationalRelative(stat)) {
+                relative.add(stat);
+            }
+        }
+        int[] relativeStats = relative.stream().mapToInt(Integer::intValue).toArray();
+
+        ensureSnapshotBaseline();
+
+        // Recompute in parallel, one fused pass per family series.
+        int n = lines.size();
+        String[] names = new String[n];
+        double[][] rebased = new double[n][];
+        // Stored metrics before and after, for the snapshot delta.
+        double[][] before = new double[n][];
+        double[][] after = new double[n][];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            String line = lines.get(i);
+            if (!line.contains(":")) {
+                return;
+            }
+            String[] marketDetails = line.split("\\|");
+            if (MetricEngine.sectionIndex(marketDetails, MetricEngine.BETA) < 0) {
+                return;
+            }
+            // Markets whose series length differs from the new national series keep their stored values.
+            double[] metrics = new double[MetricEngine.metricCount()];
+            int[] overlaps = new int[familyCount];
+            for (int f = 0; f < familyCount; f++) {
+                double[] series = MetricEngine.parseSeries(marketDetails, f);
+                if (series == null || series.length != national[f].length) {
+                    return;
+                }
+                overlaps[f] = MetricEngine.computeFamily(f, series, national[f], metrics);
+            }
+            String[] details = MetricEngine.replaceStatSections(marketDetails, relativeStats, metrics);
+            lines.set(i, String.join("|", MetricEngine.replaceOverlapSection(details, overlaps)));
+            names[i] = lineName(line);
+            rebased[i] = metrics;
+            before[i] = MetricEngine.parseMetrics(marketDetails);
+            after[i] = MetricEngine.parseMetrics(details);
+        });
+
+        // Collect new metrics by name for the ranking rewrite.
+        HashMap<String, double[]> newMetrics = new HashMap<String, double[]>();
+        int skipped = 0;
+        for (int i = 0; i < n; i++) {
+            if (rebased[i] != null) {
+                if (newMetrics.putIfAbsent(names[i], rebased[i]) == null && after[i] != null) {
+                    trackMetricChange(names[i], before[i], after[i]);
+                }
+            } else if (lines.get(i).contains(":")) {
+                skipped++;
+            }
+        }
 
-        // Print the table header once.
-        System.out.printf("%-33s %-33s %-33s %-33s %-33s %-33s%n",
-                "SD Cap Rate", "SD Rent Growth", "SD Vacancy",
-                "Beta Cap Rate", "Beta Rent Growth", "Beta Vacancy");
-        System.out.println("------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------------");
+        try {
+            writeAllLines("Markets.txt", lines);
+            invalidateMarketViews();
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return;
+        }
 
-        // Print one table row per rank position.
-        for (int i = 0; i < rowCount; i++) {
-            String[] betaCapParts = betaCapArray[i].split(" - ");
-            String[] betaRGParts = betaRGArray[i].split(" - ");
-            String[] betaVacParts = betaVacancyArray[i].split(" - ");
+        // Rebuild only the national-relative categories and report rank moves.
+        try {
+            PrintWriter report = new PrintWriter(new BufferedWriter(new FileWriter("RebaseReport.txt")));
+            for (int stat : relativeStats) {
+                for (int f = 0; f < familyCount; f++) {
+                    int category = MetricEngine.index(stat, f);
+                    String prefix = MetricEngine.rankingPrefix(category);
+                    RankingList oldList = rankings.get(category);
+                    RankingList newList = new RankingList(marketIds);
+                    HashSet<String> listed = new HashSet<String>();
+                    for (int i = 0; i < oldList.size(); i++) {
+                        double[] metrics = newMetrics.get(oldList.name(i));
+                        newList.add(oldList.id(i), metrics == null ? oldList.value(i) : metrics[category]);
+                        listed.add(oldList.name(i));
+                    }
+                    // Categories added after a market was ranked pick it up here.
+                    for (Map.Entry<String, double[]> market : newMetrics.entrySet()) {
+                        if (!listed.contains(market.getKey())) {
+                            newList.add(market.getKey(), market.getValue()[category]);
+                        }
+                    }
+                    newList.sort();
+                    trackRankingChanges(category, oldList, newList);
+                    writeIntoFileUpdate(prefix, newList);
 
-            if (betaCapParts.length < 2 || betaRGParts.length < 2 || betaVacParts.length < 2) {
-                continue;
+                    int moved = reportRankMoves(report, prefix, oldList, newList);
+                    System.out.println(MetricEngine.metricLabel(category) + ": " + moved + " markets moved rank");
+                }
             }
+            report.close();
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return;
+        }
 
-            String marketNameBetaCap = betaCapParts[0].trim();
-            String betaCap = betaCapParts[1].trim();
-            String marketNameBetaRG = betaRGParts[0].trim();
-            String betaRG = betaRGParts[1].trim();
-            String marketNameBetaVac = betaVacParts[0].trim();
-            String betaVac = betaVacParts[1].trim();
-
-            String marketNameStdDevCap = stdDevCapArray[i].split(" - ")[0].trim();
-            String marketNameStdDevRG = stdDevRGArray[i].split(" - ")[0].trim();
-            String marketNameStdDevVac = stdDevVacArray[i].split(" - ")[0].trim();
-
-            System.out.printf("%-33s %-33s %-33s %-33s %-33s %-33s%n",
-                    (i + 1) + ". " + marketNameStdDevCap,
-                    (i + 1) + ". " + marketNameStdDevRG,
-                    (i + 1) + ". " + marketNameStdDevVac,
-                    (i + 1) + ". " + marketNameBetaCap + "(" + betaCap + ")",
-                    (i + 1) + ". " + marketNameBetaRG + "(" + betaRG + ")",
-                    (i + 1) + ". " + marketNameBetaVac + "(" + betaVac + ")");
+        System.out.println("Rebased " + newMetrics.size() + " markets on the new national series.");
+        if (skipped > 0) {
+            System.out.println("Skipped " + skipped + " markets whose series length differs from National.txt.");
         }
+        System.out.println("Rank changes written to RebaseReport.txt");
+        recordSnapshot("Rebase on National.txt");
     }
 
-    // Parses comma-separated numeric input into a list.
-    private static ArrayList<Double> parseDoubleList(String input) {
-        // Null input usually means no user data was provided.
-        if (input == null) {
-            return null;
+    // Lists the markets whose volatility profile is closest to a named one.
+    private static void similarMarketsProcess(Scanner scanner) {
+        System.out.println("Enter the market to match:");
+        if (!scanner.hasNextLine()) {
+            System.out.println("No market name provided.");
+            return;
         }
-
-        // Empty input is treated as an empty series.
-        String trimmed = input.trim();
-        if (trimmed.isEmpty()) {
-            return new ArrayList<Double>();
+        String marketName = scanner.nextLine().trim();
+        if (marketName.isEmpty()) {
+            System.out.println("Market name cannot be empty.");
+            return;
         }
 
-        // Parse each comma-delimited token as a double.
-        String[] parts = trimmed.split(",");
-        ArrayList<Double> result = new ArrayList<Double>();
-
-        for (String part : parts) {
-            String token = part.trim();
-            // Reject blank tokens like "1,,3" to avoid silent bad data.
-            if (token.isEmpty()) {
-                return null;
-            }
+        System.out.println("How many similar markets (default 5)?");
+        int k = 5;
+        String answerK = scanner.hasNextLine() ? scanner.nextLine().trim() : "";
+        if (!answerK.isEmpty()) {
             try {
-                result.add(Double.parseDouble(token));
+                k = Integer.parseInt(answerK);
             } catch (NumberFormatException e) {
-                return null;
+                k = -1;
+            }
+            if (k < 1) {
+                System.out.println("Please enter a positive whole number.");
+                return;
             }
         }
-        return result;
-    }
 
-    // Pulls ranking entries from one full file line.
-    private static void parseRankingLine(String line, String prefix, ArrayList<String> list) {
-        // Bail out if caller provided invalid parsing args.
-        if (line == null || prefix == null || list == null) {
+        System.out.println("Include series shape (Y/N)?");
+        String answerShape = scanner.hasNextLine() ? scanner.nextLine().trim() : "";
+        boolean withShape = answerShape.equalsIgnoreCase("Y");
+
+        if (!loadSimilarityIndex()) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<SimilarityIndex.Neighbor> neighbors = similarityIndex.nearest(marketName, k, withShape);
+        long micros = (System.nanoTime() - start) / 1000;
+        if (neighbors == null) {
+            System.out.println("Market not found");
+            printSuggestions(marketName);
             return;
         }
 
-        // Strip the heading and split raw ranking items.
-        String data = line.replaceFirst(Pattern.quote(prefix), "");
-        if (!data.trim().isEmpty()) {
-            String[] rankings = data.split(",");
-            for (String s : rankings) {
-                // Keep only non-empty entries.
-                if (!s.trim().isEmpty()) {
-                    list.add(s.trim());
-                }
-            }
+        System.out.println();
+        System.out.println("Markets most similar to " + marketName + ":");
+        for (int i = 0; i < neighbors.size(); i++) {
+            SimilarityIndex.Neighbor neighbor = neighbors.get(i);
+            System.out.println((i + 1) + ". " + neighbor.getMarketName() + " (distance "
+                    + round2(neighbor.getDistance()) + ")");
         }
+        System.out.println("Searched " + similarityIndex.size() + " markets in " + micros / 1000.0 + " ms");
     }
 
-    // Reads Markets.txt and returns the matching market object.
-    private static Market findMarketInFile(String marketName) {
-        // Empty names cannot be looked up.
-        if (marketName == null || marketName.trim().isEmpty()) {
-            return null;
+    // Builds the similarity index from Markets.txt the first time it is needed.
+    private static boolean loadSimilarityIndex() {
+        if (similarityIndex.isLoaded()) {
+            return true;
         }
-
-        try {
-            // Stream through the file and return at first match.
-            BufferedReader reader = new BufferedReader(new FileReader("Markets.txt"));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Skip malformed lines with no market prefix.
-                if (!line.contains(":")) {
-                    continue;
-                }
-
-                // Parse market name and full detail sections.
-                String[] nameParts = line.split(":", 2);
-                String marketNameFile = nameParts[0];
-                String[] marketDetails = line.split("\\|");
-                Market market = extractMarket(marketNameFile, marketName, marketDetails);
-                if (market != null) {
-                    reader.close();
-                    return market;
-                }
+        ParsedMarkets markets = loadParsedMarkets(true);
+        if (markets == null) {
+            return false;
+        }
+        for (int i = 0; i < markets.names.length; i++) {
+            if (markets.metrics[i] != null) {
+                similarityIndex.put(markets.names[i], markets.metrics[i], markets.series[i]);
             }
-            reader.close();
-        } catch (IOException e) {
-            System.out.println("The following error occured: " + e.getMessage());
         }
-        return null;
+        similarityIndex.setLoaded();
+        return true;
     }
 
-    // Loads all ranking categories from Rankings.txt in a fixed index order.
-    private static ArrayList<ArrayList<String>> extractAllRankings() {
-        // Hold each raw file line before turning it into list form.
-        String lineExtractCVCap = null;
-        String lineExtractBetaCap = null;
-        String lineExtractCVRG = null;
-        String lineExtractBetaRG = null;
-        String lineExtractCVVac = null;
-        String lineExtractBetaVac = null;
-        String lineExtractStdDevCap = null;
-        String lineExtractStdDevRG = null;
-        String lineExtractStdDevVac = null;
-
-        // Read each known ranking line by prefix.
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader("Rankings.txt"));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("CV Cap Rate Rankings: ")) {
-                    lineExtractCVCap = line;
-                } else if (line.startsWith("Beta Cap Rate Rankings: ")) {
-                    lineExtractBetaCap = line;
-                } else if (line.startsWith("CV Rent Growth Rankings: ")) {
-                    lineExtractCVRG = line;
-                } else if (line.startsWith("Beta Rent Growth Rankings: ")) {
-                    lineExtractBetaRG = line;
-                } else if (line.startsWith("CV Vacancy Rankings: ")) {
-                    lineExtractCVVac = line;
-                } else if (line.startsWith("Beta Vacancy Rankings: ")) {
-                    lineExtractBetaVac = line;
-                } else if (line.startsWith("Standard Deviation Cap Rate Rankings: ")) {
-                    lineExtractStdDevCap = line;
-                } else if (line.startsWith("Standard Deviation Rent Growth Rankings: ")) {
-                    lineExtractStdDevRG = line;
-                } else if (line.startsWith("Standard Deviation Vacancy Rankings: ")) {
-                    lineExtractStdDevVac = line;
-                }
-            }
-            reader.close();
-        } catch (IOException e) {
-            System.out.println("The following error occured: " + e.getMessage());
-            return null;
+    // Refreshes one market's vector after its line is written, from the same values the line was
+    // formatted from rather than a second read of the market.
+    private static void indexSimilarity(String marketName, double[] metrics, double[][] series) {
+        if (similarityIndex.isLoaded()) {
+            similarityIndex.put(marketName, metrics, series);
         }
+    }
 
-        // Require all categories, otherwise rankings are incomplete.
-        if (lineExtractBetaCap == null || lineExtractBetaRG == null || lineExtractBetaVac == null
-                || lineExtractCVCap == null || lineExtractCVRG == null || lineExtractCVVac == null
-                || lineExtractStdDevCap == null || lineExtractStdDevRG == null || lineExtractStdDevVac == null) {
-            return null;
+    // Lists the markets passing a metric filter, sorted by one metric, a page at a time.
+    private static void screenMarketsProcess(Scanner scanner) {
+        System.out.println("Enter a filter (e.g. CV Rent Growth > 100 and Beta Vacancy < 1 and SD Cap Rate < 0.4):");
+        if (!scanner.hasNextLine()) {
+            System.out.println("No filter provided.");
+            return;
+        }
+        MetricFilter filter;
+        try {
+            filter = MetricFilter.parse(scanner.nextLine());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid filter: " + e.getMessage());
+            return;
         }
 
-        // Parse all ranking lines into mutable lists.
-        ArrayList<String> stdDevCapList = extractRankings("Standard Deviation Cap Rate Rankings:", lineExtractStdDevCap);
-        ArrayList<String> stdDevRGList = extractRankings("Standard Deviation Rent Growth Rankings:", lineExtractStdDevRG);
-        ArrayList<String> stdDevVacList = extractRankings("Standard Deviation Vacancy Rankings:", lineExtractStdDevVac);
-        ArrayList<String> cvCapList = extractRankings("CV Cap Rate Rankings:", lineExtractCVCap);
-        ArrayList<String> betaCapList = extractRankings("Beta Cap Rate Rankings:", lineExtractBetaCap);
-        ArrayList<String> cvRGList = extractRankings("CV Rent Growth Rankings:", lineExtractCVRG);
-        ArrayList<String> betaRGList = extractRankings("Beta Rent Growth Rankings:", lineExtractBetaRG);
-        ArrayList<String> cvVacancyList = extractRankings("CV Vacancy Rankings:", lineExtractCVVac);
-        ArrayList<String> betaVacancyList = extractRankings("Beta Vacancy Rankings:", lineExtractBetaVac);
-
-        if (stdDevCapList == null || stdDevRGList == null || stdDevVacList == null
-                || cvCapList == null || betaCapList == null || cvRGList == null || betaRGList == null
-                || cvVacancyList == null || betaVacancyList == null) {
-            return null;
+        // Blank sorts by the first metric in the filter; a trailing "desc" puts the largest first.
+        System.out.println("Sort by which metric (blank for the first one in the filter, add desc for largest "
+                + "first)?");
+        String answerSort = scanner.hasNextLine() ? scanner.nextLine().trim() : "";
+        boolean descending = false;
+        if (answerSort.toLowerCase().endsWith(" desc") || answerSort.equalsIgnoreCase("desc")) {
+            descending = true;
+            answerSort = answerSort.substring(0, answerSort.length() - 4).trim();
+        } else if (answerSort.toLowerCase().endsWith(" asc")) {
+            answerSort = answerSort.substring(0, answerSort.length() - 3).trim();
+        }
+        int sortMetric = answerSort.isEmpty() ? filter.getMetrics()[0] : MetricFilter.metricIndex(answerSort);
+        if (sortMetric < 0) {
+            System.out.println("Unknown metric: " + answerSort);
+            return;
         }
 
-        // Return lists in the same index contract used by callers.
-        ArrayList<ArrayList<String>> result = new ArrayList<ArrayList<String>>();
-        result.add(stdDevCapList);
-        result.add(stdDevRGList);
-        result.add(stdDevVacList);
-        result.add(cvCapList);
-        result.add(betaCapList);
-        result.add(cvRGList);
-        result.add(betaRGList);
-        result.add(cvVacancyList);
-        result.add(betaVacancyList);
-        return result;
-    }
+        if (!loadMetricScreen()) {
+            return;
+        }
 
-    // Rewrites all ranking sections in one pass.
-    private static void writeRankingsToFile(ArrayList<String> cvVacancyList, ArrayList<String> cvRGList,
-                                            ArrayList<String> cvCapList, ArrayList<String> betaVacancyList,
-                                            ArrayList<String> betaRGList, ArrayList<String> betaCapList,
-                                            ArrayList<String> stdDevVacList, ArrayList<String> stdDevRGList,
-                                            ArrayList<String> stdDevCapList) {
-        try {
-            // Full rewrite keeps line order stable and simple.
-            FileWriter fw = new FileWriter("Rankings.txt");
-            PrintWriter pw = new PrintWriter(fw);
+        // Columns shown: the sort metric, then the other metrics the filter reads.
+        LinkedHashSet<Integer> shownMetrics = new LinkedHashSet<Integer>();
+        shownMetrics.add(sortMetric);
+        for (int metric : filter.getMetrics()) {
+            shownMetrics.add(metric);
+        }
 
-            // Emit all categories in canonical order.
-            writeRankingLine(pw, "CV Vacancy Rankings: ", cvVacancyList);
-            writeRankingLine(pw, "CV Rent Growth Rankings: ", cvRGList);
-            writeRankingLine(pw, "CV Cap Rate Rankings: ", cvCapList);
-            writeRankingLine(pw, "Beta Vacancy Rankings: ", betaVacancyList);
-            writeRankingLine(pw, "Beta Rent Growth Rankings: ", betaRGList);
-            writeRankingLine(pw, "Beta Cap Rate Rankings: ", betaCapList);
-            writeRankingLine(pw, "Standard Deviation Cap Rate Rankings: ", stdDevCapList);
-            writeRankingLine(pw, "Standard Deviation Rent Growth Rankings: ", stdDevRGList);
-            writeRankingLine(pw, "Standard Deviation Vacancy Rankings: ", stdDevVacList);
+        int offset = 0;
+        while (true) {
+            long start = System.nanoTime();
+            MetricScreen.Page page = metricScreen.screen(filter, sortMetric, descending, offset, SCREEN_PAGE_SIZE);
+            long micros = (System.nanoTime() - start) / 1000;
 
-            pw.close();
-        } catch (IOException e) {
+            System.out.println();
+            if (page.getTotal() == 0) {
+                System.out.println("No markets match.");
+            }
+            for (int i = 0; i < page.getMatches().size(); i++) {
+                MetricScreen.Match match = page.getMatches().get(i);
+                StringBuilder line = new StringBuilder();
+                line.append(offset + i + 1).append(". ").append(match.getMarketName()).append(" (");
+                for (int metric : shownMetrics) {
+                    line.append(metric == sortMetric ? "" : ", ").append(MetricEngine.metricLabel(metric))
+                            .append(" ").append(displayMetric(match.getMetric(metric)));
+                }
+                System.out.println(line.append(")"));
+            }
+            offset += page.getMatches().size();
+            System.out.println("Showing " + offset + " of " + page.getTotal() + " matches; screened "
+                    + metricScreen.size() + " markets in " + micros / 1000.0 + " ms");
+
+            if (offset >= page.getTotal()) {
+                return;
+            }
+            System.out.println("Show the next page (Y/N)?");
+            String answerMore = scanner.hasNextLine() ? scanner.nextLine().trim() : "";
+            if (!answerMore.equalsIgnoreCase("Y")) {
+                return;
+            }
+        }
+    }
+
+    // Builds the screen columns from Markets.txt the first time they are needed.
+    private static boolean loadMetricScreen() {
+        if (metricScreen.isLoaded()) {
+            return true;
+        }
+        ParsedMarkets markets = loadParsedMarkets(false);
+        if (markets == null) {
+            return false;
+        }
+        for (int i = 0; i < markets.names.length; i++) {
+            if (markets.metrics[i] != null) {
+                metricScreen.put(markets.names[i], markets.metrics[i]);
+            }
+        }
+        metricScreen.setLoaded();
+        return true;
+    }
+
+    // Drops every in-memory view of Markets.txt after the whole file is rewritten; each reloads on next use.
+    private static void invalidateMarketViews() {
+        marketCache.invalidate();
+        similarityIndex.invalidate();
+        metricScreen.invalidate();
+        metricSketches.invalidate();
+        nameIndex.invalidate();
+    }
+
+    // Refreshes one market's screen row after its line is written.
+    private static void indexScreen(Market market) {
+        if (metricScreen.isLoaded()) {
+            metricScreen.put(market.getMarketName(), market.getMetrics());
+        }
+    }
+
+    // Prints the median and deciles of one metric or all of them, and where a market falls in each.
+    private static void metricDistributionsProcess(Scanner scanner) {
+        System.out.println("Enter a metric (blank for every metric):");
+        String answerMetric = scanner.hasNextLine() ? scanner.nextLine().trim() : "";
+        ArrayList<Integer> shownMetrics = new ArrayList<Integer>();
+        if (answerMetric.isEmpty()) {
+            for (int i = 0; i < MetricEngine.metricCount(); i++) {
+                shownMetrics.add(i);
+            }
+        } else {
+            int metric = MetricFilter.metricIndex(answerMetric);
+            if (metric < 0) {
+                System.out.println("Unknown metric: " + answerMetric);
+                return;
+            }
+            shownMetrics.add(metric);
+        }
+
+        System.out.println("Enter a market to place (blank to skip):");
+        String marketName = scanner.hasNextLine() ? scanner.nextLine().trim() : "";
+        Market market = null;
+        if (!marketName.isEmpty()) {
+            market = findMarketInFile(marketName);
+            if (market == null) {
+                System.out.println("Market not found");
+                printSuggestions(marketName);
+                return;
+            }
+        }
+
+        if (!loadMetricSketches()) {
+            return;
+        }
+        long start = System.nanoTime();
+        ArrayList<String> report = new ArrayList<String>();
+        for (int metric : shownMetrics) {
+            long count = metricSketches.count(metric);
+            report.add(MetricEngine.metricLabel(metric) + " (" + count + (count == 1 ? " market)" : " markets)"));
+            if (count == 0) {
+                report.add("  No markets have this metric.");
+                continue;
+            }
+            report.add("  Median: " + round2(metricSketches.quantile(metric, 0.5)));
+            StringBuilder deciles = new StringBuilder("  Deciles:");
+            for (int d = 1; d <= 9; d++) {
+                deciles.append(d == 1 ? " " : ", ").append(round2(metricSketches.quantile(metric, d / 10.0)));
+            }
+            report.add(deciles.toString());
+            if (market != null) {
+                double value = market.getMetrics()[metric];
+                report.add(Double.isNaN(value) ? "  " + market.getMarketName() + ": no value"
+                        : "  " + market.getMarketName() + ": " + round2(value) + ", at the "
+                        + ordinal((int) Math.round(metricSketches.percentile(metric, value))) + " percentile");
+            }
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+
+        System.out.println();
+        for (String line : report) {
+            System.out.println(line);
+        }
+        System.out.println("Read from the quantile sketches in " + micros / 1000.0 + " ms");
+    }
+
+    // Builds the metric sketches from Markets.txt the first time they are needed.
+    private static boolean loadMetricSketches() {
+        if (metricSketches.isLoaded()) {
+            return true;
+        }
+        ParsedMarkets markets = loadParsedMarkets(false);
+        if (markets == null) {
+            return false;
+        }
+        // Sketch in parallel shards, then merge.
+        metricSketches.merge(MetricSketches.build(markets.metrics));
+        metricSketches.setLoaded();
+        return true;
+    }
+
+    // Lists markets whose names start with or contain the text typed, ignoring case.
+    private static void searchMarketsProcess(Scanner scanner) {
+        System.out.println("Enter part of a market name:");
+        if (!scanner.hasNextLine()) {
+            System.out.println("No search text provided.");
+            return;
+        }
+        String query = scanner.nextLine().trim();
+        if (query.isEmpty()) {
+            System.out.println("Search text cannot be empty.");
+            return;
+        }
+        if (!loadNameIndex()) {
+            return;
+        }
+
+        // Prefix matches first, then the rest of the names containing the text.
+        long start = System.nanoTime();
+        LinkedHashSet<String> matches = new LinkedHashSet<String>(nameIndex.prefix(query, Integer.MAX_VALUE));
+        matches.addAll(nameIndex.contains(query));
+        List<String> suggestions = matches.isEmpty() ? nameIndex.suggest(query, 5) : new ArrayList<String>();
+        long micros = (System.nanoTime() - start) / 1000;
+
+        System.out.println();
+        if (matches.isEmpty()) {
+            System.out.println("No markets match \"" + query + "\".");
+            if (!suggestions.isEmpty()) {
+                System.out.println("Did you mean: " + String.join(", ", suggestions) + "?");
+            }
+        } else {
+            System.out.println(matches.size() + (matches.size() == 1 ? " market matches" : " markets match")
+                    + " \"" + query + "\":");
+            int shown = 0;
+            for (String name : matches) {
+                if (shown++ == SEARCH_RESULT_LIMIT) {
+                    System.out.println("... and " + (matches.size() - SEARCH_RESULT_LIMIT) + " more");
+                    break;
+                }
+                System.out.println("  " + name);
+            }
+        }
+        System.out.println("Searched " + nameIndex.size() + " names in " + micros / 1000.0 + " ms");
+    }
+
+    // Prints the closest market names after a failed lookup, if any are close enough.
+    private static void printSuggestions(String marketName) {
+        if (!loadNameIndex()) {
+            return;
+        }
+        List<String> suggestions = nameIndex.suggest(marketName, 3);
+        if (!suggestions.isEmpty()) {
+            System.out.println("Did you mean: " + String.join(", ", suggestions) + "?");
+        }
+    }
+
+    // Builds the name index from Markets.txt the first time it is needed.
+    private static boolean loadNameIndex() {
+        if (nameIndex.isLoaded()) {
+            return true;
+        }
+        try {
+            for (String name : ChunkedFileReader.indexLineNames("Markets.txt").keySet()) {
+                nameIndex.add(name);
+            }
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return false;
+        }
+        nameIndex.setLoaded();
+        return true;
+    }
+
+    // Clusters every market by volatility regime and writes assignments and summaries to Clusters.txt.
+    private static void clusterMarketsProcess(Scanner scanner) {
+        int k = readPositiveInt(scanner, "How many clusters (default 4)?", 4);
+        long seed = readPositiveInt(scanner, "Random seed (default 42)?", 42);
+        int batchSize = readPositiveInt(scanner, "Mini-batch size (leave blank for full batch)?", 0);
+        if (k < 1 || seed < 1 || batchSize < 0) {
+            System.out.println("Please enter a positive whole number.");
+            return;
+        }
+
+        ParsedMarkets parsed = loadParsedMarkets(false);
+        if (parsed == null) {
+            return;
+        }
+        LinkedHashMap<String, double[]> markets = new LinkedHashMap<String, double[]>();
+        for (int i = 0; i < parsed.names.length; i++) {
+            if (parsed.metrics[i] != null) {
+                markets.put(parsed.names[i], parsed.metrics[i]);
+            }
+        }
+        if (markets.isEmpty()) {
+            System.out.println("No markets to cluster.");
+            return;
+        }
+
+        ClusterEngine engine = new ClusterEngine(markets.keySet().toArray(new String[0]),
+                markets.values().toArray(new double[0][]));
+        engine.run(k, seed, batchSize);
+        try {
+            engine.write("Clusters.txt");
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return;
+        }
+
+        // Summarize each regime by its size and headline metrics.
+        int[] sizes = engine.clusterSizes();
+        System.out.println();
+        for (int cluster = 1; cluster <= engine.clusterCount(); cluster++) {
+            double[] center = engine.getCenter(cluster);
+            StringBuilder sb = new StringBuilder("Cluster " + cluster + " (" + sizes[cluster - 1] + " markets):");
+            for (int stat : new int[] {MetricEngine.SD, MetricEngine.BETA}) {
+                for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                    int index = MetricEngine.index(stat, f);
+                    sb.append(" ").append(MetricEngine.metricLabel(index).replaceFirst("^Standard Deviation", "SD"))
+                            .append(" ").append(round2(center[index])).append(";");
+                }
+            }
+            System.out.println(sb.substring(0, sb.length() - 1));
+        }
+        System.out.println("Finished after " + engine.getIterations() + " iterations, inertia "
+                + round2(engine.getInertia()));
+        System.out.println("Cluster assignments written to Clusters.txt");
+    }
+
+    // Bootstraps confidence intervals for every market's SD, CV and beta and reports which
+    // neighbouring ranks the data can't tell apart.
+    private static void bootstrapProcess(Scanner scanner) {
+        int resamples = readPositiveInt(scanner, "How many resamples (default 1000)?", 1000);
+        int level = readPositiveInt(scanner, "Confidence level in percent (default 95)?", 95);
+        long seed = readPositiveInt(scanner, "Random seed (default 42)?", 42);
+        if (resamples < 1 || level < 1 || seed < 1) {
+            System.out.println("Please enter a positive whole number.");
+            return;
+        }
+        if (level >= 100) {
+            System.out.println("Confidence level must be below 100.");
+            return;
+        }
+
+        int familyCount = MetricEngine.familyCount();
+        ArrayList<ArrayList<Double>> nationalData = getNationalData();
+        double[][] national = new double[familyCount][];
+        for (int f = 0; f < familyCount && f < nationalData.size(); f++) {
+            national[f] = toDoubleArray(nationalData.get(f));
+        }
+
+        ParsedMarkets markets = loadParsedMarkets(true);
+        if (markets == null) {
+            return;
+        }
+        if (markets.names.length == 0) {
+            System.out.println("No markets to bootstrap.");
+            return;
+        }
+
+        BootstrapEngine engine = new BootstrapEngine(markets.names, markets.series, national);
+        long start = System.nanoTime();
+        engine.run(resamples, level / 100.0, seed);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        try {
+            engine.write("Bootstrap.txt");
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return;
+        }
+
+        System.out.println();
+        for (int stat : BootstrapEngine.STATS) {
+            for (int f = 0; f < familyCount; f++) {
+                int index = MetricEngine.index(stat, f);
+                int[] overlaps = engine.neighbourOverlaps(index);
+                System.out.println(MetricEngine.metricLabel(index) + ": " + overlaps[0] + " of " + overlaps[1]
+                        + " neighbouring ranks overlap at " + level + "%");
+            }
+        }
+        long draws = (long) engine.size() * familyCount * resamples;
+        System.out.println("Ran " + draws + " resamples in " + round2(seconds) + " s ("
+                + Math.round(draws / Math.max(seconds, 1e-9)) + " per second)");
+        System.out.println("Intervals written to Bootstrap.txt");
+    }
+
+    // Projects every market through its stored beta under each scenario in Scenarios.txt and
+    // streams the re-ranked universe to ScenarioResults.txt.
+    private static void scenarioProcess() {
+        ArrayList<ScenarioEngine.Scenario> scenarios;
+        try {
+            scenarios = ScenarioEngine.load("Scenarios.txt");
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return;
+        }
+        if (scenarios.isEmpty()) {
+            System.out.println("No scenarios found in Scenarios.txt.");
+            return;
+        }
+        ParsedMarkets markets = loadParsedMarkets(true);
+        if (markets == null) {
+            return;
+        }
+
+        // Lay the universe out column-wise: one array per family, skipping markets missing a beta or series.
+        int familyCount = MetricEngine.familyCount();
+        ArrayList<Integer> usable = new ArrayList<Integer>();
+        for (int i = 0; i < markets.names.length; i++) {
+            boolean complete = markets.metrics[i] != null;
+            for (int f = 0; complete && f < familyCount; f++) {
+                complete = markets.series[i][f] != null && markets.series[i][f].length > 0
+                        && !Double.isNaN(markets.metrics[i][MetricEngine.index(MetricEngine.BETA, f)]);
+            }
+            if (complete) {
+                usable.add(i);
+            }
+        }
+        String[] names = new String[usable.size()];
+        double[][] betas = new double[familyCount][names.length];
+        double[][] lasts = new double[familyCount][names.length];
+        for (int m = 0; m < names.length; m++) {
+            int i = usable.get(m);
+            names[m] = markets.names[i];
+            for (int f = 0; f < familyCount; f++) {
+                double[] series = markets.series[i][f];
+                betas[f][m] = markets.metrics[i][MetricEngine.index(MetricEngine.BETA, f)];
+                lasts[f][m] = series[series.length - 1];
+            }
+        }
+
+        ScenarioEngine engine = new ScenarioEngine(names, betas, lasts);
+        long start = System.nanoTime();
+        int written;
+        try {
+            written = engine.run(scenarios, "ScenarioResults.txt");
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return;
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        System.out.println();
+        for (int s = 0; s < scenarios.size(); s++) {
+            StringBuilder sb = new StringBuilder(scenarios.get(s).getName() + ":");
+            for (int f = 0; f < familyCount; f++) {
+                double move = engine.getExposedMove(s, f);
+                if (!Double.isNaN(move)) {
+                    sb.append(" ").append(MetricEngine.family(f)).append(" most exposed ")
+                            .append(engine.getMostExposed(s, f)).append(" (").append(move >= 0 ? "+" : "")
+                            .append(round2(move)).append(");");
+                }
+            }
+            System.out.println(sb.substring(0, sb.length() - 1));
+        }
+        System.out.println("Evaluated " + scenarios.size() + " scenarios across " + names.length + " markets in "
+                + millis + " ms");
+        System.out.println(written + " scenario rankings written to ScenarioResults.txt");
+    }
+
+    // Shows a market's metrics and ranks as they stood at a past date or version.
+    private static void asOfProcess(Scanner scanner) {
+        System.out.println("Enter the name of the market:");
+        if (!scanner.hasNextLine()) {
+            System.out.println("No market name provided.");
+            return;
+        }
+        String marketName = scanner.nextLine().trim();
+        if (marketName.isEmpty()) {
+            System.out.println("Market name cannot be empty.");
+            return;
+        }
+        System.out.println("As of which date (yyyy-mm-dd) or version number (leave blank for latest)?");
+        String answer = scanner.hasNextLine() ? scanner.nextLine().trim() : "";
+
+        try {
+            int count = snapshotStore.versionCount();
+            if (count == 0) {
+                System.out.println("No snapshots have been recorded yet.");
+                return;
+            }
+
+            // A bare number is a version; a date means the end of that day.
+            int version = count;
+            if (answer.matches("\\d+")) {
+                version = Integer.parseInt(answer);
+            } else if (!answer.isEmpty()) {
+                try {
+                    version = snapshotStore.versionAt(LocalDate.parse(answer).atTime(LocalTime.MAX));
+                } catch (DateTimeParseException e) {
+                    System.out.println("Please enter a date as yyyy-mm-dd or a version number.");
+                    return;
+                }
+            }
+            SnapshotStore.Snapshot snapshot = snapshotStore.asOf(version);
+            if (snapshot == null) {
+                System.out.println("No snapshot exists for " + (answer.isEmpty() ? "that point" : answer) + ".");
+                return;
+            }
+            HashMap<String, String> metrics = snapshot.getMetrics(marketName);
+            if (metrics == null) {
+                System.out.println(marketName + " was not stored as of version " + snapshot.getVersion() + ".");
+                return;
+            }
+
+            System.out.println();
+            System.out.println("Market: " + marketName + " as of version " + snapshot.getVersion() + " ("
+                    + snapshot.getTime() + ", " + snapshot.getLabel() + ")");
+            System.out.println("____________________");
+            for (int stat : MetricEngine.DISPLAY_ORDER) {
+                for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                    int category = MetricEngine.index(stat, f);
+                    String label = MetricEngine.metricLabel(category);
+                    RankingList ranking = new RankingList(marketIds);
+                    for (String entry : snapshot.getRanking(MetricEngine.rankingPrefix(category))) {
+                        ranking.addEntry(entry);
+                    }
+                    // Statistics that weren't ranked yet at that version are left out.
+                    if (ranking.isEmpty() && !MetricEngine.isCore(stat)) {
+                        continue;
+                    }
+                    ranking.sort();
+                    String value = metrics.get(label);
+                    System.out.println(label + ": " + (value == null ? "n/a" : displayValue(value)) + " (ranked "
+                            + viewRanking(marketName, ranking) + ")");
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+        }
+    }
+
+    // Appends a snapshot version holding the changes gathered since the last one, if there are any.
+    private static void recordSnapshot(String label) {
+        try {
+            snapshotStore.record(snapshotChanges, label);
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+        } finally {
+            snapshotChanges.clear();
+        }
+    }
+
+    // Starts gathering a change. The first one also keeps the state before it as a full version, so it
+    // isn't lost to the overwrite; that is the only time both files are read for a snapshot.
+    private static void ensureSnapshotBaseline() {
+        snapshotChanges.clear();
+        try {
+            if (snapshotStore.versionCount() == 0) {
+                snapshotStore.recordFull(currentSnapshot(), "Baseline");
+            }
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+        }
+    }
+
+    // Notes one market line's changed metric values for the next snapshot version. oldMetrics is null for a
+    // new line and newMetrics null for a removed one; missing (NaN) values aren't recorded.
+    private static void trackMetricChange(String marketName, double[] oldMetrics, double[] newMetrics) {
+        String name = marketName.trim();
+        if (newMetrics == null) {
+            snapshotChanges.removeMetrics(name);
+            return;
+        }
+        for (int i = 0; i < newMetrics.length; i++) {
+            if (Double.isNaN(newMetrics[i])) {
+                continue;
+            }
+            String value = Double.toString(newMetrics[i]);
+            if (oldMetrics == null || i >= oldMetrics.length || !value.equals(Double.toString(oldMetrics[i]))) {
+                snapshotChanges.putMetric(name, MetricEngine.metricLabel(i), value);
+            }
+        }
+    }
+
+    // Notes one market's value in one ranking category for the next snapshot version.
+    private static void trackRankingChange(int category, String marketName, double value) {
+        snapshotChanges.putRanking(MetricEngine.rankingPrefix(category), marketName.trim(), Double.toString(value));
+    }
+
+    // Sets a listed market's value in one category, or adds the market when add is set, noting a changed value
+    // for the next snapshot version. The list is left unsorted.
+    private static void setRankingValue(RankingList list, int category, String marketName, double value,
+                                        boolean add) {
+        int position = list.indexOf(marketName);
+        if (position < 0 && !add) {
+            return;
+        }
+        if (position < 0 || Double.compare(list.value(position), value) != 0) {
+            trackRankingChange(category, marketName, value);
+        }
+        list.put(marketName, value);
+    }
+
+    // Notes every value that differs between two versions of one category, and every market dropped from it.
+    private static void trackRankingChanges(int category, RankingList before, RankingList after) {
+        int size = marketIds.size();
+        boolean[] listedBefore = new boolean[size];
+        double[] valuesBefore = new double[size];
+        for (int i = 0; i < before.size(); i++) {
+            if (!listedBefore[before.id(i)]) {
+                listedBefore[before.id(i)] = true;
+                valuesBefore[before.id(i)] = before.value(i);
+            }
+        }
+        boolean[] listedAfter = new boolean[size];
+        for (int i = 0; i < after.size(); i++) {
+            int id = after.id(i);
+            if (!listedAfter[id] && (!listedBefore[id] || Double.compare(valuesBefore[id], after.value(i)) != 0)) {
+                trackRankingChange(category, after.name(i), after.value(i));
+            }
+            listedAfter[id] = true;
+        }
+        for (int i = 0; i < before.size(); i++) {
+            if (!listedAfter[before.id(i)]) {
+                snapshotChanges.removeRanking(MetricEngine.rankingPrefix(category), before.name(i));
+            }
+        }
+    }
+
+    // Current stored metrics and rankings; the first Markets.txt line per name wins, and missing metrics are left
+    // out.
+    private static SnapshotStore.Snapshot currentSnapshot() throws IOException {
+        SnapshotStore.Snapshot snapshot = new SnapshotStore.Snapshot();
+        if (new File("Markets.txt").exists()) {
+            HashSet<String> seen = new HashSet<String>();
+            for (String line : readAllLines("Markets.txt")) {
+                if (!line.contains(":")) {
+                    continue;
+                }
+                String name = lineName(line);
+                double[] metrics = MetricEngine.parseMetrics(line.split("\\|"));
+                if (metrics == null || !seen.add(name)) {
+                    continue;
+                }
+                for (int i = 0; i < metrics.length; i++) {
+                    if (!Double.isNaN(metrics[i])) {
+                        snapshot.putMetric(name, MetricEngine.metricLabel(i), Double.toString(metrics[i]));
+                    }
+                }
+            }
+        }
+        ArrayList<RankingList> rankings = readRankingCategories(false);
+        for (int i = 0; rankings != null && i < rankings.size(); i++) {
+            RankingList list = rankings.get(i);
+            for (int p = 0; p < list.size(); p++) {
+                snapshot.putRanking(MetricEngine.rankingPrefix(i), list.name(p), Double.toString(list.value(p)));
+            }
+        }
+        return snapshot;
+    }
+
+    // Reads a positive whole number, or the default on a blank answer; -1 if the answer is invalid.
+    private static int readPositiveInt(Scanner scanner, String prompt, int defaultValue) {
+        System.out.println(prompt);
+        String answer = scanner.hasNextLine() ? scanner.nextLine().trim() : "";
+        if (answer.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int value = Integer.parseInt(answer);
+            return value > 0 ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Market to cluster number from the last clustering run; empty before the first run.
+    private static HashMap<String, Integer> readClusterAssignments() {
+        try {
+            return ClusterEngine.readAssignments("Clusters.txt");
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return new HashMap<String, Integer>();
+        }
+    }
+
+    // Derives every metro in Hierarchy.txt from its submarkets and stores the results.
+    private static void rollUpProcess() {
+        hierarchy = new MarketHierarchy();
+        if (!loadHierarchy()) {
+            return;
+        }
+        if (hierarchy.isEmpty()) {
+            System.out.println("No roll-ups are defined in Hierarchy.txt.");
+            return;
+        }
+
+        int familyCount = MetricEngine.familyCount();
+        ArrayList<ArrayList<Double>> nationalData = getNationalData();
+        if (nationalData == null || nationalData.size() < familyCount) {
+            System.out.println("National data could not be loaded.");
+            return;
+        }
+        double[][] national = new double[familyCount][];
+        for (int f = 0; f < familyCount; f++) {
+            national[f] = toDoubleArray(nationalData.get(f));
+        }
+
+        ArrayList<RankingList> rankings = readRankingCategories(false);
+        if (rankings == null) {
+            return;
+        }
+
+        ensureSnapshotBaseline();
+        int rolled = 0;
+        for (String rollup : hierarchy.rollupOrder()) {
+            // A roll-up needs at least one submarket series in every family.
+            double[][] series = new double[familyCount][];
+            ArrayList<ArrayList<Double>> seriesLists = new ArrayList<ArrayList<Double>>();
+            boolean complete = true;
+            for (int f = 0; f < familyCount; f++) {
+                series[f] = hierarchy.getSeries(rollup, f);
+                complete &= series[f] != null;
+                seriesLists.add(series[f] == null ? null : toDoubleList(series[f]));
+            }
+            if (!complete) {
+                System.out.println("Skipped " + rollup + ": no submarket data for one or more metrics.");
+                continue;
+            }
+            double[] metrics = MetricEngine.compute(series, national);
+
+            for (int i = 0; i < metrics.length; i++) {
+                setRankingValue(rankings.get(i), i, rollup, metrics[i], true);
+                rankings.get(i).sort();
+            }
+
+            // Replace the typed-in metro row, or add it when the metro was never entered.
+            Market market = findMarketInFile(rollup);
+            if (market == null) {
+                writeMarketToFile(new Market(rollup, metrics, seriesLists));
+            } else {
+                for (int f = 0; f < familyCount; f++) {
+                    updateMarketFields(market, f, metrics, seriesLists.get(f));
+                }
+                updateMarketInFile(market);
+            }
+            System.out.println("Rolled up " + rollup + " from " + hierarchy.getChildren(rollup).size()
+                    + " submarkets");
+            rolled++;
+        }
+
+        writeRankingsToFile(rankings);
+        recordSnapshot("Roll up metros");
+        System.out.println("Rolled up " + rolled + " metros.");
+    }
+
+    // Reads Hierarchy.txt and the stored series of every submarket in it, once.
+    private static boolean loadHierarchy() {
+        if (hierarchy.isLoaded()) {
+            return true;
+        }
+        ArrayList<String> lines;
+        try {
+            hierarchy = MarketHierarchy.load("Hierarchy.txt");
+            lines = hierarchy.isEmpty() ? new ArrayList<String>() : readAllLines("Markets.txt");
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return false;
+        }
+
+        // The first line per name wins, as in loadParsedMarkets; only submarkets in the tree are parsed.
+        HashSet<String> seen = new HashSet<String>();
+        for (String line : lines) {
+            if (!line.contains(":")) {
+                continue;
+            }
+            String name = lineName(line);
+            if (!hierarchy.contains(name) || hierarchy.isRollup(name) || !seen.add(name)) {
+                continue;
+            }
+            String[] marketDetails = line.split("\\|");
+            for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                hierarchy.put(name, f, MetricEngine.parseSeries(marketDetails, f));
+            }
+        }
+        hierarchy.rollUpAll();
+        hierarchy.setLoaded();
+        return true;
+    }
+
+    // Re-derives the metros above a changed submarket (values null when it was removed) and
+    // patches their ranking entries and stored rows. Only metros already in Markets.txt change.
+    private static void rollUpAncestors(String marketName, int family, double[] values, double[] national,
+                                        ArrayList<RankingList> rankings) {
+        if (!loadHierarchy() || hierarchy.getParent(marketName.trim()) == null) {
+            return;
+        }
+        for (String rollup : hierarchy.update(marketName.trim(), family, values)) {
+            double[] derived = hierarchy.getSeries(rollup, family);
+            Market market = findMarketInFile(rollup);
+            if (derived == null || market == null) {
+                continue;
+            }
+            double[] metrics = new double[MetricEngine.metricCount()];
+            MetricEngine.computeFamily(family, derived, national, metrics);
+            for (int s = 0; s < MetricEngine.statCount(); s++) {
+                int category = MetricEngine.index(s, family);
+                setRankingValue(rankings.get(category), category, rollup, metrics[category], true);
+                rankings.get(category).sort();
+            }
+            updateMarketFields(market, family, metrics, toDoubleList(derived));
+            updateMarketInFile(market);
+            System.out.println("Rolled " + MetricEngine.family(family).toLowerCase() + " up into " + rollup);
+        }
+    }
+
+    // Scores every market against every registered benchmark and writes per-benchmark beta rankings.
+    private static void benchmarkBetasProcess() {
+        BenchmarkRegistry registry;
+        try {
+            registry = BenchmarkRegistry.load("National.txt", "Benchmarks.txt");
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return;
+        }
+        ParsedMarkets markets = loadParsedMarkets(true);
+        if (markets == null) {
+            return;
+        }
+        System.out.println("Registered benchmarks: " + String.join(", ", registry.getNames()));
+
+        // Each market's series are scored against all benchmarks together.
+        String[] names = markets.names;
+        int n = names.length;
+        double[][][] betas = new double[n][][];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            double[][] marketBetas = new double[MetricEngine.familyCount()][];
+            for (int f = 0; f < marketBetas.length; f++) {
+                marketBetas[f] = registry.betas(f, markets.series[i][f]);
+            }
+            betas[i] = marketBetas;
+        });
+
+        // One ranking line per benchmark and family; unaligned markets are left out.
+        try {
+            PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter("BenchmarkRankings.txt")));
+            for (int b = 0; b < registry.size(); b++) {
+                for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                    RankingList list = new RankingList(marketIds);
+                    for (int i = 0; i < n; i++) {
+                        if (betas[i] != null && !Double.isNaN(betas[i][f][b])) {
+                            list.add(names[i], betas[i][f][b]);
+                        }
+                    }
+                    list.sort();
+                    writeRankingLine(pw, "Beta " + MetricEngine.family(f) + " vs " + registry.getName(b)
+                            + " Rankings: ", list);
+                    System.out.println("Beta " + MetricEngine.family(f) + " vs " + registry.getName(b) + ": "
+                            + list.size() + " markets ranked");
+                }
+            }
+            pw.close();
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return;
+        }
+        System.out.println("Benchmark rankings written to BenchmarkRankings.txt");
+    }
+
+    // Writes "market: old -> new" for every entry whose position changed; returns how many moved.
+    private static int reportRankMoves(PrintWriter report, String category, RankingList oldList,
+                                       RankingList newList) {
+        // Join the two lists on market IDs; 0 marks a market missing from the old list.
+        int[] oldRanks = new int[marketIds.size()];
+        for (int i = 0; i < oldList.size(); i++) {
+            if (oldRanks[oldList.id(i)] == 0) {
+                oldRanks[oldList.id(i)] = i + 1;
+            }
+        }
+
+        int moved = 0;
+        report.println(category);
+        for (int i = 0; i < newList.size(); i++) {
+            int oldRank = oldRanks[newList.id(i)];
+            if (oldRank != 0 && oldRank != i + 1) {
+                report.println("  " + newList.name(i) + ": " + ordinal(oldRank) + " -> " + ordinal(i + 1));
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    // Prints a table-style view of rankings, optionally limited to one cluster.
+    private static void extractRankingsProcess(Scanner scanner) {
+        // Gather all ranking lists required for tabular output.
+        ArrayList<RankingList> rankings = readRankingCategories(true);
+        if (rankings == null) {
+            System.out.println("One or more of the rankings lists are null");
+            return;
+        }
+
+        // Offer a cluster filter only once markets have been clustered.
+        HashMap<String, Integer> clusters = readClusterAssignments();
+        int clusterFilter = 0;
+        if (!clusters.isEmpty()) {
+            System.out.println("Filter by cluster (leave blank for all):");
+            String answer = scanner.hasNextLine() ? scanner.nextLine().trim() : "";
+            if (!answer.isEmpty()) {
+                try {
+                    clusterFilter = Integer.parseInt(answer);
+                } catch (NumberFormatException e) {
+                    System.out.println("Please enter a cluster number.");
+                    return;
+                }
+            }
+        }
+
+        // Standard deviation columns show names only; beta columns also show the value.
+        int familyCount = MetricEngine.familyCount();
+        int[] columns = new int[familyCount * 2];
+        for (int f = 0; f < familyCount; f++) {
+            columns[f] = MetricEngine.index(MetricEngine.SD, f);
+            columns[familyCount + f] = MetricEngine.index(MetricEngine.BETA, f);
+        }
+
+        // Keep the overall rank position of every entry that passes the filter.
+        ArrayList<ArrayList<Integer>> positions = new ArrayList<ArrayList<Integer>>();
+        for (int category : columns) {
+            ArrayList<Integer> kept = new ArrayList<Integer>();
+            RankingList list = rankings.get(category);
+            for (int i = 0; i < list.size(); i++) {
+                Integer cluster = clusters.get(list.name(i));
+                if (clusterFilter == 0 || (cluster != null && cluster == clusterFilter)) {
+                    kept.add(i);
+                }
+            }
+            positions.add(kept);
+        }
+
+        // Compute a safe row count in case list sizes drift.
+        int rowCount = Integer.MAX_VALUE;
+        for (ArrayList<Integer> kept : positions) {
+            rowCount = Math.min(rowCount, kept.size());
+        }
+
+        if (rowCount == 0) {
+            System.out.println("No ranking data available.");
+            return;
+        }
+
+        // Print the table header once.
+        StringBuilder header = new StringBuilder();
+        for (int category : columns) {
+            String label = MetricEngine.metricLabel(category);
+            header.append(String.format("%-33s ", label.replaceFirst("^Standard Deviation", "SD")));
+        }
+        System.out.println(header.toString().replaceFirst(" $", ""));
+        System.out.println("-".repeat(32 * columns.length));
+
+        // Print one table row per rank position.
+        for (int i = 0; i < rowCount; i++) {
+            StringBuilder row = new StringBuilder();
+            for (int c = 0; c < columns.length; c++) {
+                int category = columns[c];
+                int position = positions.get(c).get(i);
+                RankingList list = rankings.get(category);
+                String cell = (position + 1) + ". " + list.name(position);
+                if (MetricEngine.statOf(category) == MetricEngine.BETA) {
+                    cell += "(" + round2(list.value(position)) + ")";
+                }
+                row.append(String.format("%-33s ", cell));
+            }
+            System.out.println(row.toString().replaceFirst(" $", ""));
+        }
+    }
+
+    // Recomputes every stored metric at full precision from the stored series, then rebuilds Rankings.txt.
+    private static void migrateStoredMetrics() {
+        int familyCount = MetricEngine.familyCount();
+        ArrayList<ArrayList<Double>> nationalData = getNationalData();
+        if (nationalData == null || nationalData.size() < familyCount) {
+            System.out.println("National data could not be loaded.");
+            return;
+        }
+        double[][] national = new double[familyCount][];
+        for (int f = 0; f < familyCount; f++) {
+            national[f] = toDoubleArray(nationalData.get(f));
+        }
+
+        ArrayList<String> lines;
+        try {
+            lines = readAllLines("Markets.txt");
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return;
+        }
+
+        ensureSnapshotBaseline();
+        ArrayList<Market> markets = new ArrayList<Market>();
+        HashSet<String> tracked = new HashSet<String>();
+        int skipped = 0;
+        int nationalKept = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (!line.contains(":")) {
+                continue;
+            }
+
+            // Lines that no longer parse are left exactly as they are.
+            String[] marketDetails = line.split("\\|");
+            double[] stored = MetricEngine.parseMetrics(marketDetails);
+            double[][] series = new double[familyCount][];
+            boolean parsed = stored != null;
+            for (int f = 0; f < familyCount && parsed; f++) {
+                series[f] = MetricEngine.parseSeries(marketDetails, f);
+                parsed = series[f] != null;
+            }
+            if (!parsed) {
+                skipped++;
+                continue;
+            }
+
+            // National-relative stats need a national series of the same length; a family whose length
+            // differs keeps its stored values.
+            double[] metrics = MetricEngine.compute(series, national);
+            int[] overlaps = MetricEngine.overlaps(series, national);
+            boolean kept = false;
+            for (int m = 0; m < metrics.length; m++) {
+                int f = MetricEngine.familyOf(m);
+                if (MetricEngine.isNationalRelative(MetricEngine.statOf(m)) && overlaps[f] == 0) {
+                    metrics[m] = stored[m];
+                    kept = true;
+                }
+            }
+            if (kept) {
+                nationalKept++;
+            }
+
+            ArrayList<ArrayList<Double>> seriesLists = new ArrayList<ArrayList<Double>>();
+            for (double[] values : series) {
+                seriesLists.add(toDoubleList(values));
+            }
+            Market market = new Market(line.split(":", 2)[0], metrics, seriesLists);
+            market.setOverlaps(overlaps);
+            lines.set(i, formatMarketLine(market));
+            markets.add(market);
+            if (tracked.add(lineName(line))) {
+                trackMetricChange(lineName(line), stored, metrics);
+            }
+        }
+
+        try {
+            writeAllLines("Markets.txt", lines);
+            invalidateMarketViews();
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return;
+        }
+        rebuildRankings(markets);
+        recordSnapshot("Migrate stored metrics");
+
+        System.out.println("Recomputed " + markets.size() + " markets at full precision.");
+        if (skipped > 0) {
+            System.out.println("Skipped " + skipped + " lines that could not be parsed.");
+        }
+        if (nationalKept > 0) {
+            System.out.println("Kept stored beta, correlation and tracking error for " + nationalKept
+                    + " markets whose series length differs from National.txt.");
+        }
+    }
+
+    // Appends every market in an input file through the staged ingest pipeline, then merges the new
+    // entries into Rankings.txt in one rewrite.
+    private static void ingestProcess(String filename) {
+        int familyCount = MetricEngine.familyCount();
+        ArrayList<ArrayList<Double>> nationalData = getNationalData();
+        if (nationalData == null || nationalData.size() < familyCount) {
+            System.out.println("National data could not be loaded.");
+            return;
+        }
+        double[][] national = new double[familyCount][];
+        for (int f = 0; f < familyCount; f++) {
+            national[f] = toDoubleArray(nationalData.get(f));
+        }
+        if (!new File(filename).exists()) {
+            System.out.println("Input file not found: " + filename);
+            return;
+        }
+
+        // Existing ranking lines; a missing file is a valid first run.
+        ArrayList<RankingList> rankings = readRankingCategories(false);
+        if (rankings == null) {
+            return;
+        }
+        ensureSnapshotBaseline();
+
+        IngestPipeline pipeline;
+        try {
+            Set<String> existing = ChunkedFileReader.indexLineNames("Markets.txt").keySet();
+            pipeline = new IngestPipeline(national, existing, Runtime.getRuntime().availableProcessors());
+            pipeline.run(filename, "Markets.txt", (name, metrics) -> {
+                for (int i = 0; i < metrics.length; i++) {
+                    rankings.get(i).add(name, metrics[i]);
+                    trackRankingChange(i, name, metrics[i]);
+                }
+                trackMetricChange(name, null, metrics);
+            });
+        } catch (IOException e) {
+            // The pipeline only replaces Markets.txt on success, so both files are still as they were.
+            System.out.println("The following error occured: " + e.getMessage());
+            System.out.println("No markets were added.");
+            snapshotChanges.clear();
+            return;
+        } finally {
+            invalidateMarketViews();
+        }
+
+        // Sort once per category rather than once per market.
+        if (pipeline.getAdded() > 0) {
+            for (RankingList list : rankings) {
+                list.sort();
+            }
+            writeRankingsToFile(rankings);
+            recordSnapshot("Ingest " + filename);
+        }
+
+        System.out.println("Added " + pipeline.getAdded() + " markets; skipped " + pipeline.getSkipped() + ".");
+        List<String> errors = pipeline.getErrors();
+        for (int i = 0; i < Math.min(errors.size(), 10); i++) {
+            System.out.println("  " + errors.get(i));
+        }
+        if (pipeline.getSkipped() > 10) {
+            System.out.println("  ... and " + (pipeline.getSkipped() - 10) + " more.");
+        }
+        for (IngestPipeline.StageMetrics stage : pipeline.getMetrics()) {
+            System.out.println(stage.report());
+        }
+        if (pipeline.getAdded() > 0 && loadHierarchy() && !hierarchy.isEmpty()) {
+            System.out.println("Run Roll Up Metros (M) to refresh metro series for the new markets.");
+        }
+    }
+
+    // Compares the stored series in list text and SeriesCodec form: size, decode speed and exact round trip.
+    private static void seriesReport() {
+        ArrayList<String> lines;
+        try {
+            lines = readAllLines("Markets.txt");
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return;
+        }
+
+        ArrayList<String[]> textSections = new ArrayList<String[]>();
+        ArrayList<String[]> encodedSections = new ArrayList<String[]>();
+        ArrayList<double[]> originals = new ArrayList<double[]>();
+        ArrayList<Integer> families = new ArrayList<Integer>();
+        long textBytes = 0;
+        long encodedBytes = 0;
+        int xorSeries = 0;
+        for (String line : lines) {
+            String[] marketDetails = line.split("\\|");
+            for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                double[] series = MetricEngine.parseSeries(marketDetails, f);
+                if (series == null) {
+                    continue;
+                }
+                String label = "Ten Year " + MetricEngine.family(f) + ": ";
+                String text = MetricEngine.formatSeries(series);
+                String encoded = SeriesCodec.encode(series);
+                textSections.add(new String[] {label + text});
+                encodedSections.add(new String[] {label + encoded});
+                originals.add(series);
+                families.add(f);
+                textBytes += text.length();
+                encodedBytes += encoded.length();
+                xorSeries += encoded.startsWith("{X") ? 1 : 0;
+            }
+        }
+        int count = originals.size();
+        if (count == 0) {
+            System.out.println("No series found in Markets.txt.");
+            return;
+        }
+
+        // Every encoded series must decode to exactly the values it came from.
+        int mismatches = 0;
+        for (int i = 0; i < count; i++) {
+            if (!Arrays.equals(originals.get(i), MetricEngine.parseSeries(encodedSections.get(i), families.get(i)))) {
+                mismatches++;
+            }
+        }
+
+        double textNanos = timeSeriesParse(textSections, families);
+        double encodedNanos = timeSeriesParse(encodedSections, families);
+
+        System.out.println("Series: " + count + " (" + (count - xorSeries) + " scaled decimal, " + xorSeries + " XOR)");
+        System.out.println("List text: " + textBytes + " bytes; encoded: " + encodedBytes + " bytes ("
+                + round2(100.0 * encodedBytes / Math.max(1, textBytes)) + "% of text)");
+        System.out.println("List text parse: " + Math.round(textNanos) + " ns per series; decode: "
+                + Math.round(encodedNanos) + " ns per series (" + round2(textNanos / Math.max(encodedNanos, 1e-9))
+                + "x faster)");
+        if (mismatches == 0) {
+            System.out.println("Round trip: all " + count + " series decode exactly.");
+        } else {
+            System.out.println("Round trip: " + mismatches + " series did not decode exactly.");
+        }
+        decimalParseReport(textSections);
+    }
+
+    // Checks DecimalParser against Double.parseDouble and times both on the list text of the stored series.
+    private static void decimalParseReport(ArrayList<String[]> textSections) {
+        // Every stored value in full and fixed three-decimal form, generated decimals of every length, and
+        // malformed or unusual tokens that must fail or fall back the same way.
+        ArrayList<String> tokens = new ArrayList<String>(Arrays.asList("0", "-0", "-0.0", ".5", "5.", "+2.25", " 7 ",
+                "1e5", "-1.5E-3", "NaN", "-Infinity", "0x1p3", "1d", "", "-", ".", "1.2.3", "abc", "9007199254740993",
+                "0.1234567890123456789", "123456789012345678901234567890", "0.0000000000000000000001"));
+        ArrayList<String> lists = new ArrayList<String>();
+        for (String[] section : textSections) {
+            String text = section[0];
+            String list = text.substring(text.indexOf('[') + 1, text.lastIndexOf(']'));
+            lists.add(list);
+            for (String token : list.split(",")) {
+                double value = Double.parseDouble(token);
+                tokens.add(token.trim());
+                tokens.add(new BigDecimal(value).setScale(3, RoundingMode.HALF_UP).toPlainString());
+            }
+        }
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < 200000; i++) {
+            StringBuilder sb = new StringBuilder(random.nextBoolean() ? "-" : "");
+            int whole = random.nextInt(8);
+            int fraction = random.nextInt(19);
+            for (int d = 0; d < Math.max(1, whole); d++) {
+                sb.append((char) ('0' + random.nextInt(10)));
+            }
+            if (fraction > 0) {
+                sb.append('.');
+                for (int d = 0; d < fraction; d++) {
+                    sb.append((char) ('0' + random.nextInt(10)));
+                }
+            }
+            tokens.add(sb.toString());
+        }
+        int mismatches = 0;
+        for (String token : tokens) {
+            String expected;
+            String actual;
+            try {
+                expected = Long.toString(Double.doubleToRawLongBits(Double.parseDouble(token)));
+            } catch (NumberFormatException e) {
+                expected = "error";
+            }
+            try {
+                actual = Long.toString(Double.doubleToRawLongBits(DecimalParser.parse(token)));
+            } catch (NumberFormatException e) {
+                actual = "error";
+            }
+            if (!expected.equals(actual)) {
+                mismatches++;
+                if (mismatches <= 5) {
+                    System.out.println("Decimal parse mismatch for \"" + token + "\"");
+                }
+            }
+        }
+        System.out.println("Decimal parser: " + (tokens.size() - mismatches) + " of " + tokens.size()
+                + " tokens match Double.parseDouble bit for bit.");
+
+        // Time the whole list text of every series both ways.
+        long values = 0;
+        for (String list : lists) {
+            values += DecimalParser.parseList(list, true).length;
+        }
+        double splitNanos = timeListParse(lists, false) / Math.max(1, values);
+        double scanNanos = timeListParse(lists, true) / Math.max(1, values);
+        System.out.println("Split and parseDouble: " + round2(splitNanos) + " ns per value; DecimalParser: "
+                + round2(scanNanos) + " ns per value (" + round2(splitNanos / Math.max(scanNanos, 1e-9))
+                + "x faster)");
+    }
+
+    // Average nanoseconds to parse every list once, repeated for at least a quarter second.
+    private static double timeListParse(ArrayList<String> lists, boolean scan) {
+        double checksum = 0;
+        long rounds = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (String list : lists) {
+                if (scan) {
+                    checksum += DecimalParser.parseList(list, true)[0];
+                } else {
+                    for (String part : list.split(",")) {
+                        checksum += Double.parseDouble(part.trim());
+                    }
+                }
+            }
+            rounds++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < 250000000L);
+        return Double.isNaN(checksum) ? 0 : (double) elapsed / rounds;
+    }
+
+    // Average nanoseconds per parseSeries call over the sections, repeated for at least a quarter second.
+    private static double timeSeriesParse(ArrayList<String[]> sections, ArrayList<Integer> families) {
+        long checksum = 0;
+        long calls = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < sections.size(); i++) {
+                checksum += MetricEngine.parseSeries(sections.get(i), families.get(i)).length;
+            }
+            calls += sections.size();
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < 250000000L);
+        return checksum < 0 ? 0 : (double) elapsed / calls;
+    }
+
+    // Bulk ranking path: rebuilds every category of Rankings.txt from market records; a market missing a metric
+    // isn't ranked in that category.
+    private static void rebuildRankings(ArrayList<Market> markets) {
+        ArrayList<RankingList> rankings = new ArrayList<RankingList>();
+        for (int i = 0; i < MetricEngine.metricCount(); i++) {
+            rankings.add(new RankingList(marketIds));
+        }
+
+        for (Market market : markets) {
+            String name = market.getMarketName();
+            double[] metrics = market.getMetrics();
+            for (int i = 0; i < metrics.length; i++) {
+                if (!Double.isNaN(metrics[i])) {
+                    rankings.get(i).add(name, metrics[i]);
+                }
+            }
+        }
+
+        for (RankingList list : rankings) {
+            list.sort();
+        }
+
+        // A bulk rebuild changes values anywhere, so the snapshot delta is a diff against the lists it replaces.
+        ArrayList<RankingList> before = readRankingCategories(false);
+        for (int i = 0; before != null && i < rankings.size(); i++) {
+            trackRankingChanges(i, before.get(i), rankings.get(i));
+        }
+        writeRankingsToFile(rankings);
+    }
+
+    // Boxes a primitive series into the list form the stat helpers take.
+    public static ArrayList<Double> toDoubleList(double[] values) {
+        ArrayList<Double> list = new ArrayList<Double>(values.length);
+        for (double v : values) {
+            list.add(v);
+        }
+        return list;
+    }
+
+    // Unboxes a list series for the MetricEngine kernels; null reads as an empty series.
+    public static double[] toDoubleArray(ArrayList<Double> values) {
+        if (values == null) {
+            return new double[0];
+        }
+        double[] array = new double[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    // Parses comma-separated numeric input into a list.
+    private static ArrayList<Double> parseDoubleList(String input) {
+        // Null input usually means no user data was provided.
+        if (input == null) {
+            return null;
+        }
+
+        // Empty input is treated as an empty series.
+        String trimmed = input.trim();
+        if (trimmed.isEmpty()) {
+            return new ArrayList<Double>();
+        }
+
+        // Scan each comma-delimited token in place; blank tokens like "1,,3" are rejected to avoid silent bad data.
+        try {
+            return toDoubleList(DecimalParser.parseList(trimmed, false));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Reads Markets.txt and returns the matching market object.
+    private static Market findMarketInFile(String marketName) {
+        // Empty names cannot be looked up.
+        if (marketName == null || marketName.trim().isEmpty()) {
+            return null;
+        }
+
+        try {
+            // Resolve through the LRU cache; fields decode only when a caller reads them.
+            Market market = marketCache.get(marketName);
+            if (market != null) {
+                cacheMarket(market);
+            }
+            return market;
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+        }
+        return null;
+    }
+
+    // Loads every ranking category from Rankings.txt in MetricEngine index order.
+    // When requireAll is set a missing core category (or file) returns null; other missing
+    // categories, like extended statistics not yet migrated, come back empty.
+    private static ArrayList<RankingList> readRankingCategories(boolean requireAll) {
+        ArrayList<RankingList> result = new ArrayList<RankingList>();
+        boolean[] seen = new boolean[MetricEngine.metricCount()];
+        for (int i = 0; i < seen.length; i++) {
+            result.add(new RankingList(marketIds));
+        }
+
+        // Stream each known ranking line entry by entry; unknown lines are skipped unread.
+        try {
+            if (requireAll || new File("Rankings.txt").exists()) {
+                RankingStream.Reader reader = new RankingStream.Reader("Rankings.txt");
+                try {
+                    String heading;
+                    while ((heading = reader.nextCategory()) != null) {
+                        int category = MetricEngine.categoryOf(heading);
+                        if (category < 0) {
+                            continue;
+                        }
+                        // A repeated line replaces the earlier one.
+                        RankingList list = result.get(category);
+                        list.clear();
+                        seen[category] = true;
+                        String entry;
+                        while ((entry = reader.nextEntry()) != null) {
+                            list.addEntry(entry);
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+            return null;
+        }
+
+        // Require all core categories when asked, otherwise rankings are incomplete.
+        for (int i = 0; requireAll && i < seen.length; i++) {
+            if (!seen[i] && MetricEngine.isCore(MetricEngine.statOf(i))) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    // Rewrites all ranking sections in one pass; lists are in MetricEngine index order.
+    private static void writeRankingsToFile(ArrayList<RankingList> rankings) {
+        try {
+            // Full rewrite keeps line order stable and simple.
+            FileWriter fw = new FileWriter("Rankings.txt");
+            PrintWriter pw = new PrintWriter(fw);
+
+            // Emit all categories in canonical order.
+            for (int stat : MetricEngine.DISPLAY_ORDER) {
+                for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                    int category = MetricEngine.index(stat, f);
+                    writeRankingLine(pw, MetricEngine.rankingPrefix(category) + " ", rankings.get(category));
+                }
+            }
+
+            pw.close();
+        } catch (IOException e) {
             System.out.println("An error occured: " + e.getMessage());
+            rankIndex.invalidate();
+            return;
+        }
+
+        // Keep the rank index in step with the rewritten file.
+        if (rankIndex.isLoaded()) {
+            for (int i = 0; i < rankings.size(); i++) {
+                rankIndex.updateCategory(i, rankings.get(i));
+            }
         }
     }
 
-    // Emits one ranking line in "name - value" comma-separated format.
-    private static void writeRankingLine(PrintWriter pw, String prefix, ArrayList<String> list) {
+    // Emits one ranking line in "name - value" comma-separated format; entries are formatted only here.
+    private static void writeRankingLine(PrintWriter pw, String prefix, RankingList list) {
         // Defensive null checks for shared helper usage.
         if (pw == null || prefix == null || list == null) {
             return;
@@ -817,7 +2374,7 @@ public class Volatility {
         // Write prefix and then comma-join entries manually.
         pw.print(prefix);
         for (int i = 0; i < list.size(); i++) {
-            pw.print(list.get(i));
+            pw.print(list.entry(i));
             if (i < list.size() - 1) {
                 pw.print(",");
             }
@@ -839,19 +2396,20 @@ public class Volatility {
             PrintWriter marketWriter = new PrintWriter(marketFw);
 
             // Persist all metrics and ten-year arrays in one line format.
-            marketWriter.print(market.getMarketName() + ": ");
-            marketWriter.print("Standard Deviation of: " + "Vacancy: " + market.getStdDevVac() + ", "
-                    + "Rent Growth: " + market.getStdDevRG() + ", " + "Cap Rate: " + market.getStdDevCap() + " | ");
-            marketWriter.print("Coefficient of variation of: " + "Vacancy: " + market.getCVVacancy() + ", "
-                    + "Rent Growth: " + market.getCVRG() + ", " + "Cap Rate: " + market.getCVCap() + " | ");
-            marketWriter.print("Beta compared to the national index of: " + "Vacancy: " + market.getBetaVac() + ", "
-                    + "Rent Growth: " + market.getBetaRG() + ", " + "Cap Rate: " + market.getBetaCap() + " | ");
-            marketWriter.print("Ten Year Vacancy: " + market.getTenYrVac().toString() + " | ");
-            marketWriter.print("Ten Year Rent Growth: " + market.getTenYrRG().toString() + " | ");
-            marketWriter.print("Ten Year Cap Rate: " + market.getTenYrCap().toString() + " | ");
-            marketWriter.println();
+            double[][] series = marketSeries(market);
+            marketWriter.println(formatMarketLine(market, series));
 
             marketWriter.close();
+            marketCache.invalidate();
+            indexSimilarity(market.getMarketName(), market.getMetrics(), series);
+            indexScreen(market);
+            if (nameIndex.isLoaded()) {
+                nameIndex.add(market.getMarketName());
+            }
+            if (metricSketches.isLoaded()) {
+                metricSketches.add(market.getMetrics());
+            }
+            trackMetricChange(market.getMarketName(), null, market.getMetrics());
         } catch (IOException e) {
             System.out.println("The following probelm occured: " + e.getMessage());
         }
@@ -868,99 +2426,148 @@ public class Volatility {
         try {
             // Read, filter, and rewrite the entire market file.
             ArrayList<String> lines = readAllLines("Markets.txt");
-            lines.removeIf(line -> line.split(":")[0].trim().equals(marketName.trim()));
+            String name = marketName.trim();
+            // The first line per name is the one the sketches counted.
+            String removedLine = null;
+            for (String line : lines) {
+                if (removedLine == null && lineName(line).equals(name)) {
+                    removedLine = line;
+                }
+            }
+            lines.removeIf(line -> lineName(line).equals(name));
             writeAllLines("Markets.txt", lines);
+            marketCache.invalidate();
+            if (similarityIndex.isLoaded()) {
+                similarityIndex.remove(marketName);
+            }
+            if (nameIndex.isLoaded()) {
+                nameIndex.remove(marketName);
+            }
+            if (metricScreen.isLoaded()) {
+                metricScreen.remove(marketName);
+            }
+            if (metricSketches.isLoaded() && removedLine != null && removedLine.contains(":")) {
+                metricSketches.remove(MetricEngine.parseMetrics(removedLine.split("\\|")));
+            }
+            if (removedLine != null) {
+                trackMetricChange(name, null, null);
+            }
+        } catch (IOException e) {
+            System.out.println("The following error occured: " + e.getMessage());
+        }
+    }
+
+    // Markets.txt parsed for the bulk loaders: one entry per market in file order, the first line per name
+    // winning. metrics entries are null where a line's metrics don't parse; series is null unless asked for.
+    private static class ParsedMarkets {
+        final String[] names;
+        final double[][] metrics;
+        final double[][][] series;
+
+        ParsedMarkets(String[] names, double[][] metrics, double[][][] series) {
+            this.names = names;
+            this.metrics = metrics;
+            this.series = series;
+        }
+    }
+
+    // Reads and parses Markets.txt in parallel; null (after reporting the error) if it can't be read.
+    private static ParsedMarkets loadParsedMarkets(boolean withSeries) {
+        ArrayList<String> lines;
+        try {
+            lines = readAllLines("Markets.txt");
         } catch (IOException e) {
             System.out.println("The following error occured: " + e.getMessage());
+            return null;
+        }
+
+        int n = lines.size();
+        String[] names = new String[n];
+        double[][] metrics = new double[n][];
+        double[][][] series = withSeries ? new double[n][][] : null;
+        IntStream.range(0, n).parallel().forEach(i -> {
+            String line = lines.get(i);
+            if (!line.contains(":")) {
+                return;
+            }
+            String[] marketDetails = line.split("\\|");
+            metrics[i] = MetricEngine.parseMetrics(marketDetails);
+            if (withSeries) {
+                series[i] = new double[MetricEngine.familyCount()][];
+                for (int f = 0; f < series[i].length; f++) {
+                    series[i][f] = MetricEngine.parseSeries(marketDetails, f);
+                }
+            }
+            names[i] = lineName(line);
+        });
+
+        // Compact to the first line per name, keeping file order.
+        HashSet<String> seen = new HashSet<String>();
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            if (names[i] != null && seen.add(names[i])) {
+                names[kept] = names[i];
+                metrics[kept] = metrics[i];
+                if (withSeries) {
+                    series[kept] = series[i];
+                }
+                kept++;
+            }
         }
+        return new ParsedMarkets(Arrays.copyOf(names, kept), Arrays.copyOf(metrics, kept),
+                withSeries ? Arrays.copyOf(series, kept) : null);
+    }
+
+    // Market name of a Markets.txt line: the text before the first ':', trimmed, without splitting the line.
+    private static String lineName(String line) {
+        int colon = line.indexOf(':');
+        return (colon < 0 ? line : line.substring(0, colon)).trim();
     }
 
     // Finds ranking position for a market and returns ordinal label.
-    public static String viewRanking(String marketName, ArrayList<String> rankingList) {
+    public static String viewRanking(String marketName, RankingList rankingList) {
         // Return a stable fallback when no ranking context exists.
         if (marketName == null || rankingList == null || rankingList.isEmpty()) {
             return "Not found";
         }
 
-        // Walk list in rank order and find first matching market.
-        for (int i = 0; i < rankingList.size(); i++) {
-            String[] parts = rankingList.get(i).split(" - ");
-            if (parts.length < 1) {
-                continue;
-            }
+        // The list is in rank order, so the first matching entry is the market's rank.
+        int position = rankingList.indexOf(marketName);
+        return position < 0 ? "Not found" : ordinal(position + 1);
+    }
 
-            if (parts[0].equals(marketName)) {
-                int rank = i + 1;
-                // Handle 11th/12th/13th suffixes correctly.
-                if (rank % 100 >= 11 && rank % 100 <= 13) {
-                    return rank + "th";
-                }
-                if (rank % 10 == 1)
-                    return rank + "st";
-                else if (rank % 10 == 2)
-                    return rank + "nd";
-                else if (rank % 10 == 3)
-                    return rank + "rd";
-                else
-                    return rank + "th";
-            }
-        }
-        return "Not found";
+    // Formats a 1-based rank as "1st", "2nd", "11th", and so on.
+    public static String ordinal(int rank) {
+        // Handle 11th/12th/13th suffixes correctly.
+        if (rank % 100 >= 11 && rank % 100 <= 13) {
+            return rank + "th";
+        }
+        if (rank % 10 == 1)
+            return rank + "st";
+        else if (rank % 10 == 2)
+            return rank + "nd";
+        else if (rank % 10 == 3)
+            return rank + "rd";
+        else
+            return rank + "th";
     }
 
     // Basic average helper.
     public static double avg(ArrayList<Double> list) {
-        // Empty collections map to 0 to avoid crashes upstream.
-        if (list == null || list.isEmpty()) {
-            return 0;
-        }
-
-        // Sum all values and divide by list length.
-        double sum = 0;
-        for (double num : list) {
-            sum += num;
-        }
-        return sum / list.size();
+        return MetricEngine.avg(toDoubleArray(list));
     }
 
-    // Uses Apache Commons Math for standard deviation.
+    // Population standard deviation at full precision; rounding happens only where values are displayed.
     public static double stdDev(ArrayList<Double> tenYr) {
-        // Default to 0 if metric history is unavailable.
-        if (tenYr == null || tenYr.isEmpty()) {
-            return 0;
-        }
-
-        // Convert to primitive array for Commons Math API.
-        StandardDeviation sd = new StandardDeviation(false);
-        double[] tenYrArray = new double[tenYr.size()];
-        for (int i = 0; i < tenYr.size(); i++) {
-            tenYrArray[i] = tenYr.get(i);
-        }
-        // Keep output rounded to two decimals for display consistency.
-        double std = sd.evaluate(tenYrArray);
-        std = Math.round(std * 100.0) / 100.0;
-        return std;
+        return MetricEngine.stdDev(toDoubleArray(tenYr));
     }
 
     // Coefficient of variation, guarded for zero mean.
     public static double CV(double stdDev, double avg) {
-        // Avoid dividing by zero when the mean is 0.
-        if (avg == 0) {
-            return 0;
-        }
-
-        // Convert to percentage-like scale and round.
-        double CV = stdDev / avg;
-        CV = Math.round(CV * 10000) / 100.0;
-        return CV;
+        return MetricEngine.cv(stdDev, avg);
     }
 
     public static double variance(ArrayList<Double> tenYrMarket) {
-        // Keep callers safe when no sample exists.
-        if (tenYrMarket == null || tenYrMarket.isEmpty()) {
-            return 0;
-        }
-
         // Variance is standard deviation squared.
         double standardDev = stdDev(tenYrMarket);
         return standardDev * standardDev;
@@ -968,79 +2575,44 @@ public class Volatility {
 
     // Covariance of national vs market series.
     public static double covariance(ArrayList<Double> tenYrNational, ArrayList<Double> tenYrMarket) {
-        // Missing data means covariance cannot be computed.
-        if (tenYrNational == null || tenYrMarket == null || tenYrNational.isEmpty() || tenYrMarket.isEmpty()) {
-            return 0;
-        }
-
-        // Series must align in length by year index.
-        if (tenYrNational.size() != tenYrMarket.size()) {
-            return 0;
-        }
-
-        // Compute covariance using population-style divisor N.
-        double sum = 0;
-        double tenYrNationalAvg = avg(tenYrNational);
-        double tenYrAvg = avg(tenYrMarket);
-        for (int n = 0; n < tenYrMarket.size(); n++) {
-            sum += (tenYrNational.get(n) - tenYrNationalAvg) * (tenYrMarket.get(n) - tenYrAvg);
-        }
-        return sum / tenYrMarket.size();
+        return MetricEngine.covariance(toDoubleArray(tenYrNational), toDoubleArray(tenYrMarket));
     }
 
     // Beta with divide-by-zero protection.
     public static double beta(ArrayList<Double> tenYrNational, ArrayList<Double> tenYrMarket) {
-        // Guard against flat national series (variance 0).
-        double varianceNational = variance(tenYrNational);
-        if (varianceNational == 0) {
-            return 0;
-        }
+        return MetricEngine.beta(toDoubleArray(tenYrNational), toDoubleArray(tenYrMarket));
+    }
 
-        // Standard beta formula: covariance / variance.
-        double beta = covariance(tenYrNational, tenYrMarket) / varianceNational;
-        beta = Math.round(beta * 100) / 100.0;
-        return beta;
+    // Rounds a metric to two decimals for display only.
+    public static double round2(double value) {
+        return Math.round(value * 100) / 100.0;
     }
 
-    // Sort helper for "Market - value" strings.
-    public static int compareMarketValues(String s1, String s2) {
-        // Keep null-safe ordering behavior explicit.
-        if (s1 == null && s2 == null) {
-            return 0;
-        }
-        if (s1 == null) {
-            return 1;
-        }
-        if (s2 == null) {
-            return -1;
-        }
+    // Display form of a metric rounded to two decimals, or "n/a" when the market has no value.
+    private static String displayMetric(double value) {
+        return Double.isNaN(value) ? "n/a" : Double.toString(round2(value));
+    }
 
-        // Parse numeric tail and compare ascending.
+    // Display form of a stored "name - value" number; non-numeric text passes through.
+    private static String displayValue(String value) {
         try {
-            String[] p1 = s1.split(" - ");
-            String[] p2 = s2.split(" - ");
-            if (p1.length < 2 || p2.length < 2) {
-                return 0;
-            }
-            double val1 = Double.parseDouble(p1[1].trim());
-            double val2 = Double.parseDouble(p2[1].trim());
-            return Double.compare(val1, val2);
+            return Double.toString(round2(Double.parseDouble(value)));
         } catch (NumberFormatException e) {
-            return 0;
+            return value;
         }
     }
 
-    // Central update path for one metric: recompute values, update ranking entries, rewrite market line.
-    public static ArrayList<ArrayList<String>> update(String marketName, String metric, ArrayList<Double> updatedTenYr,
-                                                      ArrayList<Double> tenYrNational, ArrayList<String> relevantCVRankings,
-                                                      ArrayList<String> relevantBetaRankings, ArrayList<String> relevantStdDevRankings) {
+    // Central update path for one metric family: recompute values, update ranking entries, rewrite market line.
+    // statRankings holds that family's ranking list for each statistic, in statistic order.
+    public static ArrayList<RankingList> update(String marketName, int family, ArrayList<Double> updatedTenYr,
+                                                ArrayList<Double> tenYrNational, ArrayList<RankingList> statRankings) {
 
         // Validate all required inputs before calculations.
-        if (marketName == null || marketName.trim().isEmpty() || metric == null || metric.trim().isEmpty()) {
+        if (marketName == null || marketName.trim().isEmpty() || family < 0 || family >= MetricEngine.familyCount()) {
             return null;
         }
-        if (updatedTenYr == null || tenYrNational == null || relevantCVRankings == null
-                || relevantBetaRankings == null || relevantStdDevRankings == null) {
+        if (updatedTenYr == null || tenYrNational == null || statRankings == null
+                || statRankings.size() < MetricEngine.statCount()) {
             return null;
         }
         if (updatedTenYr.isEmpty() || tenYrNational.isEmpty() || updatedTenYr.size() != tenYrNational.size()) {
@@ -1048,86 +2620,41 @@ public class Volatility {
         }
 
         // Recompute derived stats from updated series.
-        double stdDevNum = stdDev(updatedTenYr);
-        double avgNum = avg(updatedTenYr);
-        double cvNum = CV(stdDevNum, avgNum);
-        double betaNum = beta(tenYrNational, updatedTenYr);
-
-        // Keep values as strings for ranking file format.
-        String stdDevStr = Double.toString(stdDevNum);
-        String cvStr = Double.toString(cvNum);
-        String betaStr = Double.toString(betaNum);
-
-        // Replace the market's value inside each relevant ranking list.
-        updateRankingEntry(relevantCVRankings, marketName, cvStr);
-        updateRankingEntry(relevantBetaRankings, marketName, betaStr);
-        updateRankingEntry(relevantStdDevRankings, marketName, stdDevStr);
-
-        // Resort rankings after changing one market's values.
-        relevantCVRankings.sort(Volatility::compareMarketValues);
-        relevantBetaRankings.sort(Volatility::compareMarketValues);
-        relevantStdDevRankings.sort(Volatility::compareMarketValues);
-
-        // Return lists in caller-expected order: beta, CV, stddev.
-        ArrayList<ArrayList<String>> relevantRankings = new ArrayList<ArrayList<String>>();
-        relevantRankings.add(relevantBetaRankings);
-        relevantRankings.add(relevantCVRankings);
-        relevantRankings.add(relevantStdDevRankings);
+        double[] metrics = new double[MetricEngine.metricCount()];
+        int overlap = MetricEngine.computeFamily(family, toDoubleArray(updatedTenYr),
+                toDoubleArray(tenYrNational), metrics);
+
+        // Replace the market's value inside each relevant ranking list, then resort it.
+        for (int s = 0; s < MetricEngine.statCount(); s++) {
+            int category = MetricEngine.index(s, family);
+            setRankingValue(statRankings.get(s), category, marketName, metrics[category], false);
+            statRankings.get(s).sort();
+        }
 
         // Persist the updated metric values on the market record too.
         Market market = findMarketInFile(marketName);
         if (market != null) {
-            updateMarketFields(market, metric, stdDevNum, cvNum, betaNum, updatedTenYr);
+            updateMarketFields(market, family, metrics, updatedTenYr);
+            market.setOverlap(family, overlap);
             updateMarketInFile(market);
         }
 
-        return relevantRankings;
+        return statRankings;
     }
 
     // Applies updated metric values to the in-memory market object.
-    private static void updateMarketFields(Market market, String metric, double stdDev, double cv,
-                                           double beta, ArrayList<Double> tenYrData) {
+    private static void updateMarketFields(Market market, int family, double[] metrics,
+                                           ArrayList<Double> tenYrData) {
         // Ignore invalid calls from upstream.
-        if (market == null || metric == null || tenYrData == null) {
+        if (market == null || metrics == null || tenYrData == null) {
             return;
         }
 
         // Only update the metric family requested by the user.
-        if (metric.equals("Rent Growth")) {
-            market.setBetaRG(beta);
-            market.setCVRG(cv);
-            market.setStdDevRG(stdDev);
-            market.setTenYrRG(tenYrData);
-        } else if (metric.equals("Cap Rate")) {
-            market.setBetaCap(beta);
-            market.setCVCap(cv);
-            market.setStdDevCap(stdDev);
-            market.setTenYrCap(tenYrData);
-        } else if (metric.equals("Vacancy")) {
-            market.setBetaVac(beta);
-            market.setCVVacancy(cv);
-            market.setStdDevVac(stdDev);
-            market.setTenYrVac(tenYrData);
-        }
-    }
-
-    // Replaces one market's value inside a ranking list.
-    private static void updateRankingEntry(ArrayList<String> rankingList, String marketName, String newValue) {
-        // Skip updates when inputs are incomplete.
-        if (rankingList == null || marketName == null || newValue == null) {
-            return;
-        }
-
-        // Find the matching market key and replace only that value.
-        for (int i = 0; i < rankingList.size(); i++) {
-            String[] parts = rankingList.get(i).split(" - ");
-            if (parts.length < 2) {
-                continue;
-            }
-            if (parts[0].trim().equals(marketName)) {
-                rankingList.set(i, parts[0] + " - " + newValue);
-            }
+        for (int s = 0; s < MetricEngine.statCount(); s++) {
+            market.setStat(s, family, metrics[MetricEngine.index(s, family)]);
         }
+        market.setSeries(family, tenYrData);
     }
 
     // Rewrites the existing market line in Markets.txt.
@@ -1141,16 +2668,29 @@ public class Volatility {
         try {
             // Replace the matching line and keep all others untouched.
             ArrayList<String> lines = readAllLines("Markets.txt");
-            String marketLine = formatMarketLine(market);
+            double[][] series = marketSeries(market);
+            String marketLine = formatMarketLine(market, series);
+            String name = market.getMarketName().trim();
+            String oldLine = null;
 
+            // Match the whole name, so updating "Buck" leaves "Buckhead" alone.
             for (int i = 0; i < lines.size(); i++) {
-                if (lines.get(i).startsWith(market.getMarketName())) {
-                    lines.set(i, marketLine);
+                if (lineName(lines.get(i)).equals(name)) {
+                    oldLine = lines.set(i, marketLine);
                     break;
                 }
             }
 
             writeAllLines("Markets.txt", lines);
+            marketCache.invalidate();
+            indexSimilarity(name, market.getMetrics(), series);
+            indexScreen(market);
+            if (metricSketches.isLoaded() && oldLine != null && oldLine.contains(":")) {
+                metricSketches.update(MetricEngine.parseMetrics(oldLine.split("\\|")), market.getMetrics());
+            }
+            if (oldLine != null) {
+                trackMetricChange(name, MetricEngine.parseMetrics(oldLine.split("\\|")), market.getMetrics());
+            }
         } catch (IOException e) {
             System.out.println("The following problem occured: " + e.getMessage());
         }
@@ -1158,22 +2698,22 @@ public class Volatility {
 
     // Shared formatter for market lines in file storage.
     private static String formatMarketLine(Market market) {
+        return formatMarketLine(market, marketSeries(market));
+    }
+
+    // Formats a market line from series already read off the market.
+    private static String formatMarketLine(Market market, double[][] series) {
         // Build output in a predictable pipe-delimited structure.
-        StringBuilder sb = new StringBuilder();
-        sb.append(market.getMarketName()).append(": ");
-        sb.append("Standard Deviation of: ").append("Vacancy: ").append(market.getStdDevVac()).append(", ");
-        sb.append("Rent Growth: ").append(market.getStdDevRG()).append(", ");
-        sb.append("Cap Rate: ").append(market.getStdDevCap()).append(" | ");
-        sb.append("Coefficient of variation of: ").append("Vacancy: ").append(market.getCVVacancy()).append(", ");
-        sb.append("Rent Growth: ").append(market.getCVRG()).append(", ");
-        sb.append("Cap Rate: ").append(market.getCVCap()).append(" | ");
-        sb.append("Beta compared to the national index of: ").append("Vacancy: ").append(market.getBetaVac()).append(", ");
-        sb.append("Rent Growth: ").append(market.getBetaRG()).append(", ");
-        sb.append("Cap Rate: ").append(market.getBetaCap()).append(" | ");
-        sb.append("Ten Year Vacancy: ").append(market.getTenYrVac().toString()).append(" | ");
-        sb.append("Ten Year Rent Growth: ").append(market.getTenYrRG().toString()).append(" | ");
-        sb.append("Ten Year Cap Rate: ").append(market.getTenYrCap().toString()).append(" | ");
-        return sb.toString();
+        return MetricEngine.formatLine(market.getMarketName(), market.getMetrics(), series, market.getOverlaps());
+    }
+
+    // Every family's series of a market as primitive arrays, in MetricEngine family order.
+    private static double[][] marketSeries(Market market) {
+        double[][] series = new double[MetricEngine.familyCount()][];
+        for (int f = 0; f < series.length; f++) {
+            series[f] = toDoubleArray(market.getSeries(f));
+        }
+        return series;
     }
 
     // Pretty-prints two markets if both exist in the in-memory list.
@@ -1186,255 +2726,56 @@ public class Volatility {
 
         // This method intentionally compares only markets loaded in memory.
         if (marketList.contains(market) && marketList.contains(market2)) {
-            System.out.println("Market: " + market.getMarketName());
-            System.out.println("-----------------------------");
-            System.out.println("Standard Deviation of:  Vacancy: " + Math.round(market.getStdDevVac() * 100) / 100.0
-                    + " Rent Growth: " + Math.round(market.getStdDevRG() * 100) / 100.0 + " Cap Rate: "
-                    + Math.round(market.getStdDevCap() * 100) / 100.0);
-            System.out.println("Coefficient of variation of:  Vacancy: "
-                    + Math.round(market.getCVVacancy() * 100) / 100.0 + " Rent Growth: "
-                    + Math.round(market.getCVRG() * 100) / 100.0 + " Cap Rate: "
-                    + Math.round(market.getCVCap() * 100) / 100.0);
-            System.out.println("Beta compared to national index of:  Vacancy: " + market.getBetaVac() + " Rent Growth: "
-                    + market.getBetaRG() + " Cap Rate: " + market.getBetaCap());
+            printMarketSummary(market);
             System.out.println();
-            System.out.println("Market: " + market2.getMarketName());
-            System.out.println("-----------------------------");
-            System.out.println("Standard Deviation of:  Vacancy: " + Math.round(market2.getStdDevVac() * 100) / 100.0
-                    + " Rent Growth: " + Math.round(market2.getStdDevRG() * 100) / 100.0 + " Cap Rate: "
-                    + Math.round(market2.getStdDevCap() * 100) / 100.0);
-            System.out.println("Coefficient of variation of:  Vacancy: " + market2.getCVVacancy() + " Rent Growth: "
-                    + market2.getCVRG() + " Cap Rate: " + market2.getCVCap());
-            System.out.println("Beta compared to national index of:  Vacancy: " + market2.getBetaVac()
-                    + " Rent Growth: " + market2.getBetaRG() + " Cap Rate: " + market2.getBetaCap());
+            printMarketSummary(market2);
         } else {
             System.out.println("Markets not found");
         }
     }
 
-    // Parses one market line from Markets.txt into a Market object.
-    public static Market extractMarket(String marketNameFile, String marketViewName, String[] marketDetails) {
-        // No parsing can happen without all three inputs.
-        if (marketNameFile == null || marketViewName == null || marketDetails == null) {
-            return null;
-        }
-
-        // Only parse the row that matches the requested market name.
-        if (marketNameFile.trim().equals(marketViewName.trim())) {
-            marketDetails[0].replaceFirst("^\\S+\\s+", "");
-
-            // Hold string forms for all numeric fields before conversion.
-            String stdDevVacViewStr = null;
-            String stdDevRGViewStr = null;
-            String stdDevCapViewStr = null;
-            String cvVacancyViewStr = null;
-            String cvRGViewStr = null;
-            String cvCapViewStr = null;
-            String betaVacancyViewStr = null;
-            String betaRGViewStr = null;
-            String betaCapViewStr = null;
-            String tenYrVacViewStr = null;
-            String tenYrRGViewStr = null;
-            String tenYrCapViewStr = null;
-
-            // Parse each "|" section by expected position and label.
-            for (int i = 0; i < marketDetails.length; i++) {
-                String section = marketDetails[i].trim();
-
-                if (i <= 2) {
-                    // First three sections store scalar metrics by label.
-                    Pattern labelValuePattern = Pattern
-                            .compile("(Vacancy|Rent Growth|Cap Rate):\\s*([-+]?[0-9]*\\.?[0-9]+)");
-                    Matcher matcher = labelValuePattern.matcher(section);
-
-                    while (matcher.find()) {
-                        String label = matcher.group(1);
-                        String value = matcher.group(2);
-                        if (i == 0 && label.equals("Vacancy"))
-                            stdDevVacViewStr = value;
-                        if (i == 0 && label.equals("Rent Growth"))
-                            stdDevRGViewStr = value;
-                        if (i == 0 && label.equals("Cap Rate"))
-                            stdDevCapViewStr = value;
-                        if (i == 1 && label.equals("Vacancy"))
-                            cvVacancyViewStr = value;
-                        if (i == 1 && label.equals("Rent Growth"))
-                            cvRGViewStr = value;
-                        if (i == 1 && label.equals("Cap Rate"))
-                            cvCapViewStr = value;
-                        if (i == 2 && label.equals("Vacancy"))
-                            betaVacancyViewStr = value;
-                        if (i == 2 && label.equals("Rent Growth"))
-                            betaRGViewStr = value;
-                        if (i == 2 && label.equals("Cap Rate"))
-                            betaCapViewStr = value;
-                    }
-                } else {
-                    // Remaining sections store ten-year arrays.
-                    Pattern arrayPattern = Pattern.compile("Ten Year \\w+.*?:\\s*(\\[.*?\\])");
-                    Matcher arrayMatcher = arrayPattern.matcher(section);
-
-                    if (arrayMatcher.find()) {
-                        String arrayValue = arrayMatcher.group(1);
-                        if (i == 3 && section.contains("Ten Year Vacancy"))
-                            tenYrVacViewStr = arrayValue;
-                        if (i == 4 && section.contains("Ten Year Rent Growth"))
-                            tenYrRGViewStr = arrayValue;
-                        if (i == 5 && section.contains("Ten Year Cap Rate"))
-                            tenYrCapViewStr = arrayValue;
-                    }
-                }
-            }
-
-            // Bail out early if required fields were not parsed from file.
-            if (stdDevVacViewStr == null || stdDevRGViewStr == null || stdDevCapViewStr == null
-                    || cvVacancyViewStr == null || cvRGViewStr == null || cvCapViewStr == null
-                    || betaVacancyViewStr == null || betaRGViewStr == null || betaCapViewStr == null
-                    || tenYrVacViewStr == null || tenYrRGViewStr == null || tenYrCapViewStr == null) {
-                return null;
-            }
-
-            // Parse scalar strings to doubles in one guarded block.
-            double stdDevVacView;
-            double stdDevRGView;
-            double stdDevCapView;
-            double cvVacancyView;
-            double cvRGView;
-            double cvCapView;
-            double betaVacancyView;
-            double betaRGView;
-            double betaCapView;
-
-            try {
-                stdDevVacView = Double.parseDouble(stdDevVacViewStr);
-                stdDevRGView = Double.parseDouble(stdDevRGViewStr);
-                stdDevCapView = Double.parseDouble(stdDevCapViewStr);
-                cvVacancyView = Double.parseDouble(cvVacancyViewStr);
-                cvRGView = Double.parseDouble(cvRGViewStr);
-                cvCapView = Double.parseDouble(cvCapViewStr);
-                betaVacancyView = Double.parseDouble(betaVacancyViewStr);
-                betaRGView = Double.parseDouble(betaRGViewStr);
-                betaCapView = Double.parseDouble(betaCapViewStr);
-            } catch (NumberFormatException e) {
-                return null;
-            }
-
-            // Parse Vacancy array payload.
-            tenYrVacViewStr = tenYrVacViewStr.replaceAll("[\\[\\]\\s]", "");
-            String[] strArrayVac = tenYrVacViewStr.split(",");
-            ArrayList<Double> tenYrVacArrayView = new ArrayList<Double>();
-            for (String s : strArrayVac) {
-                if (s.trim().isEmpty()) {
-                    continue;
-                }
-                try {
-                    tenYrVacArrayView.add(Double.parseDouble(s));
-                } catch (NumberFormatException e) {
-                    return null;
-                }
-            }
-
-            // Parse Rent Growth array payload.
-            tenYrRGViewStr = tenYrRGViewStr.replaceAll("[\\[\\]\\s]", "");
-            String[] strArrayRG = tenYrRGViewStr.split(",");
-            ArrayList<Double> tenYrRGArrayView = new ArrayList<Double>();
-            for (String s : strArrayRG) {
-                if (s.trim().isEmpty()) {
-                    continue;
-                }
-                try {
-                    tenYrRGArrayView.add(Double.parseDouble(s));
-                } catch (NumberFormatException e) {
-                    return null;
-                }
-            }
-
-            // Parse Cap Rate array payload.
-            tenYrCapViewStr = tenYrCapViewStr.replaceAll("[\\[\\]\\s]", "");
-            String[] strArrayCap = tenYrCapViewStr.split(",");
-            ArrayList<Double> tenYrCapArrayView = new ArrayList<Double>();
-            for (String s : strArrayCap) {
-                if (s.trim().isEmpty()) {
-                    continue;
-                }
-                try {
-                    tenYrCapArrayView.add(Double.parseDouble(s));
-                } catch (NumberFormatException e) {
-                    return null;
-                }
+    // Prints one market's metrics rounded to two decimals; missing ones show as n/a.
+    private static void printMarketSummary(Market market) {
+        System.out.println("Market: " + market.getMarketName());
+        System.out.println("-----------------------------");
+        for (int s = 0; s < MetricEngine.statCount(); s++) {
+            StringBuilder sb = new StringBuilder(MetricEngine.statSection(s));
+            for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                sb.append(" ").append(MetricEngine.family(f)).append(": ")
+                        .append(displayMetric(market.getStat(s, f)));
             }
-
-            // Build and cache the parsed Market object.
-            Market marketView = new Market(marketNameFile, stdDevVacView, stdDevRGView, stdDevCapView, cvVacancyView,
-                    cvRGView, cvCapView, betaVacancyView, betaRGView, betaCapView, tenYrRGArrayView, tenYrCapArrayView,
-                    tenYrVacArrayView);
-            marketList.add(marketView);
-            return marketView;
+            System.out.println(sb);
         }
-        return null;
     }
 
-    // Prefix dictionary for ranking categories used in Rankings.txt.
-    private static final Map<String, String> RANKING_PREFIXES = new HashMap<String, String>() {
-        {
-            // Keep keys aligned with caller tokens and file headings.
-            put("CV Vacancy Rankings:", "CV Vacancy Rankings: ");
-            put("CV Rent Growth Rankings:", "CV Rent Growth Rankings: ");
-            put("CV Cap Rate Rankings:", "CV Cap Rate Rankings: ");
-            put("Beta Vacancy Rankings:", "Beta Vacancy Rankings: ");
-            put("Beta Rent Growth Rankings:", "Beta Rent Growth Rankings: ");
-            put("Beta Cap Rate Rankings:", "Beta Cap Rate Rankings: ");
-            put("Standard Deviation Cap Rate Rankings:", "Standard Deviation Cap Rate Rankings: ");
-            put("Standard Deviation Rent Growth Rankings:", "Standard Deviation Rent Growth Rankings: ");
-            put("Standard Deviation Vacancy Rankings:", "Standard Deviation Vacancy Rankings: ");
-        }
-    };
-
-    // Extracts one ranking list based on the known line prefix.
-    public static ArrayList<String> extractRankings(String relevantRankings, String lineFromReader) {
-        // Missing file line means this category is currently empty.
-        if (lineFromReader == null) {
-            return new ArrayList<String>();
-        }
-
-        // Resolve canonical prefix and parse the line.
-        String prefix = RANKING_PREFIXES.get(relevantRankings);
-        if (prefix != null) {
-            return parseRankingList(lineFromReader, prefix);
-        }
-        return new ArrayList<String>();
-    }
-
-    // Converts one ranking line into list elements.
-    private static ArrayList<String> parseRankingList(String line, String prefix) {
-        // Always return a non-null list for simpler callers.
-        ArrayList<String> list = new ArrayList<String>();
-        if (line == null || prefix == null) {
-            return list;
-        }
-
-        // Remove heading and split on commas.
-        String data = line.replaceFirst(Pattern.quote(prefix), "");
-        if (!data.trim().isEmpty()) {
-            String[] rankings = data.split(",");
-            for (String s : rankings) {
-                // Preserve only non-blank ranking tokens.
-                if (!s.trim().isEmpty()) {
-                    list.add(s.trim());
-                }
+    // Keeps one in-memory copy per market name; a replaced copy is only dropped, as callers may still hold it.
+    private static void cacheMarket(Market market) {
+        Iterator<Market> iterator = marketList.iterator();
+        while (iterator.hasNext()) {
+            Market cached = iterator.next();
+            if (cached == market) {
+                return;
+            }
+            if (cached.getMarketName().trim().equals(market.getMarketName().trim())) {
+                iterator.remove();
             }
         }
-        return list;
+        marketList.add(market);
     }
 
     // Entry point used by metric updates to patch one line in Rankings.txt.
-    public static void writeIntoFileUpdate(String relevantMetric, ArrayList<String> relevantRankings) {
+    public static void writeIntoFileUpdate(String relevantMetric, RankingList relevantRankings) {
         // Delegate to the shared line-update helper.
         updateFileLine("Rankings.txt", relevantMetric, relevantRankings);
+
+        // Re-index only the category that was rewritten.
+        if (rankIndex.isLoaded()) {
+            rankIndex.updateCategory(rankIndex.categoryOf(relevantMetric), relevantRankings);
+        }
     }
 
     // Updates one prefixed line in a file; appends if it doesn't exist yet.
-    private static void updateFileLine(String filename, String linePrefix, ArrayList<String> data) {
+    private static void updateFileLine(String filename, String linePrefix, RankingList data) {
         // Basic guardrail for corrupted arguments.
         if (filename == null || filename.trim().isEmpty() || linePrefix == null || data == null) {
             System.out.println("Invalid input passed to updateFileLine.");
@@ -1442,66 +2783,17 @@ public class Volatility {
         }
 
         try {
-            // Load the whole file so we can replace one target line.
-            ArrayList<String> allLines = readAllLines(filename);
-
-            int lineIndex = -1;
-            for (int i = 0; i < allLines.size(); i++) {
-                if (allLines.get(i).startsWith(linePrefix)) {
-                    lineIndex = i;
-                    // Rebuild the line as "prefix value1,value2,...".
-                    StringBuilder newLine = new StringBuilder();
-                    newLine.append(linePrefix).append(" ");
-                    for (int j = 0; j < data.size(); j++) {
-                        newLine.append(data.get(j));
-                        if (j < data.size() - 1) {
-                            newLine.append(",");
-                        }
-                    }
-                    allLines.set(i, newLine.toString());
-                    break;
-                }
-            }
-
-            // If the line doesn't exist, append a new category line.
-            if (lineIndex == -1) {
-                StringBuilder newLine = new StringBuilder();
-                newLine.append(linePrefix).append(" ");
-                for (int j = 0; j < data.size(); j++) {
-                    newLine.append(data.get(j));
-                    if (j < data.size() - 1) {
-                        newLine.append(",");
-                    }
-                }
-                allLines.add(newLine.toString());
-            }
-
-            // Persist updated line set to disk.
-            writeAllLines(filename, allLines);
+            // Stream the file through, swapping in the target line or appending it if it doesn't exist yet.
+            RankingStream.replaceCategory(filename, linePrefix, data.entries());
         } catch (IOException e) {
             System.out.println("The following error occured in writeIntoFile method: " + e.getMessage());
         }
     }
 
-    // Minimal helper to load a text file into memory.
+    // Minimal helper to load a text file into memory; missing files are treated as empty content.
     private static ArrayList<String> readAllLines(String filename) throws IOException {
-        // Keep return type non-null for all callers.
-        ArrayList<String> lines = new ArrayList<String>();
-
-        // Missing files are treated as empty content.
-        File file = new File(filename);
-        if (!file.exists()) {
-            return lines;
-        }
-
-        // Read each line in order.
-        BufferedReader reader = new BufferedReader(new FileReader(filename));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            lines.add(line);
-        }
-        reader.close();
-        return lines;
+        // Large files are split into line-aligned ranges and read in parallel, in file order.
+        return ChunkedFileReader.readLines(filename);
     }
 
     // Minimal helper to overwrite a file from in-memory lines.
@@ -1520,100 +2812,36 @@ public class Volatility {
         pw.close();
     }
 
-    // Returns average for a specific market metric currently supported in this method.
+    // Returns the average of one metric family's ten-year series for a market.
     public static double marketAvg(String marketName, String metric) {
-        // Lookup the requested market once and branch by metric label.
+        // Lookup the requested market once and resolve the family by label.
         Market market = findMarketInFile(marketName);
-        if (market == null || metric == null) {
+        int family = MetricEngine.familyIndex(metric);
+        if (market == null || family < 0) {
             return 0;
         }
-
-        // Vacancy average path.
-        if (metric.trim().equals("Vacancy")) {
-            return Math.round(avg(market.getTenYrVac()) * 100) / 100.0;
-        }
-        // Cap rate average path.
-        if (metric.trim().equals("Cap Rate")) {
-            return Math.round(avg(market.getTenYrCap()) * 100) / 100.0;
-        }
-        // Rent growth average path.
-        if (metric.trim().equals("Rent Growth")) {
-            return Math.round(avg(market.getTenYrRG()) * 100) / 100.0;
-        }
-        return 0;
+        return Math.round(avg(market.getSeries(family)) * 100) / 100.0;
     }
 
-    // Loads national RG/Vacancy/Cap series from National.txt.
+    // Loads the national series of every family from National.txt.
     public static ArrayList<ArrayList<Double>> getNationalData() {
-        // Keep the return payload shape stable: [RG, Vacancy, Cap].
+        // Keep the return payload shape stable: one list per family, in MetricEngine family order.
         ArrayList<ArrayList<Double>> nationalData = new ArrayList<ArrayList<Double>>();
-        BufferedReader readNationalInfo = null;
-        ArrayList<Double> tenYrNationalRG = new ArrayList<Double>();
-        ArrayList<Double> tenYrNationalVac = new ArrayList<Double>();
-        ArrayList<Double> tenYrNationalCap = new ArrayList<Double>();
         try {
-            // National file is expected to have one metric per line.
-            readNationalInfo = new BufferedReader(new FileReader("National.txt"));
-            String strNationalRG = readNationalInfo.readLine();
-            if (strNationalRG != null) {
-                // Remove the leading label from the first token.
-                String[] listNationalRG = strNationalRG.split(",");
-                listNationalRG[0] = listNationalRG[0].replaceFirst("Ten Year National Rent Growth: ", "");
-                for (String x : listNationalRG) {
-                    if (x.trim().isEmpty()) {
-                        continue;
-                    }
-                    try {
-                        tenYrNationalRG.add(Double.parseDouble(x.trim()));
-                    } catch (NumberFormatException e) {
-                        System.out.println("Invalid national rent growth value: " + x);
-                        return nationalData;
-                    }
-                }
-            }
-            String strNationalVac = readNationalInfo.readLine();
-            if (strNationalVac != null) {
-                // Remove the leading label from the first token.
-                String[] listNationalVac = strNationalVac.split(",");
-                listNationalVac[0] = listNationalVac[0].replaceFirst("Ten Year National Vacancy: ", "");
-                for (String n : listNationalVac) {
-                    if (n.trim().isEmpty()) {
-                        continue;
-                    }
-                    try {
-                        tenYrNationalVac.add(Double.parseDouble(n.trim()));
-                    } catch (NumberFormatException e) {
-                        System.out.println("Invalid national vacancy value: " + n);
-                        return nationalData;
-                    }
-                }
+            double[][] national = MetricEngine.loadNational("National.txt");
+            if (national == null) {
+                return nationalData;
             }
-
-            String strNationalCap = readNationalInfo.readLine();
-            if (strNationalCap != null) {
-                // Remove the leading label from the first token.
-                String[] listNationalCap = strNationalCap.split(",");
-                listNationalCap[0] = listNationalCap[0].replaceFirst("Ten Year National Cap Rate: ", "");
-                for (String y : listNationalCap) {
-                    if (y.trim().isEmpty()) {
-                        continue;
-                    }
-                    try {
-                        tenYrNationalCap.add(Double.parseDouble(y.trim()));
-                    } catch (NumberFormatException e) {
-                        System.out.println("Invalid national cap rate value: " + y);
-                        return nationalData;
-                    }
-                }
+            for (double[] series : national) {
+                nationalData.add(toDoubleList(series));
             }
-            readNationalInfo.close();
         } catch (IOException e) {
             System.out.println("The following error occured: " + e.getMessage());
+            // Always return one list per family so callers can index safely.
+            for (int f = 0; f < MetricEngine.familyCount(); f++) {
+                nationalData.add(new ArrayList<Double>());
+            }
         }
-        // Always return three lists so callers can index safely.
-        nationalData.add(tenYrNationalRG);
-        nationalData.add(tenYrNationalVac);
-        nationalData.add(tenYrNationalCap);
         return nationalData;
     }
 }